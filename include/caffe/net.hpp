@@ -178,6 +178,13 @@ class Net {
     return param_names_index_;
   }
   inline const vector<int>& param_owners() const { return param_owners_; }
+  inline const vector<pair<int, int> >& param_layer_indices() const {
+    return param_layer_indices_;
+  }
+  /// @brief returns the index in learnable_params() of each param
+  inline const vector<int>& learnable_param_ids() const {
+    return learnable_param_ids_;
+  }
   /// @brief Input and output blob numbers
   inline int num_inputs() const { return net_input_blobs_.size(); }
   inline int num_outputs() const { return net_output_blobs_.size(); }
@@ -200,6 +207,23 @@ class Net {
 
   void set_debug_info(const bool value) { debug_info_ = value; }
 
+  /**
+   * @brief Accumulate the wall time of Forward and Backward of each layer.
+   *        In GPU mode, kernels are asynchronous, so only launch time is
+   *        measured unless the device is synchronized.
+   */
+  void set_layer_timing(const bool value);
+  inline bool layer_timing() const { return layer_timing_; }
+  /// @brief Microseconds spent in Forward of each layer since last reset.
+  inline const vector<double>& layer_forward_time() const {
+    return layer_forward_time_;
+  }
+  /// @brief Microseconds spent in Backward of each layer since last reset.
+  inline const vector<double>& layer_backward_time() const {
+    return layer_backward_time_;
+  }
+  void ResetLayerTiming();
+
   // Helpers for Init.
   /**
    * @brief Remove layers that the user specified should be excluded given the current
@@ -291,6 +315,10 @@ class Net {
   size_t memory_used_;
   /// Whether to compute and display debug info for the net.
   bool debug_info_;
+  /// Whether to accumulate the time of each layer.
+  bool layer_timing_;
+  vector<double> layer_forward_time_;
+  vector<double> layer_backward_time_;
 
   DISABLE_COPY_AND_ASSIGN(Net);
 };
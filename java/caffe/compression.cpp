@@ -0,0 +1,289 @@
+#include <stdint.h>
+#include <string.h>
+
+#include <algorithm>
+#include <cmath>
+#include <vector>
+
+#include "compression.hpp"
+
+using std::vector;
+
+namespace {
+
+// Marks the start of compressed deltas
+const int32_t kCompressionMagic = 0x4a4e4943;  // "JNIC"
+// The size of the header, and the fixed part of each blob
+const size_t kHeaderSize = 4 * sizeof(int32_t);
+const size_t kBlobHeaderSize = 2 * sizeof(int32_t) + sizeof(float);
+
+inline size_t ValueSize(const Quantization quantization) {
+  switch (quantization) {
+  case FP16: return 2;
+  case INT8: return 1;
+  default: return 4;
+  }
+}
+
+inline size_t Pad(const size_t size) { return (size + 3) / 4 * 4; }
+
+// Unaligned reads and writes, advancing the pointer
+template <typename T>
+inline void Write(char** p, const T value) {
+  memcpy(*p, &value, sizeof(T));
+  *p += sizeof(T);
+}
+
+template <typename T>
+inline T Read(const char** p) {
+  T value;
+  memcpy(&value, *p, sizeof(T));
+  *p += sizeof(T);
+  return value;
+}
+
+// IEEE 754 half precision conversion with round to nearest even, so no
+// special instruction set is required.
+uint16_t FloatToHalf(const float value) {
+  uint32_t x;
+  memcpy(&x, &value, sizeof(x));
+  const uint32_t sign = (x >> 16) & 0x8000;
+  const int exponent = static_cast<int>((x >> 23) & 0xff) - 127 + 15;
+  uint32_t mantissa = x & 0x7fffff;
+  if (((x >> 23) & 0xff) == 0xff) {  // inf or nan
+    return sign | 0x7c00 | (mantissa ? 0x200 : 0);
+  }
+  if (exponent >= 31) return sign | 0x7c00;  // overflow to inf
+  if (exponent <= 0) {  // subnormal or zero
+    if (exponent < -10) return sign;
+    mantissa |= 0x800000;
+    const int shift = 14 - exponent;
+    uint32_t half = mantissa >> shift;
+    const uint32_t remainder = mantissa & ((1u << shift) - 1);
+    const uint32_t halfway = 1u << (shift - 1);
+    if (remainder > halfway || (remainder == halfway && (half & 1))) half++;
+    return sign | half;
+  }
+  uint32_t half = sign | (exponent << 10) | (mantissa >> 13);
+  const uint32_t remainder = mantissa & 0x1fff;
+  // carry into exponent is still correct, up to inf
+  if (remainder > 0x1000 || (remainder == 0x1000 && (half & 1))) half++;
+  return half;
+}
+
+float HalfToFloat(const uint16_t half) {
+  const uint32_t sign = static_cast<uint32_t>(half & 0x8000) << 16;
+  int exponent = (half >> 10) & 0x1f;
+  uint32_t mantissa = half & 0x3ff;
+  uint32_t x;
+  if (exponent == 0) {
+    if (mantissa == 0) {
+      x = sign;
+    } else {  // normalize subnormal
+      exponent = 1;
+      while (!(mantissa & 0x400)) {
+        mantissa <<= 1;
+        exponent--;
+      }
+      mantissa &= 0x3ff;
+      x = sign | ((exponent + 127 - 15) << 23) | (mantissa << 13);
+    }
+  } else if (exponent == 31) {
+    x = sign | 0x7f800000 | (mantissa << 13);
+  } else {
+    x = sign | ((exponent + 127 - 15) << 23) | (mantissa << 13);
+  }
+  float value;
+  memcpy(&value, &x, sizeof(value));
+  return value;
+}
+
+// Orders indices by descending absolute value
+template <typename Dtype>
+struct AbsGreater {
+  explicit AbsGreater(const Dtype* values) : values(values) {}
+  bool operator()(const int a, const int b) const {
+    return std::fabs(values[a]) > std::fabs(values[b]);
+  }
+  const Dtype* values;
+};
+
+// Select the indices of elements to keep
+template <typename Dtype>
+void Select(const vector<Dtype>& values, const CompressionParameter& param,
+  vector<int>* indices) {
+  const int count = values.size();
+  indices->clear();
+  if (param.sparsification == TOP_K) {
+    int k = static_cast<int>(std::ceil(param.parameter * count));
+    k = std::max(std::min(k, count), count > 0 ? 1 : 0);
+    indices->resize(count);
+    for (int i = 0; i < count; i++) (*indices)[i] = i;
+    std::nth_element(indices->begin(), indices->begin() + k, indices->end(),
+      AbsGreater<Dtype>(&values[0]));
+    indices->resize(k);
+    std::sort(indices->begin(), indices->end());
+  } else if (param.sparsification == THRESHOLD) {
+    for (int i = 0; i < count; i++) {
+      if (std::fabs(values[i]) >= param.parameter) indices->push_back(i);
+    }
+  }
+}
+
+}  // namespace
+
+size_t MaxCompressedSize(const vector<int>& counts,
+  const CompressionParameter& param) {
+  const size_t value_size = ValueSize(param.quantization);
+  size_t size = kHeaderSize;
+  for (int i = 0; i < counts.size(); i++) {
+    size += kBlobHeaderSize + Pad(counts[i] * value_size);
+    if (param.sparsification != NO_SPARSIFICATION) {
+      size += counts[i] * sizeof(int32_t);
+    }
+  }
+  return size;
+}
+
+template <typename Dtype>
+size_t Compress(const vector<int>& counts, const Dtype* delta,
+  Dtype* residual, const CompressionParameter& param, char* output) {
+  char* p = output;
+  Write<int32_t>(&p, kCompressionMagic);
+  Write<int32_t>(&p, param.sparsification);
+  Write<int32_t>(&p, param.quantization);
+  Write<int32_t>(&p, counts.size());
+  const bool sparse = param.sparsification != NO_SPARSIFICATION;
+  vector<Dtype> values;
+  vector<int> indices;
+  for (int b = 0; b < counts.size(); b++) {
+    const int count = counts[b];
+    // values to compress, with accumulated errors from last compressions
+    values.assign(delta, delta + count);
+    if (residual) {
+      for (int i = 0; i < count; i++) values[i] += residual[i];
+    }
+    Select(values, param, &indices);
+    const int stored = sparse ? indices.size() : count;
+    Dtype max_abs = 0;
+    for (int k = 0; k < stored; k++) {
+      const int i = sparse ? indices[k] : k;
+      max_abs = std::max<Dtype>(max_abs, std::fabs(values[i]));
+    }
+    float scale = 1;
+    if (param.quantization == FP16 && max_abs > 0) scale = max_abs;
+    if (param.quantization == INT8 && max_abs > 0) scale = max_abs / 127;
+    Write<int32_t>(&p, count);
+    Write<int32_t>(&p, stored);
+    Write<float>(&p, scale);
+    for (int k = 0; sparse && k < stored; k++) Write<int32_t>(&p, indices[k]);
+    // unselected elements are all kept in residual
+    if (residual) std::copy(values.begin(), values.end(), residual);
+    char* begin = p;
+    for (int k = 0; k < stored; k++) {
+      const int i = sparse ? indices[k] : k;
+      float decoded;
+      switch (param.quantization) {
+      case FP16: {
+        const uint16_t half = FloatToHalf(values[i] / scale);
+        Write<uint16_t>(&p, half);
+        decoded = HalfToFloat(half) * scale;
+        break;
+      }
+      case INT8: {
+        const float q = std::floor(values[i] / scale + 0.5f);
+        const int8_t value = static_cast<int8_t>(
+          std::max(-127.0f, std::min(127.0f, q)));
+        Write<int8_t>(&p, value);
+        decoded = value * scale;
+        break;
+      }
+      default:
+        decoded = static_cast<float>(values[i]);
+        Write<float>(&p, decoded);
+      }
+      if (residual) residual[i] = values[i] - decoded;
+    }
+    while ((p - begin) % 4) Write<int8_t>(&p, 0);
+    delta += count;
+    if (residual) residual += count;
+  }
+  return p - output;
+}
+
+/**
+ * Walk through a compressed delta and check it is well formed. If output is
+ * not NULL, also add the decoded values times alpha into output, so the stream
+ * must be checked with a NULL output first to leave output intact on errors.
+ */
+template <typename Dtype>
+static bool ReadCompressed(const char* input, const size_t size,
+  const int count, const Dtype alpha, Dtype* output) {
+  const char* p = input;
+  const char* end = input + size;
+  if (size < kHeaderSize) return false;
+  if (Read<int32_t>(&p) != kCompressionMagic) return false;
+  const int sparsification = Read<int32_t>(&p);
+  const int quantization = Read<int32_t>(&p);
+  const int blobs = Read<int32_t>(&p);
+  if (sparsification < NO_SPARSIFICATION || sparsification > THRESHOLD) {
+    return false;
+  }
+  if (quantization < FP32 || quantization > INT8 || blobs < 0) return false;
+  const bool sparse = sparsification != NO_SPARSIFICATION;
+  const size_t value_size = ValueSize(static_cast<Quantization>(quantization));
+  int offset = 0;
+  for (int b = 0; b < blobs; b++) {
+    if (p + kBlobHeaderSize > end) return false;
+    const int blob_count = Read<int32_t>(&p);
+    const int stored = Read<int32_t>(&p);
+    const Dtype factor = alpha * Read<float>(&p);
+    if (blob_count < 0 || blob_count > count - offset) return false;
+    if (stored < 0 || stored > blob_count) return false;
+    if (!sparse && stored != blob_count) return false;
+    const size_t index_size = sparse ? stored * sizeof(int32_t) : 0;
+    if (index_size + Pad(stored * value_size) > static_cast<size_t>(end - p)) {
+      return false;
+    }
+    const char* indices = p;
+    const char* values = p + index_size;
+    p = values + Pad(stored * value_size);
+    Dtype* blob_output = output ? output + offset : NULL;
+    for (int k = 0; k < stored; k++) {
+      int i = k;
+      if (sparse) {
+        memcpy(&i, indices + k * sizeof(int32_t), sizeof(int32_t));
+        if (i < 0 || i >= blob_count) return false;
+      }
+      if (!blob_output) continue;
+      float value;
+      const char* v = values + k * value_size;
+      switch (quantization) {
+      case FP16: value = HalfToFloat(Read<uint16_t>(&v)); break;
+      case INT8: value = Read<int8_t>(&v); break;
+      default: value = Read<float>(&v);
+      }
+      blob_output[i] += factor * value;
+    }
+    offset += blob_count;
+  }
+  return offset == count;
+}
+
+template <typename Dtype>
+bool AxpyCompressed(const char* input, const size_t size, const int count,
+  const Dtype alpha, Dtype* output) {
+  // validate the whole stream before output is changed
+  if (!ReadCompressed<Dtype>(input, size, count, alpha, NULL)) return false;
+  return ReadCompressed<Dtype>(input, size, count, alpha, output);
+}
+
+template size_t Compress<float>(const vector<int>& counts, const float* delta,
+  float* residual, const CompressionParameter& param, char* output);
+template size_t Compress<double>(const vector<int>& counts,
+  const double* delta, double* residual, const CompressionParameter& param,
+  char* output);
+template bool AxpyCompressed<float>(const char* input, const size_t size,
+  const int count, const float alpha, float* output);
+template bool AxpyCompressed<double>(const char* input, const size_t size,
+  const int count, const double alpha, double* output);
@@ -0,0 +1,54 @@
+#ifndef CAFFE_JNI_COMPRESSION_HPP_
+#define CAFFE_JNI_COMPRESSION_HPP_
+
+#include <stddef.h>
+
+#include <vector>
+
+// Compressed deltas for network exchange. The format is precision independent
+// and all fields are in native byte order, 4 bytes aligned:
+//   header: int32 magic, int32 sparsification, int32 quantization,
+//           int32 blob count
+//   for each blob:
+//     int32 count, int32 number of stored elements n, float32 scale
+//     n int32 indices into the blob, only if sparsified, in ascending order
+//     n values (float32, float16 or int8), padded to 4 bytes
+// Stored values are multiplied by scale when decompressed.
+
+// Same as the ordinal of DeltaCompression.Sparsification in java
+enum Sparsification { NO_SPARSIFICATION = 0, TOP_K = 1, THRESHOLD = 2 };
+// Same as the ordinal of DeltaCompression.Quantization in java
+enum Quantization { FP32 = 0, FP16 = 1, INT8 = 2 };
+
+/** Options of compression, see DeltaCompression in java. */
+struct CompressionParameter {
+  Sparsification sparsification;
+  // The ratio of elements kept for TOP_K, or the threshold for THRESHOLD
+  double parameter;
+  Quantization quantization;
+};
+
+/**
+ * Compress the delta of blobs with given counts, stored back to back. If
+ * residual is not NULL, it's added to delta before compression, and updated
+ * to the compression error afterwards (error feedback). Returns the number of
+ * bytes written to output, which must hold MaxCompressedSize bytes.
+ */
+template <typename Dtype>
+size_t Compress(const std::vector<int>& counts, const Dtype* delta,
+  Dtype* residual, const CompressionParameter& param, char* output);
+
+/**
+ * output += alpha * decompressed input, where output holds count elements.
+ * Returns false if the input is malformed or does not match count, in which
+ * case output is not changed.
+ */
+template <typename Dtype>
+bool AxpyCompressed(const char* input, const size_t size, const int count,
+  const Dtype alpha, Dtype* output);
+
+/** The maximal size of compressed blobs in bytes. */
+size_t MaxCompressedSize(const std::vector<int>& counts,
+  const CompressionParameter& param);
+
+#endif  // CAFFE_JNI_COMPRESSION_HPP_
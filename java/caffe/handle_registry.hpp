@@ -0,0 +1,84 @@
+#ifndef CAFFE_JNI_HANDLE_REGISTRY_HPP_
+#define CAFFE_JNI_HANDLE_REGISTRY_HPP_
+
+#include <jni.h>
+
+#include <boost/shared_ptr.hpp>
+#include <boost/thread.hpp>
+
+#include <map>
+
+/**
+ * The live native objects handed to java, e.g. solvers and nets. Java holds
+ * ids instead of pointers. Ids are never reused, so a disposed or stale handle
+ * is always detected without touching freed memory. Each JNI call holds a
+ * reference to the object while it runs, so a concurrent dispose (or
+ * finalizer) only deletes the object after the call returns.
+ *
+ * The objects are split into stripes by id, each with its own lock, so calls
+ * on different objects rarely contend.
+ */
+template <typename T>
+class HandleRegistry {
+ public:
+  /** The registry of objects of type T, shared by the whole library. */
+  static HandleRegistry<T>& Instance() {
+    static HandleRegistry<T> instance;
+    return instance;
+  }
+
+  /** Take ownership of object, and return its handle. */
+  jlong Add(T* object) {
+    const jlong handle = __sync_add_and_fetch(&next_, 1);
+    Stripe& stripe = stripes_[handle % kStripes];
+    boost::mutex::scoped_lock lock(stripe.mutex);
+    stripe.objects[handle].reset(object);
+    return handle;
+  }
+
+  /** The object of the handle, or an empty pointer if not alive. */
+  boost::shared_ptr<T> Get(jlong handle) {
+    if (handle <= 0) return boost::shared_ptr<T>();
+    Stripe& stripe = stripes_[handle % kStripes];
+    boost::mutex::scoped_lock lock(stripe.mutex);
+    typename std::map<jlong, boost::shared_ptr<T> >::iterator it =
+      stripe.objects.find(handle);
+    return it == stripe.objects.end() ? boost::shared_ptr<T>() : it->second;
+  }
+
+  /**
+   * Release the handle, the object is deleted once no call uses it. Returns
+   * false if the handle is not alive.
+   */
+  bool Remove(jlong handle) {
+    if (handle <= 0) return false;
+    boost::shared_ptr<T> removed;
+    {
+      Stripe& stripe = stripes_[handle % kStripes];
+      boost::mutex::scoped_lock lock(stripe.mutex);
+      typename std::map<jlong, boost::shared_ptr<T> >::iterator it =
+        stripe.objects.find(handle);
+      if (it == stripe.objects.end()) return false;
+      removed.swap(it->second);
+      stripe.objects.erase(it);
+    }
+    // the object may be deleted here, outside of the lock
+    return true;
+  }
+
+ private:
+  static const int kStripes = 16;
+
+  struct Stripe {
+    boost::mutex mutex;
+    std::map<jlong, boost::shared_ptr<T> > objects;
+  };
+
+  HandleRegistry() : next_(0) {}
+
+  Stripe stripes_[kStripes];
+  // The last handle given out, only accessed with atomic builtins
+  jlong next_;
+};
+
+#endif  // CAFFE_JNI_HANDLE_REGISTRY_HPP_
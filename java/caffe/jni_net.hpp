@@ -0,0 +1,139 @@
+#ifndef CAFFE_JNI_NET_HPP_
+#define CAFFE_JNI_NET_HPP_
+
+#include <jni.h>
+
+#include <vector>
+
+#include "caffe/net.hpp"
+#include "caffe/proto/caffe.pb.h"
+#include "caffe/util/math_functions.hpp"
+#include "jni_solver.hpp"
+
+/**
+ * The precision independent interface of JNINet, see JNISolverBase. The
+ * handle passed to java identifies an instance of this class in the
+ * HandleRegistry.
+ */
+class JNINetBase {
+ public:
+  JNINetBase() {}
+  virtual ~JNINetBase() {}
+
+  /** Register a new net, and return the handle for java. */
+  static jlong ToHandle(JNINetBase* net) {
+    return HandleRegistry<JNINetBase>::Instance().Add(net);
+  }
+
+  /**
+   * Convert a handle from java to net, which is alive until the returned
+   * pointer is released. Throws IllegalStateException in java and returns an
+   * empty pointer if the handle is not a live net.
+   */
+  static shared_ptr<JNINetBase> FromHandle(JNIEnv* env, jlong handle) {
+    shared_ptr<JNINetBase> net =
+      HandleRegistry<JNINetBase>::Instance().Get(handle);
+    if (!net) {
+      jclass exception = env->FindClass("java/lang/IllegalStateException");
+      env->ThrowNew(exception, "Invalid net handle!");
+    }
+    return net;
+  }
+
+  /** Release the handle, the net is deleted once no call uses it. */
+  static void Release(jlong handle) {
+    HandleRegistry<JNINetBase>::Instance().Remove(handle);
+  }
+
+  virtual bool doublePrecision() = 0;
+  virtual bool shareWeights(JNISolverBase* solver) = 0;
+  virtual void setWeight(const NetParameter& weight) = 0;
+  virtual void getShape(bool input, vector<int>* shape) = 0;
+  virtual int forward(const void* input, int input_count, void* output,
+    int output_capacity) = 0;
+
+ private:
+  DISABLE_COPY_AND_ASSIGN(JNINetBase);
+};
+
+/**
+ * The JNI wrapper for caffe net in TEST phase, for inference. The first input
+ * blob of the net is fed from java, and the first output blob is copied back.
+ */
+template <typename Dtype>
+class JNINet : public JNINetBase {
+ public:
+  explicit JNINet(const NetParameter& param) {
+    NetParameter test_param(param);
+    test_param.mutable_state()->set_phase(caffe::TEST);
+    net = new caffe::Net<Dtype>(test_param);
+  }
+  virtual ~JNINet() { delete net; }
+
+  virtual bool doublePrecision() { return sizeof(Dtype) == sizeof(double); }
+
+  /**
+   * Share weights with the training net of the solver, so the net always uses
+   * the latest weights without any copy. Returns false if the solver has a
+   * different precision.
+   */
+  inline bool shareWeights(JNISolverBase* solver) {
+    JNISolver<Dtype>* typed = dynamic_cast<JNISolver<Dtype>*>(solver);
+    if (!typed) return false;
+    net->ShareTrainedLayersWith(typed->net());
+    return true;
+  }
+
+  inline void setWeight(const NetParameter& weight) {
+    net->CopyTrainedLayersFrom(weight);
+  }
+
+  /** The shape of the first input (or output) blob, empty if none. */
+  inline void getShape(bool input, vector<int>* shape) {
+    const vector<Blob<Dtype>*>& blobs =
+      input ? net->input_blobs() : net->output_blobs();
+    if (blobs.empty()) {
+      shape->clear();
+    } else {
+      *shape = blobs[0]->shape();
+    }
+  }
+
+  /**
+   * Run forward on a batch of input_count elements, the batch size is derived
+   * from the shape of the input blob and the net is reshaped if batch size
+   * changes. Returns the number of output elements, or -1 if input_count is not
+   * a multiple of the sample size (or the net has no input or output blob), or
+   * -2 if output is too small, in which case forward is not run.
+   */
+  inline int forward(const void* input, int input_count, void* output,
+    int output_capacity) {
+    if (net->input_blobs().empty() || net->output_blobs().empty()) return -1;
+    Blob<Dtype>* input_blob = net->input_blobs()[0];
+    const int sample = input_blob->count(1);
+    if (sample == 0 || input_count % sample != 0) return -1;
+    const int num = input_count / sample;
+    if (input_blob->shape(0) != num) {
+      vector<int> shape = input_blob->shape();
+      shape[0] = num;
+      input_blob->Reshape(shape);
+      net->Reshape();
+    }
+    // output shape is known after reshape, check it before the forward pass
+    const Blob<Dtype>* output_blob = net->output_blobs()[0];
+    if (output_blob->count() > output_capacity) return -2;
+    caffe::caffe_copy(input_count, static_cast<const Dtype*>(input),
+      input_blob->mutable_cpu_data());
+    net->ForwardPrefilled();
+    caffe::caffe_copy(output_blob->count(), output_blob->cpu_data(),
+      static_cast<Dtype*>(output));
+    return output_blob->count();
+  }
+
+ protected:
+  caffe::Net<Dtype>* net;
+
+  DISABLE_COPY_AND_ASSIGN(JNINet);
+};
+
+#endif  // CAFFE_JNI_NET_HPP_
@@ -1,21 +1,151 @@
 #ifndef CAFFE_JNI_SOLVER_HPP_
 #define CAFFE_JNI_SOLVER_HPP_
 
+#include <jni.h>
+#include <stdint.h>
+#include <string.h>
+
+#include <algorithm>
+#include <set>
+#include <sstream>
 #include <vector>
 
 #include "caffe/data_layers.hpp"
 #include "caffe/proto/caffe.pb.h"
 #include "caffe/solver.hpp"
+#include "caffe/util/math_functions.hpp"
+#include "compression.hpp"
+#include "handle_registry.hpp"
+#include "metrics.hpp"
 
 using boost::dynamic_pointer_cast;
 using boost::shared_ptr;
+using caffe::Blob;
+using caffe::BlobShape;
 using caffe::DataLayer;
 using caffe::Layer;
+using caffe::LayerParameter;
+using caffe::MemoryDataLayer;
 using caffe::NetParameter;
+using caffe::SGDSolver;
 using caffe::Solver;
 using caffe::SolverParameter;
+using caffe::string;
 using caffe::vector;
 
+/**
+ * Notified by JNISolverBase::trainExport when the gradients of a layer are
+ * final and copied into the flat buffer.
+ */
+class LayerCallback {
+ public:
+  virtual ~LayerCallback() {}
+  /**
+   * The gradients of the layer are at [offset, offset + count) of the flat
+   * buffer, in number of elements. Returns false to abort the backward pass.
+   */
+  virtual bool operator()(int layer, int offset, int count) = 0;
+};
+
+/**
+ * The header of solver state snapshots and flat weight files. Both are flat
+ * binaries in native byte order, which can be memory mapped:
+ *   the header
+ *   int32 count of each parameter blob, then of each history blob
+ *   padding to 8 bytes
+ *   data of all parameter blobs, same as the flat buffer of weights
+ *   data of all history blobs (e.g. momentum), only in state snapshots
+ */
+struct StateHeader {
+  int32_t magic;
+  int32_t element_size;
+  int32_t iter;
+  int32_t current_step;
+  int32_t blob_count;
+  int32_t history_count;
+};
+
+/**
+ * The precision independent interface of JNISolver. The handle passed to java
+ * identifies an instance of this class in the HandleRegistry, so each JNI call
+ * dispatches to the solver of the right precision by virtual functions. Flat
+ * buffers are passed as void pointers of the solver's precision.
+ */
+class JNISolverBase {
+ public:
+  JNISolverBase() {}
+  virtual ~JNISolverBase() {}
+
+  /** Register a new solver, and return the handle for java. */
+  static jlong ToHandle(JNISolverBase* solver) {
+    return HandleRegistry<JNISolverBase>::Instance().Add(solver);
+  }
+
+  /**
+   * Convert a handle from java to solver, which is alive until the returned
+   * pointer is released. Throws IllegalStateException in java and returns an
+   * empty pointer if the handle is not a live solver.
+   */
+  static shared_ptr<JNISolverBase> FromHandle(JNIEnv* env, jlong handle) {
+    shared_ptr<JNISolverBase> solver =
+      HandleRegistry<JNISolverBase>::Instance().Get(handle);
+    if (!solver) {
+      jclass exception = env->FindClass("java/lang/IllegalStateException");
+      env->ThrowNew(exception, "Invalid solver handle!");
+    }
+    return solver;
+  }
+
+  /** Release the handle, the solver is deleted once no call uses it. */
+  static void Release(jlong handle) {
+    HandleRegistry<JNISolverBase>::Instance().Remove(handle);
+  }
+
+  virtual bool doublePrecision() = 0;
+  virtual double train(int iteration, bool update_diff) = 0;
+  virtual double test(int iteration) = 0;
+  virtual bool testOutputs(int iteration, int net_id, vector<double>* sums) = 0;
+  virtual bool getTestOutputNames(int net_id, vector<string>* names) = 0;
+  virtual void setIteration(int iteration) = 0;
+  virtual void setBatchSize(int batch_size) = 0;
+  virtual void updateParameter(const SolverParameter& param) = 0;
+  virtual void getWeight(NetParameter* weight, bool diff) = 0;
+  virtual void getLayers(const std::set<string>& names, bool diff,
+    NetParameter* weight) = 0;
+  virtual void setVersionTracking(bool enabled) = 0;
+  virtual int64_t getVersion() = 0;
+  virtual void getWeightSince(int64_t version, NetParameter* weight) = 0;
+  virtual void setWeight(const NetParameter& weight) = 0;
+  virtual void mergeDelta(const NetParameter& delta, NetParameter* weight) = 0;
+  virtual void getLayout(NetParameter* layout) = 0;
+  virtual void getWeightBuffer(void* buffer, bool diff) = 0;
+  virtual void setWeightBuffer(const void* buffer, bool diff) = 0;
+  virtual void mergeDeltaBuffer(const void* delta, void* weight) = 0;
+  virtual void mergeSliceBuffer(const vector<int>& blobs, const void* delta,
+    void* weight) = 0;
+  virtual double trainExport(void* delta, LayerCallback* callback) = 0;
+  virtual void getBlobCounts(vector<int>* counts) = 0;
+  virtual size_t getCompressedDelta(const CompressionParameter& param,
+    bool error_feedback, char* output) = 0;
+  virtual void resetResidual() = 0;
+  virtual bool mergeCompressedDelta(const char* input, size_t size,
+    void* weight) = 0;
+  virtual size_t getStateSize(bool history) = 0;
+  virtual void snapshotState(char* output, bool history) = 0;
+  virtual bool restoreState(const char* input, size_t size,
+    bool weights_only) = 0;
+  virtual bool getMemoryDataShape(vector<int>* shape) = 0;
+  virtual bool setMemoryData(void* data, void* labels, int n) = 0;
+  virtual void getMetrics(vector<int64_t>* metrics) = 0;
+  virtual void getLayerNames(vector<string>* names) = 0;
+  virtual void resetMetrics() = 0;
+  virtual JNISolverBase* clone(bool history) = 0;
+  virtual int64_t getMemoryFootprint() = 0;
+
+ private:
+  DISABLE_COPY_AND_ASSIGN(JNISolverBase);
+};
+
 /**
  * The JNI wrapper for caffe solver. Marked as friend class of solver to access
  * some protected fields. All public functions correspond to JNI interface.
@@ -24,23 +154,114 @@ using caffe::vector;
  * providing options to choose from different float precisions.
  */
 template <typename Dtype>
-class JNISolver {
+class JNISolver : public JNISolverBase {
  public:
-  explicit JNISolver(const SolverParameter& solver_param) {
+  explicit JNISolver(const SolverParameter& solver_param)
+    : version_tracking_(false), version_(0), train_iterations_(0),
+    train_nanos_(0), iteration_histogram_(kHistogramBuckets, 0) {
     solver = caffe::GetSolver<Dtype>(solver_param);
     // share weights of all test layers with trainig layers
     for (int i = 0; i < solver->test_nets().size(); ++i) {
       solver->test_nets()[i]->ShareTrainedLayersWith(solver->net().get());
     }
+    const vector<shared_ptr<Layer<Dtype> > >& layers = solver->net_->layers();
+    versions_.resize(layers.size());
+    for (int i = 0; i < layers.size(); i++) {
+      versions_[i].resize(layers[i]->blobs().size(), 0);
+    }
+  }
+  virtual ~JNISolver() { delete solver; }
+
+  virtual bool doublePrecision() { return sizeof(Dtype) == sizeof(double); }
+
+  /** The training net of the solver. */
+  inline caffe::Net<Dtype>* net() { return solver->net().get(); }
+
+  inline double train(int iteration, bool update_diff)  {
+    // follow the runtime switch of metrics
+    const bool metrics = MetricsEnabled();
+    if (net()->layer_timing() != metrics) net()->set_layer_timing(metrics);
+    const int64_t start = metrics ? NowNanos() : 0;
+    double loss = 0;
+    if (!update_diff || !version_tracking_) {
+      loss = solver->Step(iteration, true, update_diff);
+      if (update_diff) StampAll();
+    } else {
+      // step one iteration at a time to find updated blobs of each iteration
+      for (int i = 0; i < iteration; i++) {
+        loss += solver->Step(1, true, true);
+        StampUpdated();
+      }
+      loss /= iteration;
+    }
+    if (metrics) {
+      const int64_t nanos = NowNanos() - start;
+      train_iterations_ += iteration;
+      train_nanos_ += nanos;
+      // iterations of a call are counted with their average latency
+      iteration_histogram_[LatencyBucket(nanos / iteration)] += iteration;
+    }
+    return loss;
   }
-  ~JNISolver() { delete solver; }
 
-  inline Dtype train(int iteration, bool update_diff)  {
-    return solver->Step(iteration, true, update_diff);
+  /** The mean of the first output of test net 0 over given iterations. */
+  inline double test(int iteration) {
+    vector<double> sums;
+    if (!testOutputs(iteration, 0, &sums) || sums.empty()) return 0;
+    return sums[0] / iteration;
   }
 
-  inline Dtype test(int iteration) {
-    return solver->Test();
+  /**
+   * Run the test net for exactly given iterations, and sum up each element of
+   * all output blobs over iterations. Sums instead of means are returned, so
+   * results of several shards can be merged. Returns false if no such net.
+   */
+  inline bool testOutputs(int iteration, int net_id, vector<double>* sums) {
+    if (net_id < 0 || net_id >= solver->test_nets_.size()) return false;
+    caffe::Net<Dtype>* test_net = solver->test_nets_[net_id].get();
+    test_net->ShareTrainedLayersWith(solver->net_.get());
+    vector<Blob<Dtype>*> bottom_vec;
+    sums->clear();
+    for (int i = 0; i < iteration; i++) {
+      Dtype iter_loss;
+      const vector<Blob<Dtype>*>& result =
+        test_net->Forward(bottom_vec, &iter_loss);
+      int index = 0;
+      for (int j = 0; j < result.size(); j++) {
+        const Dtype* result_vec = result[j]->cpu_data();
+        for (int k = 0; k < result[j]->count(); k++, index++) {
+          if (i == 0) sums->push_back(0);
+          (*sums)[index] += result_vec[k];
+        }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * The name of each element returned by testOutputs, i.e. the blob name, or
+   * blob name followed by "#" and element index for blobs with more than one
+   * element. Returns false if no such net.
+   */
+  inline bool getTestOutputNames(int net_id, vector<string>* names) {
+    if (net_id < 0 || net_id >= solver->test_nets_.size()) return false;
+    caffe::Net<Dtype>* test_net = solver->test_nets_[net_id].get();
+    const vector<Blob<Dtype>*>& outputs = test_net->output_blobs();
+    names->clear();
+    for (int j = 0; j < outputs.size(); j++) {
+      const string& name =
+        test_net->blob_names()[test_net->output_blob_indices()[j]];
+      if (outputs[j]->count() == 1) {
+        names->push_back(name);
+        continue;
+      }
+      for (int k = 0; k < outputs[j]->count(); k++) {
+        std::ostringstream element;
+        element << name << "#" << k;
+        names->push_back(element.str());
+      }
+    }
+    return true;
   }
 
   inline void setIteration(int iteration) {
@@ -85,8 +306,36 @@ class JNISolver {
     solver->net_->ToProto(weight, diff);
   }
 
+  /**
+   * Same as getWeight, but only layers with the given names are serialized.
+   * Other layers are skipped entirely.
+   */
+  inline void getLayers(const std::set<string>& names, bool diff,
+    NetParameter* weight) {
+    const vector<shared_ptr<Layer<Dtype> > >& layers = solver->net_->layers();
+    const vector<string>& layer_names = solver->net_->layer_names();
+    weight->set_name(solver->net_->name());
+    for (int i = 0; i < layers.size(); i++) {
+      if (names.count(layer_names[i])) {
+        layers[i]->ToProto(weight->add_layer(), diff);
+      }
+    }
+  }
+
   inline void setWeight(const NetParameter& weight) {
     solver->net_->CopyTrainedLayersFrom(weight);
+    // only layers in weight are copied
+    std::set<string> names;
+    for (int i = 0; i < weight.layer_size(); i++) {
+      names.insert(weight.layer(i).name());
+    }
+    const vector<string>& layer_names = solver->net_->layer_names();
+    ++version_;
+    for (int i = 0; i < layer_names.size(); i++) {
+      if (names.count(layer_names[i])) {
+        versions_[i].assign(versions_[i].size(), version_);
+      }
+    }
   }
 
   inline void mergeDelta(const NetParameter& delta, NetParameter* weight) {
@@ -94,12 +343,578 @@ class JNISolver {
     solver->net()->CopyTrainedLayersFrom(delta);
     // Update weights
     solver->Step(1, false, true);
+    StampUpdated();
     // Get weights
     solver->net()->ToProto(weight);
   }
 
+  /**
+   * Describe the parameter blobs of the net in a flat buffer: the layer names
+   * and blob shapes, without any data. Blobs are stored back to back in the
+   * order of layers and blobs, same as Net::ToProto.
+   */
+  inline void getLayout(NetParameter* layout) {
+    const vector<shared_ptr<Layer<Dtype> > >& layers = solver->net_->layers();
+    const vector<string>& names = solver->net_->layer_names();
+    for (int i = 0; i < layers.size(); i++) {
+      LayerParameter* layer = layout->add_layer();
+      layer->set_name(names[i]);
+      const vector<shared_ptr<Blob<Dtype> > >& blobs = layers[i]->blobs();
+      for (int j = 0; j < blobs.size(); j++) {
+        BlobShape* shape = layer->add_blobs()->mutable_shape();
+        for (int k = 0; k < blobs[j]->num_axes(); k++) {
+          shape->add_dim(blobs[j]->shape(k));
+        }
+      }
+    }
+  }
+
+  /** Copy data (or diff) of all parameter blobs into a flat buffer. */
+  inline void getWeightBuffer(void* flat, bool diff) {
+    Dtype* buffer = static_cast<Dtype*>(flat);
+    const vector<shared_ptr<Layer<Dtype> > >& layers = solver->net_->layers();
+    for (int i = 0; i < layers.size(); i++) {
+      const vector<shared_ptr<Blob<Dtype> > >& blobs = layers[i]->blobs();
+      for (int j = 0; j < blobs.size(); j++) {
+        const int count = blobs[j]->count();
+        caffe::caffe_copy(count,
+          diff ? blobs[j]->cpu_diff() : blobs[j]->cpu_data(), buffer);
+        buffer += count;
+      }
+    }
+  }
+
+  /** Copy data (or diff) of all parameter blobs from a flat buffer. */
+  inline void setWeightBuffer(const void* flat, bool diff) {
+    const Dtype* buffer = static_cast<const Dtype*>(flat);
+    const vector<shared_ptr<Layer<Dtype> > >& layers = solver->net_->layers();
+    for (int i = 0; i < layers.size(); i++) {
+      const vector<shared_ptr<Blob<Dtype> > >& blobs = layers[i]->blobs();
+      for (int j = 0; j < blobs.size(); j++) {
+        const int count = blobs[j]->count();
+        caffe::caffe_copy(count, buffer,
+          diff ? blobs[j]->mutable_cpu_diff() : blobs[j]->mutable_cpu_data());
+        buffer += count;
+      }
+    }
+    if (!diff) StampAll();
+  }
+
+  /** Same as mergeDelta, but use flat buffers. weight can be NULL. */
+  inline void mergeDeltaBuffer(const void* delta, void* weight) {
+    // Set delta
+    setWeightBuffer(delta, true);
+    // Update weights
+    solver->Step(1, false, true);
+    StampUpdated();
+    // Get weights
+    if (weight) getWeightBuffer(weight, false);
+  }
+
+  /**
+   * Same as mergeDeltaBuffer, but only for the given parameter blobs, indexed
+   * in the order of the flat buffer and sorted. delta and weight hold only the
+   * given blobs back to back. Other blobs and their history are not touched,
+   * but the iteration still advances. Snapshot is not triggered. weight can be
+   * NULL.
+   */
+  inline void mergeSliceBuffer(const vector<int>& blobs, const void* delta,
+    void* weight) {
+    // params of the net are in the same order as the flat buffer
+    const vector<shared_ptr<Blob<Dtype> > >& params = solver->net_->params();
+    const vector<int>& learnable_ids = solver->net_->learnable_param_ids();
+    // Set delta, a shared blob is updated once through its owner
+    const Dtype* input = static_cast<const Dtype*>(delta);
+    std::set<int> param_ids;
+    for (int i = 0; i < blobs.size(); i++) {
+      Blob<Dtype>* blob = params[blobs[i]].get();
+      caffe::caffe_copy(blob->count(), input, blob->mutable_cpu_diff());
+      input += blob->count();
+      param_ids.insert(learnable_ids[blobs[i]]);
+    }
+    // Update weights
+    solver->ApplyUpdate(vector<int>(param_ids.begin(), param_ids.end()));
+    ++solver->iter_;
+    if (version_tracking_) {
+      const vector<pair<int, int> >& indices =
+        solver->net_->param_layer_indices();
+      ++version_;
+      for (int i = 0; i < blobs.size(); i++) {
+        versions_[indices[blobs[i]].first][indices[blobs[i]].second] = version_;
+      }
+    } else {
+      StampAll();
+    }
+    // Get weights
+    if (!weight) return;
+    Dtype* output = static_cast<Dtype*>(weight);
+    for (int i = 0; i < blobs.size(); i++) {
+      const Blob<Dtype>* blob = params[blobs[i]].get();
+      caffe::caffe_copy(blob->count(), blob->cpu_data(), output);
+      output += blob->count();
+    }
+  }
+
+  /**
+   * Same as train(1, false) followed by getWeightBuffer(delta, true), but runs
+   * the backward pass layer by layer. Gradients of each layer are copied into
+   * the flat buffer as soon as the backward of the layer finishes, then the
+   * callback is notified, so early (i.e. top) layers can be consumed while
+   * later layers are still computing. Test and snapshot are not triggered.
+   * Shared parameters accumulate the diffs of all layers sharing them, so a
+   * layer sharing parameters with a lower layer is exported after the backward
+   * of the lowest such layer, when its gradients are final.
+   */
+  inline double trainExport(void* flat, LayerCallback* callback) {
+    Dtype* buffer = static_cast<Dtype*>(flat);
+    const shared_ptr<caffe::Net<Dtype> >& net = solver->net_;
+    const vector<shared_ptr<Layer<Dtype> > >& layers = net->layers();
+    // offset of each layer in the flat buffer
+    vector<int> offsets(layers.size() + 1, 0);
+    for (int i = 0; i < layers.size(); i++) {
+      offsets[i + 1] = offsets[i];
+      const vector<shared_ptr<Blob<Dtype> > >& blobs = layers[i]->blobs();
+      for (int j = 0; j < blobs.size(); j++) {
+        offsets[i + 1] += blobs[j]->count();
+      }
+    }
+    // the layers to export after the backward of each layer
+    vector<int> export_at(layers.size());
+    for (int i = 0; i < layers.size(); i++) export_at[i] = i;
+    const vector<int>& owners = net->param_owners();
+    const vector<std::pair<int, int> >& param_layers =
+      net->param_layer_indices();
+    for (int i = 0; i < owners.size(); i++) {
+      if (owners[i] < 0) continue;
+      const int layer = param_layers[i].first;
+      export_at[layer] =
+        std::min(export_at[layer], param_layers[owners[i]].first);
+    }
+    vector<vector<int> > exports(layers.size());
+    for (int i = layers.size() - 1; i >= 0; i--) {
+      exports[export_at[i]].push_back(i);
+    }
+    vector<Blob<Dtype>*> bottom_vec;
+    net->ClearParamDiffs();
+    // gradients are only final in the last pass of iter_size
+    const int iter_size = solver->param_.iter_size();
+    Dtype loss = 0;
+    for (int i = 0; i < iter_size - 1; i++) {
+      loss += net->ForwardBackward(bottom_vec);
+    }
+    Dtype last_loss = 0;
+    net->Forward(bottom_vec, &last_loss);
+    loss += last_loss;
+    for (int i = layers.size() - 1; i >= 0; i--) {
+      net->BackwardFromTo(i, i);
+      for (int k = 0; k < exports[i].size(); k++) {
+        const int layer = exports[i][k];
+        const vector<shared_ptr<Blob<Dtype> > >& blobs =
+          layers[layer]->blobs();
+        if (blobs.empty()) continue;
+        Dtype* layer_buffer = buffer + offsets[layer];
+        for (int j = 0; j < blobs.size(); j++) {
+          caffe::caffe_copy(blobs[j]->count(), blobs[j]->cpu_diff(),
+            layer_buffer);
+          layer_buffer += blobs[j]->count();
+        }
+        const int count = offsets[layer + 1] - offsets[layer];
+        if (callback && !(*callback)(layer, offsets[layer], count)) {
+          return loss / iter_size;
+        }
+      }
+    }
+    // same as Step, iter_ is increased even without update
+    ++solver->iter_;
+    return loss / iter_size;
+  }
+
+  /**
+   * Whether updates stamp only the blobs they changed. Finding changed blobs
+   * sums the diff of every blob after every iteration (a device sync on GPU),
+   * and train steps one iteration at a time, so it's off by default and every
+   * update stamps all blobs.
+   */
+  inline void setVersionTracking(bool enabled) {
+    version_tracking_ = enabled;
+  }
+
+  /**
+   * The version of weights, increased by every operation that changes weights.
+   * Each blob is stamped with the version of the last operation changing it.
+   */
+  inline int64_t getVersion() {
+    return version_;
+  }
+
+  /**
+   * Same as getWeight, but only layers with any blob changed after the given
+   * version are serialized, so the result is a patch for setWeight.
+   */
+  inline void getWeightSince(int64_t version, NetParameter* weight) {
+    const vector<shared_ptr<Layer<Dtype> > >& layers = solver->net_->layers();
+    weight->set_name(solver->net_->name());
+    for (int i = 0; i < layers.size(); i++) {
+      for (int j = 0; j < versions_[i].size(); j++) {
+        if (versions_[i][j] > version) {
+          layers[i]->ToProto(weight->add_layer());
+          break;
+        }
+      }
+    }
+  }
+
+  /** The number of elements of all parameter blobs, in flat buffer order. */
+  inline void getBlobCounts(vector<int>* counts) {
+    counts->clear();
+    const vector<shared_ptr<Layer<Dtype> > >& layers = solver->net_->layers();
+    for (int i = 0; i < layers.size(); i++) {
+      const vector<shared_ptr<Blob<Dtype> > >& blobs = layers[i]->blobs();
+      for (int j = 0; j < blobs.size(); j++) {
+        counts->push_back(blobs[j]->count());
+      }
+    }
+  }
+
+  /**
+   * Compress the current diffs into output, see compression.hpp. With error
+   * feedback, the compression error is kept in the solver and added to the
+   * diffs of next compression. Returns the compressed size in bytes.
+   */
+  inline size_t getCompressedDelta(const CompressionParameter& param,
+    bool error_feedback, char* output) {
+    vector<int> counts;
+    getBlobCounts(&counts);
+    delta_.resize(TotalCount(counts));
+    Dtype* delta = delta_.empty() ? NULL : &delta_[0];
+    getWeightBuffer(delta, true);
+    Dtype* residual = NULL;
+    if (error_feedback) {
+      residual_.resize(delta_.size(), 0);
+      residual = residual_.empty() ? NULL : &residual_[0];
+    }
+    return Compress<Dtype>(counts, delta, residual, param, output);
+  }
+
+  /** Clear the accumulated compression error. */
+  inline void resetResidual() {
+    residual_.clear();
+  }
+
+  /**
+   * Same as mergeDeltaBuffer, but the delta is compressed. Returns false
+   * without any change if the input is malformed. weight can be NULL.
+   */
+  inline bool mergeCompressedDelta(const char* input, size_t size,
+    void* weight) {
+    vector<int> counts;
+    getBlobCounts(&counts);
+    delta_.assign(TotalCount(counts), 0);
+    Dtype* delta = delta_.empty() ? NULL : &delta_[0];
+    if (!AxpyCompressed<Dtype>(input, size, delta_.size(), Dtype(1), delta)) {
+      return false;
+    }
+    mergeDeltaBuffer(delta, weight);
+    return true;
+  }
+
+  /**
+   * The size of the state snapshot in bytes. Without history, it's the size of
+   * the flat weight file.
+   */
+  inline size_t getStateSize(bool history) {
+    vector<int> counts;
+    getStateCounts(history, &counts);
+    return StateDataOffset(counts.size()) + TotalCount(counts) * sizeof(Dtype);
+  }
+
+  /**
+   * Write weights, history and iteration of the solver into output, which must
+   * hold getStateSize(history) bytes. Without history, a flat weight file is
+   * written. No protobuf is involved.
+   */
+  inline void snapshotState(char* output, bool history) {
+    vector<int> counts;
+    getStateCounts(history, &counts);
+    const int history_count = history ? History().size() : 0;
+    StateHeader header;
+    header.magic = history ? kStateMagic : kWeightMagic;
+    header.element_size = sizeof(Dtype);
+    header.iter = solver->iter_;
+    header.current_step = solver->current_step_;
+    header.history_count = history_count;
+    header.blob_count = counts.size() - history_count;
+    memcpy(output, &header, sizeof(header));
+    if (!counts.empty()) {
+      memcpy(output + sizeof(header), &counts[0], counts.size() * sizeof(int));
+    }
+    Dtype* data = reinterpret_cast<Dtype*>(
+      output + StateDataOffset(counts.size()));
+    getWeightBuffer(data, false);
+    if (!history) return;
+    data += TotalCount(counts) - HistoryCount();
+    const vector<shared_ptr<Blob<Dtype> > >& history_blobs = History();
+    for (int i = 0; i < history_blobs.size(); i++) {
+      caffe::caffe_copy(history_blobs[i]->count(), history_blobs[i]->cpu_data(),
+        data);
+      data += history_blobs[i]->count();
+    }
+  }
+
+  /**
+   * Restore the solver from a state snapshot or a flat weight file of size
+   * bytes. If weights_only, only weights are restored, and both kinds of file
+   * are accepted. Returns false without any change if the file does not match
+   * the solver.
+   */
+  inline bool restoreState(const char* input, size_t size,
+    bool weights_only) {
+    if (size < sizeof(StateHeader)) return false;
+    StateHeader header;
+    memcpy(&header, input, sizeof(header));
+    const bool history = header.magic == kStateMagic;
+    if (!history && (header.magic != kWeightMagic || !weights_only)) {
+      return false;
+    }
+    vector<int> counts;
+    getStateCounts(history, &counts);
+    const int history_count = history ? History().size() : 0;
+    if (header.element_size != sizeof(Dtype) ||
+      header.history_count != history_count ||
+      header.blob_count + header.history_count != counts.size() ||
+      size != getStateSize(history)) {
+      return false;
+    }
+    if (!counts.empty() && memcmp(input + sizeof(header), &counts[0],
+      counts.size() * sizeof(int)) != 0) {
+      return false;
+    }
+    const Dtype* data = reinterpret_cast<const Dtype*>(
+      input + StateDataOffset(counts.size()));
+    setWeightBuffer(data, false);
+    if (weights_only) return true;
+    data += TotalCount(counts) - HistoryCount();
+    const vector<shared_ptr<Blob<Dtype> > >& history_blobs = History();
+    for (int i = 0; i < history_blobs.size(); i++) {
+      caffe::caffe_copy(history_blobs[i]->count(), data,
+        history_blobs[i]->mutable_cpu_data());
+      data += history_blobs[i]->count();
+    }
+    solver->iter_ = header.iter;
+    solver->current_step_ = header.current_step;
+    return true;
+  }
+
+  /**
+   * A new solver with the same parameters, weights, iteration and versions,
+   * and history if required. The parameters already parsed by this solver are
+   * reused, and blobs are copied in memory, so no protobuf is serialized or
+   * parsed. Layers are still set up by caffe, e.g. data layers open the source.
+   */
+  inline JNISolverBase* clone(bool history) {
+    JNISolver<Dtype>* copy = new JNISolver<Dtype>(solver->param_);
+    const vector<shared_ptr<Layer<Dtype> > >& layers = solver->net_->layers();
+    const vector<shared_ptr<Layer<Dtype> > >& copy_layers =
+      copy->solver->net_->layers();
+    for (int i = 0; i < layers.size(); i++) {
+      const vector<shared_ptr<Blob<Dtype> > >& blobs = layers[i]->blobs();
+      for (int j = 0; j < blobs.size(); j++) {
+        copy_layers[i]->blobs()[j]->CopyFrom(*blobs[j]);
+      }
+    }
+    if (history) {
+      const vector<shared_ptr<Blob<Dtype> > >& history_blobs = History();
+      const vector<shared_ptr<Blob<Dtype> > >& copy_history = copy->History();
+      for (int i = 0; i < history_blobs.size(); i++) {
+        copy_history[i]->CopyFrom(*history_blobs[i]);
+      }
+    }
+    copy->solver->iter_ = solver->iter_;
+    copy->solver->current_step_ = solver->current_step_;
+    copy->version_tracking_ = version_tracking_;
+    copy->version_ = version_;
+    copy->versions_ = versions_;
+    return copy;
+  }
+
+  /**
+   * The shape of data consumed by each train iteration from the memory data
+   * layer, i.e. batch_size * iter_size samples of channels * height * width.
+   * Returns false if the training net has no memory data layer.
+   */
+  inline bool getMemoryDataShape(vector<int>* shape) {
+    MemoryDataLayer<Dtype>* layer = MemoryData();
+    if (!layer) return false;
+    shape->clear();
+    shape->push_back(layer->batch_size() * solver->param_.iter_size());
+    shape->push_back(layer->channels());
+    shape->push_back(layer->height());
+    shape->push_back(layer->width());
+    return true;
+  }
+
+  /**
+   * Point the memory data layer to n samples in the given memory without any
+   * copy. The memory must be alive until the samples are consumed. Returns
+   * false if there is no memory data layer or n is not a multiple of batch.
+   */
+  inline bool setMemoryData(void* data, void* labels, int n) {
+    MemoryDataLayer<Dtype>* layer = MemoryData();
+    if (!layer || n <= 0 || n % layer->batch_size() != 0) return false;
+    layer->Reset(static_cast<Dtype*>(data), static_cast<Dtype*>(labels), n);
+    return true;
+  }
+
+  /**
+   * Metrics of the solver since last reset: train iterations, train time,
+   * then forward time of each layer, backward time of each layer, and the
+   * histogram of iteration latencies (see kHistogramBuckets), all times in
+   * nanoseconds.
+   */
+  inline void getMetrics(vector<int64_t>* metrics) {
+    metrics->clear();
+    metrics->push_back(train_iterations_);
+    metrics->push_back(train_nanos_);
+    const vector<double>& forward = net()->layer_forward_time();
+    const vector<double>& backward = net()->layer_backward_time();
+    const int layers = net()->layers().size();
+    // layer times are not allocated until timing is enabled
+    for (int i = 0; i < layers; i++) {
+      metrics->push_back(i < forward.size() ? forward[i] * 1000 : 0);
+    }
+    for (int i = 0; i < layers; i++) {
+      metrics->push_back(i < backward.size() ? backward[i] * 1000 : 0);
+    }
+    metrics->insert(metrics->end(), iteration_histogram_.begin(),
+      iteration_histogram_.end());
+  }
+
+  inline void getLayerNames(vector<string>* names) {
+    *names = net()->layer_names();
+  }
+
+  inline void resetMetrics() {
+    train_iterations_ = 0;
+    train_nanos_ = 0;
+    iteration_histogram_.assign(kHistogramBuckets, 0);
+    net()->ResetLayerTiming();
+  }
+
+  /**
+   * The bytes of data and diff of all blobs of the training net, including
+   * parameters, plus the history. Reflects the current batch size once the net
+   * has been reshaped by a forward pass. Test nets are not counted.
+   */
+  inline int64_t getMemoryFootprint() {
+    int64_t count = HistoryCount();
+    const vector<shared_ptr<Blob<Dtype> > >& blobs = net()->blobs();
+    for (int i = 0; i < blobs.size(); i++) count += 2 * blobs[i]->count();
+    const vector<shared_ptr<Blob<Dtype> > >& params = net()->params();
+    for (int i = 0; i < params.size(); i++) {
+      // shared parameters are counted once, by their owners
+      if (net()->param_owners()[i] < 0) count += 2 * params[i]->count();
+    }
+    return count * sizeof(Dtype);
+  }
+
  protected:
+  // Marks the start of a state snapshot and a flat weight file
+  static const int32_t kStateMagic = 0x4a4e5353;  // "JNSS"
+  static const int32_t kWeightMagic = 0x4a4e5357;  // "JNSW"
+
+  /** The first memory data layer of the training net, NULL if not found. */
+  MemoryDataLayer<Dtype>* MemoryData() {
+    const vector<shared_ptr<Layer<Dtype> > >& layers = solver->net_->layers();
+    for (int i = 0; i < layers.size(); i++) {
+      MemoryDataLayer<Dtype>* layer =
+        dynamic_cast<MemoryDataLayer<Dtype>*>(layers[i].get());
+      if (layer) return layer;
+    }
+    return NULL;
+  }
+
+  /** The history blobs of the solver, empty if not a SGDSolver. */
+  const vector<shared_ptr<Blob<Dtype> > >& History() {
+    SGDSolver<Dtype>* sgd = dynamic_cast<SGDSolver<Dtype>*>(solver);
+    return sgd ? sgd->history() : empty_history_;
+  }
+
+  /** The total number of elements of all history blobs. */
+  int HistoryCount() {
+    const vector<shared_ptr<Blob<Dtype> > >& history = History();
+    int total = 0;
+    for (int i = 0; i < history.size(); i++) total += history[i]->count();
+    return total;
+  }
+
+  /** Counts of all parameter blobs followed by all history blobs if any. */
+  void getStateCounts(bool with_history, vector<int>* counts) {
+    getBlobCounts(counts);
+    if (!with_history) return;
+    const vector<shared_ptr<Blob<Dtype> > >& history = History();
+    for (int i = 0; i < history.size(); i++) {
+      counts->push_back(history[i]->count());
+    }
+  }
+
+  /** The offset of blob data in a snapshot, aligned to 8 bytes. */
+  static size_t StateDataOffset(const int blobs) {
+    return (sizeof(StateHeader) + blobs * sizeof(int) + 7) / 8 * 8;
+  }
+
+  static int TotalCount(const vector<int>& counts) {
+    int total = 0;
+    for (int i = 0; i < counts.size(); i++) total += counts[i];
+    return total;
+  }
+
+  /** Stamp all blobs with a new version. */
+  void StampAll() {
+    ++version_;
+    for (int i = 0; i < versions_.size(); i++) {
+      versions_[i].assign(versions_[i].size(), version_);
+    }
+  }
+
+  /**
+   * Stamp blobs changed by the last update with a new version. After update,
+   * diff holds the value subtracted from data, so a blob is changed iff its
+   * diff is not all 0, e.g. blobs with lr_mult 0 are never changed. Stamps
+   * all blobs if version tracking is off.
+   */
+  void StampUpdated() {
+    if (!version_tracking_) {
+      StampAll();
+      return;
+    }
+    const vector<shared_ptr<Layer<Dtype> > >& layers = solver->net_->layers();
+    ++version_;
+    for (int i = 0; i < layers.size(); i++) {
+      const vector<shared_ptr<Blob<Dtype> > >& blobs = layers[i]->blobs();
+      for (int j = 0; j < blobs.size(); j++) {
+        if (blobs[j]->asum_diff() != 0) versions_[i][j] = version_;
+      }
+    }
+  }
+
   Solver<Dtype>* solver;
+  // Whether updates find the blobs they changed, see setVersionTracking
+  bool version_tracking_;
+  // The version of the last operation changing weights
+  int64_t version_;
+  // The version of each blob, indexed by layer and blob
+  vector<vector<int64_t> > versions_;
+  // Returned by History() if the solver has no history
+  vector<shared_ptr<Blob<Dtype> > > empty_history_;
+  // Dense diffs for compression, reused between calls
+  vector<Dtype> delta_;
+  // The compression errors for error feedback, empty if not used
+  vector<Dtype> residual_;
+  // Train iterations and time in nanoseconds while metrics are enabled
+  int64_t train_iterations_;
+  int64_t train_nanos_;
+  // The number of iterations in each latency bucket while metrics are enabled
+  vector<int64_t> iteration_histogram_;
 
   DISABLE_COPY_AND_ASSIGN(JNISolver);
 };
@@ -0,0 +1,60 @@
+#ifdef __APPLE__
+#include <sys/time.h>
+#else
+#include <time.h>
+#endif
+
+#include "metrics.hpp"
+
+volatile bool metrics_enabled_ = false;
+
+// The counters and their histograms, only accessed with atomic builtins
+static int64_t counters_[METRIC_COUNTERS] = {0};
+static int64_t histograms_[METRIC_COUNTERS][kHistogramBuckets] = {{0}};
+
+void SetMetricsEnabled(bool enabled) {
+  metrics_enabled_ = enabled;
+}
+
+int64_t NowNanos() {
+#ifdef __APPLE__
+  // no clock_gettime before OS X 10.12
+  timeval now;
+  gettimeofday(&now, NULL);
+  return now.tv_sec * 1000000000LL + now.tv_usec * 1000LL;
+#else
+  timespec now;
+  clock_gettime(CLOCK_MONOTONIC, &now);
+  return now.tv_sec * 1000000000LL + now.tv_nsec;
+#endif
+}
+
+void AddMetric(MetricCounter counter, int64_t value) {
+  __sync_fetch_and_add(&counters_[counter], value);
+}
+
+void AddLatency(MetricCounter counter, int64_t nanos) {
+  __sync_fetch_and_add(&counters_[counter], nanos);
+  __sync_fetch_and_add(&histograms_[counter][LatencyBucket(nanos)], 1);
+}
+
+void GetMetrics(int64_t* values) {
+  for (int i = 0; i < METRIC_COUNTERS; i++) {
+    values[i] = __sync_fetch_and_add(&counters_[i], 0);
+  }
+  int64_t* histograms = values + METRIC_COUNTERS;
+  for (int i = 0; i < METRIC_COUNTERS; i++) {
+    for (int j = 0; j < kHistogramBuckets; j++) {
+      *histograms++ = __sync_fetch_and_add(&histograms_[i][j], 0);
+    }
+  }
+}
+
+void ResetMetrics() {
+  for (int i = 0; i < METRIC_COUNTERS; i++) {
+    __sync_lock_test_and_set(&counters_[i], 0);
+    for (int j = 0; j < kHistogramBuckets; j++) {
+      __sync_lock_test_and_set(&histograms_[i][j], 0);
+    }
+  }
+}
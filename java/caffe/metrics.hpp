@@ -0,0 +1,63 @@
+#ifndef CAFFE_JNI_METRICS_HPP_
+#define CAFFE_JNI_METRICS_HPP_
+
+#include <stdint.h>
+
+// Process wide counters of the jni binding, only updated when metrics are
+// enabled. The disabled path costs a single read of a flag.
+
+// Same as the order of global counters in SolverMetrics in java
+enum MetricCounter {
+  BYTES_SERIALIZED = 0,
+  BYTES_DESERIALIZED = 1,
+  SERIALIZE_NANOS = 2,
+  DESERIALIZE_NANOS = 3,
+  ARRAY_PINS = 4,
+  PIN_NANOS = 5,
+  METRIC_COUNTERS = 6
+};
+
+// The number of buckets of latency histograms. Bucket b counts latencies in
+// [2^b, 2^(b + 1)) nanoseconds, the last bucket also counts anything longer.
+// Same as HISTOGRAM_BUCKETS in SolverMetrics in java.
+const int kHistogramBuckets = 40;
+
+/** The histogram bucket of a latency in nanoseconds. */
+inline int LatencyBucket(int64_t nanos) {
+  int bucket = 0;
+  while (nanos > 1 && bucket < kHistogramBuckets - 1) {
+    nanos >>= 1;
+    bucket++;
+  }
+  return bucket;
+}
+
+// Set by SetMetricsEnabled, read with MetricsEnabled
+extern volatile bool metrics_enabled_;
+
+inline bool MetricsEnabled() { return metrics_enabled_; }
+
+void SetMetricsEnabled(bool enabled);
+
+/** A monotonic clock in nanoseconds. */
+int64_t NowNanos();
+
+/** Atomically add value to a counter. */
+void AddMetric(MetricCounter counter, int64_t value);
+
+/**
+ * Atomically add a latency to a time counter, and count it in the histogram of
+ * the counter.
+ */
+void AddLatency(MetricCounter counter, int64_t nanos);
+
+/**
+ * Copy all counters into values, then the histogram of each counter, so values
+ * holds METRIC_COUNTERS * (1 + kHistogramBuckets) elements. Histograms of
+ * counters not updated by AddLatency are all 0.
+ */
+void GetMetrics(int64_t* values);
+
+void ResetMetrics();
+
+#endif
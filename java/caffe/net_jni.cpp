@@ -0,0 +1,72 @@
+#include "caffe/caffe.hpp"
+#include "com_htc_speedo_caffe_Net.h"
+#include "jni_net.hpp"
+#include "jni_solver.hpp"
+#include "protobuf_util.hpp"
+
+using caffe::NetParameter;
+
+jlong Java_com_htc_speedo_caffe_Net_init(JNIEnv* env, jclass obj,
+  jbyteArray modelBytes, jboolean doublePrecision) {
+  NetParameter net_param;
+  ReadProtoFromByteArray(env, modelBytes, &net_param);
+  JNINetBase* net;
+  // create net, the handle itself carries the precision
+  if (doublePrecision) {
+    net = new JNINet<double>(net_param);
+  } else {
+    net = new JNINet<float>(net_param);
+  }
+  return JNINetBase::ToHandle(net);
+}
+
+void Java_com_htc_speedo_caffe_Net_dispose(JNIEnv* env, jclass obj,
+  jlong handle) {
+  if (!JNINetBase::FromHandle(env, handle)) return;
+  JNINetBase::Release(handle);
+}
+
+void Java_com_htc_speedo_caffe_Net_shareWeights(JNIEnv* env, jclass obj,
+  jlong handle, jlong solverHandle) {
+  shared_ptr<JNINetBase> net = JNINetBase::FromHandle(env, handle);
+  if (!net) return;
+  shared_ptr<JNISolverBase> solver =
+    JNISolverBase::FromHandle(env, solverHandle);
+  if (!solver) return;
+  if (!net->shareWeights(solver.get())) {
+    jclass exception = env->FindClass("java/lang/IllegalArgumentException");
+    env->ThrowNew(exception, "Net and solver must have the same precision!");
+  }
+}
+
+void Java_com_htc_speedo_caffe_Net_setWeight(JNIEnv* env, jclass obj,
+  jlong handle, jbyteArray weight) {
+  shared_ptr<JNINetBase> net = JNINetBase::FromHandle(env, handle);
+  if (!net) return;
+  NetParameter net_param;
+  ReadProtoFromByteArray(env, weight, &net_param);
+  net->setWeight(net_param);
+}
+
+jintArray Java_com_htc_speedo_caffe_Net_getShape(JNIEnv* env, jclass obj,
+  jlong handle, jboolean input) {
+  shared_ptr<JNINetBase> net = JNINetBase::FromHandle(env, handle);
+  if (!net) return NULL;
+  vector<int> shape;
+  net->getShape(input, &shape);
+  jintArray array = env->NewIntArray(shape.size());
+  if (!shape.empty()) {
+    env->SetIntArrayRegion(array, 0, shape.size(), &shape[0]);
+  }
+  return array;
+}
+
+jint Java_com_htc_speedo_caffe_Net_forward(JNIEnv* env, jclass obj,
+  jlong handle, jobject input, jint inputCount, jobject output,
+  jint outputCapacity) {
+  shared_ptr<JNINetBase> net = JNINetBase::FromHandle(env, handle);
+  if (!net) return 0;
+  // the direct buffers are already checked in java
+  return net->forward(env->GetDirectBufferAddress(input), inputCount,
+    env->GetDirectBufferAddress(output), outputCapacity);
+}
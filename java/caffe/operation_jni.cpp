@@ -1,51 +1,288 @@
+#include <boost/bind.hpp>
+#include <boost/thread.hpp>
+
+#include <algorithm>
+#include <vector>
+
 #include "caffe/caffe.hpp"
 #include "com_htc_speedo_caffe_NetParameterOperation.h"
+#include "compression.hpp"
+#include "parallel.hpp"
 #include "protobuf_util.hpp"
 
 using caffe::BlobProto;
 using caffe::LayerParameter;
 using caffe::NetParameter;
+using std::vector;
 
-jbyteArray Java_com_htc_speedo_caffe_NetParameterOperation_plus___3B_3B
-  (JNIEnv* env, jclass obj, jbyteArray p1, jbyteArray p2) {
-  NetParameter net1;
-  ReadProtoFromByteArray(env, p1, &net1);
-  NetParameter net2;
-  ReadProtoFromByteArray(env, p2, &net2);
+// Same as the ordinal of NetParameterOperation.ReduceMode in java
+enum ReduceMode { SUM = 0, MEAN = 1, WEIGHTED = 2 };
 
-  // plus weights of p2 to p1
-  int layerCount = net1.layer_size();
+// Element-wise kernels on contiguous memory, shared by the protobuf and the
+// flat buffer operations. All kernels work in-place and use caffe's BLAS
+// wrappers. Large arrays are split into ranges on multiple threads.
+
+// The number of elements processed at a time by multi-pass kernels, so the
+// data stays in cache between the passes.
+const int kBlockCount = 4096;
+
+template <typename Dtype>
+void AxpyRange(const Dtype alpha, const Dtype* x, Dtype* y, int begin,
+  int end) {
+  caffe::caffe_axpy(end - begin, alpha, x + begin, y + begin);
+}
+
+// y += alpha * x
+template <typename Dtype>
+void Axpy(const int count, const Dtype alpha, const Dtype* x, Dtype* y) {
+  ParallelFor(count, boost::bind(&AxpyRange<Dtype>, alpha, x, y, _1, _2));
+}
+
+template <typename Dtype>
+void ScaleRange(const Dtype alpha, Dtype* x, int begin, int end) {
+  caffe::caffe_scal(end - begin, alpha, x + begin);
+}
+
+// x *= alpha
+template <typename Dtype>
+void Scale(const int count, const Dtype alpha, Dtype* x) {
+  ParallelFor(count, boost::bind(&ScaleRange<Dtype>, alpha, x, _1, _2));
+}
+
+template <typename Dtype>
+void DivideRange(const Dtype alpha, Dtype* x, int begin, int end) {
+  // no BLAS routine divides, a plain loop still vectorizes
+  for (int i = begin; i < end; i++) {
+    x[i] /= alpha;
+  }
+}
+
+// x /= alpha, exact division instead of multiplying by 1 / alpha
+template <typename Dtype>
+void Divide(const int count, const Dtype alpha, Dtype* x) {
+  ParallelFor(count, boost::bind(&DivideRange<Dtype>, alpha, x, _1, _2));
+}
+
+template <typename Dtype>
+void SquaredDistanceRange(const Dtype* a, const Dtype* b, double* total,
+  boost::mutex* mutex, int begin, int end) {
+  double sum = 0;
+  for (int i = begin; i < end; i++) {
+    const double d = static_cast<double>(a[i]) - b[i];
+    sum += d * d;
+  }
+  boost::mutex::scoped_lock lock(*mutex);
+  *total += sum;
+}
+
+// sum of (a - b)^2, accumulated in double
+template <typename Dtype>
+double SquaredDistance(const int count, const Dtype* a, const Dtype* b) {
+  double total = 0;
+  boost::mutex mutex;
+  ParallelFor(count, boost::bind(&SquaredDistanceRange<Dtype>, a, b, &total,
+    &mutex, _1, _2));
+  return total;
+}
+
+template <typename Dtype>
+void AddDivideRange(const Dtype* a, const Dtype* b, const Dtype n, Dtype* y,
+  int begin, int end) {
+  const Dtype factor = 1 / n;
+  for (int i = begin; i < end; i += kBlockCount) {
+    const int count = std::min(kBlockCount, end - i);
+    caffe::caffe_add(count, a + i, b + i, y + i);
+    caffe::caffe_scal(count, factor, y + i);
+  }
+}
+
+// y = (a + b) / n, y can be the same as a or b
+template <typename Dtype>
+void AddDivide(const int count, const Dtype* a, const Dtype* b, const Dtype n,
+  Dtype* y) {
+  ParallelFor(count,
+    boost::bind(&AddDivideRange<Dtype>, a, b, n, y, _1, _2));
+}
+
+template <typename Dtype>
+void ReduceRange(const Dtype* const* inputs, const int num,
+  const double* weights, const Dtype scale, Dtype* output, int begin,
+  int end) {
+  for (int i = begin; i < end; i += kBlockCount) {
+    const int count = std::min(kBlockCount, end - i);
+    // use std::copy instead of caffe_copy, which queries caffe mode and
+    // creates a caffe instance for each thread
+    if (inputs[0] != output) {
+      std::copy(inputs[0] + i, inputs[0] + i + count, output + i);
+    }
+    if (weights) caffe::caffe_scal<Dtype>(count, weights[0], output + i);
+    for (int j = 1; j < num; j++) {
+      caffe::caffe_axpy<Dtype>(count, weights ? weights[j] : 1,
+        inputs[j] + i, output + i);
+    }
+    if (scale != 1) caffe::caffe_scal(count, scale, output + i);
+  }
+}
+
+// output = scale * sum(weights[i] * inputs[i]), weights can be NULL for all 1.
+// output can be the same as inputs[0]. Each thread accumulates all inputs for
+// a range of elements, so the inputs are summed in the same order as chained
+// plus operations.
+template <typename Dtype>
+void Reduce(const int count, const Dtype* const* inputs, const int num,
+  const double* weights, const Dtype scale, Dtype* output) {
+  ParallelFor(count, boost::bind(&ReduceRange<Dtype>, inputs, num, weights,
+    scale, output, _1, _2));
+}
+
+// net1 += alpha * net2 for data and diff fields of all blobs. If random_skip,
+// each blob is skipped with the possibility of skip.
+void Axpy(const double alpha, const NetParameter& net2, NetParameter* net1,
+  bool random_skip = false, float skip = 0) {
+  int layerCount = net1->layer_size();
+  float random_number;
   for (int i = 0; i < layerCount; i++) {
-    LayerParameter* layer1 = net1.mutable_layer(i);
+    LayerParameter* layer1 = net1->mutable_layer(i);
     const LayerParameter& layer2 = net2.layer(i);
     int blobCount = layer1->blobs_size();
     for (int j = 0; j < blobCount; j++) {
+      if (random_skip) {
+        // random skip layer
+        caffe::caffe_rng_uniform(1, 0.0f, 1.0f, &random_number);
+        if (skip > random_number) continue;
+      }
       BlobProto* blob1 = layer1->mutable_blobs(j);
       const BlobProto& blob2 = layer2.blobs(j);
-      // plus data field
-      float* data = blob1->mutable_data()->mutable_data();
-      int dataCount = blob2.data_size();
-      for (int k = 0; k < dataCount; k++) {
-        data[k] += blob2.data(k);
-      }
-      double* double_data = blob1->mutable_double_data()->mutable_data();
-      dataCount = blob2.double_data_size();
-      for (int k = 0; k < dataCount; k++) {
-        double_data[k] += blob2.double_data(k);
+      // data field
+      Axpy<float>(blob2.data_size(), alpha, blob2.data().data(),
+        blob1->mutable_data()->mutable_data());
+      Axpy<double>(blob2.double_data_size(), alpha,
+        blob2.double_data().data(),
+        blob1->mutable_double_data()->mutable_data());
+      // diff field
+      Axpy<float>(blob2.diff_size(), alpha, blob2.diff().data(),
+        blob1->mutable_diff()->mutable_data());
+      Axpy<double>(blob2.double_diff_size(), alpha,
+        blob2.double_diff().data(),
+        blob1->mutable_double_diff()->mutable_data());
+    }
+  }
+}
+
+// net *= factor for data and diff fields of all blobs
+void Scale(const double factor, NetParameter* net) {
+  int layerCount = net->layer_size();
+  for (int i = 0; i < layerCount; i++) {
+    LayerParameter* layer = net->mutable_layer(i);
+    int blobCount = layer->blobs_size();
+    for (int j = 0; j < blobCount; j++) {
+      BlobProto* blob = layer->mutable_blobs(j);
+      Scale<float>(blob->data_size(), factor,
+        blob->mutable_data()->mutable_data());
+      Scale<double>(blob->double_data_size(), factor,
+        blob->mutable_double_data()->mutable_data());
+      Scale<float>(blob->diff_size(), factor,
+        blob->mutable_diff()->mutable_data());
+      Scale<double>(blob->double_diff_size(), factor,
+        blob->mutable_double_diff()->mutable_data());
+    }
+  }
+}
+
+// net /= factor for data and diff fields of all blobs
+void Divide(const double factor, NetParameter* net) {
+  int layerCount = net->layer_size();
+  for (int i = 0; i < layerCount; i++) {
+    LayerParameter* layer = net->mutable_layer(i);
+    int blobCount = layer->blobs_size();
+    for (int j = 0; j < blobCount; j++) {
+      BlobProto* blob = layer->mutable_blobs(j);
+      Divide<float>(blob->data_size(), factor,
+        blob->mutable_data()->mutable_data());
+      Divide<double>(blob->double_data_size(), factor,
+        blob->mutable_double_data()->mutable_data());
+      Divide<float>(blob->diff_size(), factor,
+        blob->mutable_diff()->mutable_data());
+      Divide<double>(blob->double_diff_size(), factor,
+        blob->mutable_double_diff()->mutable_data());
+    }
+  }
+}
+
+// Reduce a repeated field of the same blob in all nets, result is saved in
+// the first net.
+template <typename Dtype>
+void ReduceField(vector<Dtype*>* fields, const int count,
+  const double* weights, const Dtype scale) {
+  if (count == 0) return;
+  Reduce<Dtype>(count, &(*fields)[0], fields->size(), weights, scale,
+    (*fields)[0]);
+}
+
+// Whether all nets have the same number of layers, blobs and elements of each
+// field as nets[0], i.e. they can be reduced.
+bool SameStructure(const vector<NetParameter>& nets) {
+  const NetParameter& net = nets[0];
+  for (int k = 1; k < nets.size(); k++) {
+    if (nets[k].layer_size() != net.layer_size()) return false;
+    for (int i = 0; i < net.layer_size(); i++) {
+      const LayerParameter& layer = net.layer(i);
+      if (nets[k].layer(i).blobs_size() != layer.blobs_size()) return false;
+      for (int j = 0; j < layer.blobs_size(); j++) {
+        const BlobProto& blob = layer.blobs(j);
+        const BlobProto& other = nets[k].layer(i).blobs(j);
+        if (other.data_size() != blob.data_size() ||
+          other.diff_size() != blob.diff_size() ||
+          other.double_data_size() != blob.double_data_size() ||
+          other.double_diff_size() != blob.double_diff_size()) {
+          return false;
+        }
       }
-      // plus diff field
-      float* diff = blob1->mutable_diff()->mutable_data();
-      int diffCount = blob2.diff_size();
-      for (int k = 0; k < diffCount; k++) {
-        diff[k] += blob2.diff(k);
+    }
+  }
+  return true;
+}
+
+// Reduce data and diff fields of all blobs, result is saved in nets[0]. All
+// nets must have the same structure, see SameStructure.
+void Reduce(vector<NetParameter>* nets, const double* weights,
+  const double scale) {
+  const int num = nets->size();
+  vector<float*> floats(num);
+  vector<double*> doubles(num);
+  NetParameter& net = (*nets)[0];
+  for (int i = 0; i < net.layer_size(); i++) {
+    for (int j = 0; j < net.layer(i).blobs_size(); j++) {
+      const BlobProto& blob = net.layer(i).blobs(j);
+      // data field
+      for (int k = 0; k < num; k++) {
+        BlobProto* b = (*nets)[k].mutable_layer(i)->mutable_blobs(j);
+        floats[k] = b->mutable_data()->mutable_data();
+        doubles[k] = b->mutable_double_data()->mutable_data();
       }
-      double* double_diff = blob1->mutable_double_diff()->mutable_data();
-      diffCount = blob2.double_diff_size();
-      for (int k = 0; k < diffCount; k++) {
-        double_diff[k] += blob2.double_diff(k);
+      ReduceField<float>(&floats, blob.data_size(), weights, scale);
+      ReduceField<double>(&doubles, blob.double_data_size(), weights, scale);
+      // diff field
+      for (int k = 0; k < num; k++) {
+        BlobProto* b = (*nets)[k].mutable_layer(i)->mutable_blobs(j);
+        floats[k] = b->mutable_diff()->mutable_data();
+        doubles[k] = b->mutable_double_diff()->mutable_data();
       }
+      ReduceField<float>(&floats, blob.diff_size(), weights, scale);
+      ReduceField<double>(&doubles, blob.double_diff_size(), weights, scale);
     }
   }
+}
+
+jbyteArray Java_com_htc_speedo_caffe_NetParameterOperation_plus___3B_3B
+  (JNIEnv* env, jclass obj, jbyteArray p1, jbyteArray p2) {
+  NetParameter net1;
+  ReadProtoFromByteArray(env, p1, &net1);
+  NetParameter net2;
+  ReadProtoFromByteArray(env, p2, &net2);
+
+  // plus weights of p2 to p1
+  Axpy(1, net2, &net1);
 
   return WriteProtoToByteArray(env, net1);
 }
@@ -57,43 +294,8 @@ jbyteArray Java_com_htc_speedo_caffe_NetParameterOperation_plus___3B_3BF
   NetParameter net2;
   ReadProtoFromByteArray(env, p2, &net2);
 
-  // plus weights of p2 to p1
-  int layerCount = net1.layer_size();
-  float random_number;
-  for (int i = 0; i < layerCount; i++) {
-    LayerParameter* layer1 = net1.mutable_layer(i);
-    const LayerParameter& layer2 = net2.layer(i);
-    int blobCount = layer1->blobs_size();
-    for (int j = 0; j < blobCount; j++) {
-      // random skip layer
-      caffe::caffe_rng_uniform(1, 0.0f, 1.0f, &random_number);
-      if (skip > random_number) continue;
-      BlobProto* blob1 = layer1->mutable_blobs(j);
-      const BlobProto& blob2 = layer2.blobs(j);
-      // plus data field
-      float* data = blob1->mutable_data()->mutable_data();
-      int dataCount = blob2.data_size();
-      for (int k = 0; k < dataCount; k++) {
-        data[k] += blob2.data(k);
-      }
-      double* double_data = blob1->mutable_double_data()->mutable_data();
-      dataCount = blob2.double_data_size();
-      for (int k = 0; k < dataCount; k++) {
-        double_data[k] += blob2.double_data(k);
-      }
-      // plus diff field
-      float* diff = blob1->mutable_diff()->mutable_data();
-      int diffCount = blob2.diff_size();
-      for (int k = 0; k < diffCount; k++) {
-        diff[k] += blob2.diff(k);
-      }
-      double* double_diff = blob1->mutable_double_diff()->mutable_data();
-      diffCount = blob2.double_diff_size();
-      for (int k = 0; k < diffCount; k++) {
-        double_diff[k] += blob2.double_diff(k);
-      }
-    }
-  }
+  // plus weights of p2 to p1, with random skip layers
+  Axpy(1, net2, &net1, true, skip);
 
   return WriteProtoToByteArray(env, net1);
 }
@@ -106,38 +308,7 @@ jbyteArray Java_com_htc_speedo_caffe_NetParameterOperation_minus
   ReadProtoFromByteArray(env, p2, &net2);
 
   // substract weights of p1 in-place by p2
-  int layerCount = net1.layer_size();
-  for (int i = 0; i < layerCount; i++) {
-    LayerParameter* layer1 = net1.mutable_layer(i);
-    const LayerParameter& layer2 = net2.layer(i);
-    int blobCount = layer1->blobs_size();
-    for (int j = 0; j < blobCount; j++) {
-      BlobProto* blob1 = layer1->mutable_blobs(j);
-      const BlobProto& blob2 = layer2.blobs(j);
-      // minus data field
-      float* data = blob1->mutable_data()->mutable_data();
-      int dataCount = blob2.data_size();
-      for (int k = 0; k < dataCount; k++) {
-        data[k] -= blob2.data(k);
-      }
-      double* double_data = blob1->mutable_double_data()->mutable_data();
-      dataCount = blob2.double_data_size();
-      for (int k = 0; k < dataCount; k++) {
-        double_data[k] -= blob2.double_data(k);
-      }
-      // minus diff field
-      float* diff = blob1->mutable_diff()->mutable_data();
-      int diffCount = blob2.diff_size();
-      for (int k = 0; k < diffCount; k++) {
-        diff[k] -= blob2.diff(k);
-      }
-      double* double_diff = blob1->mutable_double_diff()->mutable_data();
-      diffCount = blob2.double_diff_size();
-      for (int k = 0; k < diffCount; k++) {
-        double_diff[k] -= blob2.double_diff(k);
-      }
-    }
-  }
+  Axpy(-1, net2, &net1);
 
   return WriteProtoToByteArray(env, net1);
 }
@@ -148,36 +319,7 @@ jbyteArray Java_com_htc_speedo_caffe_NetParameterOperation_multiply
   ReadProtoFromByteArray(env, p, &net);
 
   // multiply weights of p in-place by factor
-  int layerCount = net.layer_size();
-  for (int i = 0; i < layerCount; i++) {
-    LayerParameter* layer = net.mutable_layer(i);
-    int blobCount = layer->blobs_size();
-    for (int j = 0; j < blobCount; j++) {
-      // multiply data field
-      BlobProto* blob = layer->mutable_blobs(j);
-      float* data = blob->mutable_data()->mutable_data();
-      int dataCount = blob->data_size();
-      for (int k = 0; k < dataCount; k++) {
-        data[k] *= factor;
-      }
-      double* double_data = blob->mutable_double_data()->mutable_data();
-      dataCount = blob->double_data_size();
-      for (int k = 0; k < dataCount; k++) {
-        double_data[k] *= factor;
-      }
-      // multiply diff field
-      float* diff = blob->mutable_diff()->mutable_data();
-      int diffCount = blob->diff_size();
-      for (int k = 0; k < diffCount; k++) {
-        diff[k] *= factor;
-      }
-      double* double_diff = blob->mutable_double_diff()->mutable_data();
-      diffCount = blob->double_diff_size();
-      for (int k = 0; k < diffCount; k++) {
-        double_diff[k] *= factor;
-      }
-    }
-  }
+  Scale(factor, &net);
 
   return WriteProtoToByteArray(env, net);
 }
@@ -188,36 +330,173 @@ jbyteArray Java_com_htc_speedo_caffe_NetParameterOperation_divide
   ReadProtoFromByteArray(env, p, &net);
 
   // divide weights of p in-place by factor
-  int layerCount = net.layer_size();
-  for (int i = 0; i < layerCount; i++) {
-    LayerParameter* layer = net.mutable_layer(i);
-    int blobCount = layer->blobs_size();
-    for (int j = 0; j < blobCount; j++) {
-      // divide data field
-      BlobProto* blob = layer->mutable_blobs(j);
-      float* data = blob->mutable_data()->mutable_data();
-      int dataCount = blob->data_size();
-      for (int k = 0; k < dataCount; k++) {
-        data[k] /= factor;
-      }
-      double* double_data = blob->mutable_double_data()->mutable_data();
-      dataCount = blob->double_data_size();
-      for (int k = 0; k < dataCount; k++) {
-        double_data[k] /= factor;
-      }
-      // divide diff field
-      float* diff = blob->mutable_diff()->mutable_data();
-      int diffCount = blob->diff_size();
-      for (int k = 0; k < diffCount; k++) {
-        diff[k] /= factor;
-      }
-      double* double_diff = blob->mutable_double_diff()->mutable_data();
-      diffCount = blob->double_diff_size();
-      for (int k = 0; k < diffCount; k++) {
-        double_diff[k] /= factor;
-      }
+  Divide(factor, &net);
+
+  return WriteProtoToByteArray(env, net);
+}
+
+// Flat buffer operations. Sizes and precisions are checked in java.
+
+void Java_com_htc_speedo_caffe_NetParameterOperation_axpyBuffer
+  (JNIEnv* env, jclass obj, jint count, jdouble alpha, jobject x, jobject y,
+  jboolean doublePrecision) {
+  void* x_address = env->GetDirectBufferAddress(x);
+  void* y_address = env->GetDirectBufferAddress(y);
+  if (doublePrecision) {
+    Axpy<double>(count, alpha, (const double*) x_address, (double*) y_address);
+  } else {
+    Axpy<float>(count, alpha, (const float*) x_address, (float*) y_address);
+  }
+}
+
+void Java_com_htc_speedo_caffe_NetParameterOperation_axpyCompressedBuffer
+  (JNIEnv* env, jclass obj, jint count, jdouble alpha, jobject compressed,
+  jint size, jobject y, jboolean doublePrecision) {
+  const char* input =
+    static_cast<const char*>(env->GetDirectBufferAddress(compressed));
+  void* y_address = env->GetDirectBufferAddress(y);
+  bool valid;
+  if (doublePrecision) {
+    valid = AxpyCompressed<double>(input, size, count, alpha,
+      (double*) y_address);
+  } else {
+    valid = AxpyCompressed<float>(input, size, count, alpha,
+      (float*) y_address);
+  }
+  if (!valid) {
+    jclass exception = env->FindClass("java/lang/IllegalArgumentException");
+    env->ThrowNew(exception, "Malformed compressed delta!");
+  }
+}
+
+void Java_com_htc_speedo_caffe_NetParameterOperation_axpyRangesBuffer
+  (JNIEnv* env, jclass obj, jdouble alpha, jobject x, jobject y,
+  jintArray ranges, jboolean doublePrecision) {
+  // ranges are pairs of offset and count, already checked in java
+  vector<jint> range_vec(env->GetArrayLength(ranges));
+  if (range_vec.empty()) return;
+  env->GetIntArrayRegion(ranges, 0, range_vec.size(), &range_vec[0]);
+  void* x_address = env->GetDirectBufferAddress(x);
+  void* y_address = env->GetDirectBufferAddress(y);
+  for (int i = 0; i + 1 < range_vec.size(); i += 2) {
+    const int offset = range_vec[i], count = range_vec[i + 1];
+    if (doublePrecision) {
+      Axpy<double>(count, alpha, (const double*) x_address + offset,
+        (double*) y_address + offset);
+    } else {
+      Axpy<float>(count, alpha, (const float*) x_address + offset,
+        (float*) y_address + offset);
     }
   }
+}
 
-  return WriteProtoToByteArray(env, net);
+void Java_com_htc_speedo_caffe_NetParameterOperation_scaleBuffer
+  (JNIEnv* env, jclass obj, jint count, jdouble alpha, jobject x,
+  jboolean doublePrecision) {
+  void* x_address = env->GetDirectBufferAddress(x);
+  if (doublePrecision) {
+    Scale<double>(count, alpha, (double*) x_address);
+  } else {
+    Scale<float>(count, alpha, (float*) x_address);
+  }
+}
+
+void Java_com_htc_speedo_caffe_NetParameterOperation_addDivideBuffer
+  (JNIEnv* env, jclass obj, jint count, jobject a, jobject b, jdouble n,
+  jobject y, jboolean doublePrecision) {
+  void* a_address = env->GetDirectBufferAddress(a);
+  void* b_address = env->GetDirectBufferAddress(b);
+  void* y_address = env->GetDirectBufferAddress(y);
+  if (doublePrecision) {
+    AddDivide<double>(count, (const double*) a_address,
+      (const double*) b_address, n, (double*) y_address);
+  } else {
+    AddDivide<float>(count, (const float*) a_address,
+      (const float*) b_address, n, (float*) y_address);
+  }
+}
+
+jdouble Java_com_htc_speedo_caffe_NetParameterOperation_squaredDistanceBuffer
+  (JNIEnv* env, jclass obj, jint count, jobject a, jobject b,
+  jboolean doublePrecision) {
+  void* a_address = env->GetDirectBufferAddress(a);
+  void* b_address = env->GetDirectBufferAddress(b);
+  if (doublePrecision) {
+    return SquaredDistance<double>(count, (const double*) a_address,
+      (const double*) b_address);
+  } else {
+    return SquaredDistance<float>(count, (const float*) a_address,
+      (const float*) b_address);
+  }
+}
+
+void Java_com_htc_speedo_caffe_NetParameterOperation_setNumThreads
+  (JNIEnv* env, jclass obj, jint threads) {
+  SetNumThreads(threads);
+}
+
+jint Java_com_htc_speedo_caffe_NetParameterOperation_getNumThreads
+  (JNIEnv* env, jclass obj) {
+  return GetNumThreads();
+}
+
+// Get weights of reduce operations from java, returns NULL if not weighted.
+const double* GetReduceWeights(JNIEnv* env, jint mode, jdoubleArray weights,
+  vector<double>* weight_vec) {
+  if (mode != WEIGHTED) return NULL;
+  weight_vec->resize(env->GetArrayLength(weights));
+  env->GetDoubleArrayRegion(weights, 0, weight_vec->size(), &(*weight_vec)[0]);
+  return &(*weight_vec)[0];
+}
+
+template <typename Dtype>
+void ReduceBuffers(JNIEnv* env, const int count, jobjectArray inputs,
+  jobject output, const double* weights, const double scale) {
+  const int num = env->GetArrayLength(inputs);
+  vector<const Dtype*> addresses(num);
+  for (int i = 0; i < num; i++) {
+    jobject input = env->GetObjectArrayElement(inputs, i);
+    addresses[i] = (const Dtype*) env->GetDirectBufferAddress(input);
+    env->DeleteLocalRef(input);
+  }
+  Reduce<Dtype>(count, &addresses[0], num, weights, scale,
+    (Dtype*) env->GetDirectBufferAddress(output));
+}
+
+jbyteArray Java_com_htc_speedo_caffe_NetParameterOperation_reduceModels
+  (JNIEnv* env, jclass obj, jobjectArray models, jint mode,
+  jdoubleArray weights) {
+  // parse each model exactly once
+  const int num = env->GetArrayLength(models);
+  vector<NetParameter> nets(num);
+  bool valid = true;
+  for (int i = 0; i < num && valid; i++) {
+    jbyteArray model = (jbyteArray) env->GetObjectArrayElement(models, i);
+    valid = ReadProtoFromByteArray(env, model, &nets[i]);
+    env->DeleteLocalRef(model);
+  }
+  // a mismatched model would be read or written out of bounds
+  if (!valid || !SameStructure(nets)) {
+    jclass exception = env->FindClass("java/lang/IllegalArgumentException");
+    env->ThrowNew(exception, valid ? "Models do not have the same blobs!" :
+      "Malformed model!");
+    return NULL;
+  }
+  vector<double> weight_vec;
+  Reduce(&nets, GetReduceWeights(env, mode, weights, &weight_vec),
+    mode == MEAN ? 1.0 / num : 1.0);
+  return WriteProtoToByteArray(env, nets[0]);
+}
+
+void Java_com_htc_speedo_caffe_NetParameterOperation_reduceBuffers
+  (JNIEnv* env, jclass obj, jint count, jobjectArray inputs, jobject output,
+  jint mode, jdoubleArray weights, jboolean doublePrecision) {
+  vector<double> weight_vec;
+  const double* weight_ptr = GetReduceWeights(env, mode, weights, &weight_vec);
+  const double scale = mode == MEAN ? 1.0 / env->GetArrayLength(inputs) : 1.0;
+  if (doublePrecision) {
+    ReduceBuffers<double>(env, count, inputs, output, weight_ptr, scale);
+  } else {
+    ReduceBuffers<float>(env, count, inputs, output, weight_ptr, scale);
+  }
 }
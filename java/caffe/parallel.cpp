@@ -0,0 +1,117 @@
+#include <stdint.h>
+
+#include <boost/bind.hpp>
+#include <boost/thread.hpp>
+
+#include <vector>
+
+#include "parallel.hpp"
+
+// Number of threads for parallel operations, 0 means all cores. Only accessed
+// with atomic builtins.
+static int num_threads = 0;
+
+void SetNumThreads(int threads) {
+  __sync_lock_test_and_set(&num_threads, threads > 0 ? threads : 0);
+}
+
+int GetNumThreads() {
+  const int threads = __sync_fetch_and_add(&num_threads, 0);
+  if (threads > 0) return threads;
+  int cores = boost::thread::hardware_concurrency();
+  return cores > 0 ? cores : 1;
+}
+
+/**
+ * Worker threads shared by all parallel operations. Workers wait for a new
+ * generation of job, and take ranges until there is none left. The calling
+ * thread takes ranges as well, so a call never waits for a worker to wake up
+ * before any progress is made.
+ */
+class WorkerPool {
+ public:
+  WorkerPool() : generation_(0), job_(NULL), func_(NULL), count_(0),
+    chunk_(0), ranges_(0), next_(0), pending_(0) {}
+
+  void Run(RangeJob job, const void* func, int count, int chunk,
+    int ranges) {
+    boost::unique_lock<boost::mutex> caller(run_mutex_, boost::try_to_lock);
+    if (!caller.owns_lock()) {
+      // another thread is using the workers, don't wait for it
+      for (int i = 0; i < ranges; i++) RunRange(job, func, count, chunk, i);
+      return;
+    }
+    boost::unique_lock<boost::mutex> lock(mutex_);
+    // only grows, workers are never stopped
+    while (static_cast<int>(workers_.size()) < ranges - 1) {
+      workers_.push_back(new boost::thread(
+        boost::bind(&WorkerPool::Work, this)));
+    }
+    job_ = job;
+    func_ = func;
+    count_ = count;
+    chunk_ = chunk;
+    ranges_ = ranges;
+    next_ = 0;
+    pending_ = ranges;
+    ++generation_;
+    start_.notify_all();
+    TakeRanges(&lock);
+    while (pending_ > 0) done_.wait(lock);
+  }
+
+ private:
+  static void RunRange(RangeJob job, const void* func, int count, int chunk,
+    int index) {
+    const int begin = index * chunk;
+    job(func, begin, std::min(count, begin + chunk));
+  }
+
+  /** Run ranges of current job until none left, lock is held on return. */
+  void TakeRanges(boost::unique_lock<boost::mutex>* lock) {
+    while (next_ < ranges_) {
+      const int index = next_++;
+      const RangeJob job = job_;
+      const void* func = func_;
+      const int count = count_, chunk = chunk_;
+      lock->unlock();
+      RunRange(job, func, count, chunk, index);
+      lock->lock();
+      if (--pending_ == 0) done_.notify_all();
+    }
+  }
+
+  void Work() {
+    boost::unique_lock<boost::mutex> lock(mutex_);
+    int64_t seen = generation_;
+    for (;;) {
+      while (generation_ == seen) start_.wait(lock);
+      seen = generation_;
+      TakeRanges(&lock);
+    }
+  }
+
+  // Held by the thread using the workers
+  boost::mutex run_mutex_;
+  // Guards all fields below
+  boost::mutex mutex_;
+  boost::condition_variable start_, done_;
+  std::vector<boost::thread*> workers_;
+  // Increased for each job, so workers wake up once per job
+  int64_t generation_;
+  // The current job
+  RangeJob job_;
+  const void* func_;
+  int count_, chunk_, ranges_;
+  // The next range to take, and the number of ranges not finished
+  int next_, pending_;
+};
+
+// Created when the library is loaded, and never deleted since workers may
+// still wait on it at exit
+static WorkerPool* pool = new WorkerPool();
+
+void RunParallel(RangeJob job, const void* func, int count, int chunk,
+  int ranges) {
+  pool->Run(job, func, count, chunk, ranges);
+}
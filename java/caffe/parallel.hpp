@@ -0,0 +1,54 @@
+#ifndef CAFFE_JNI_PARALLEL_HPP_
+#define CAFFE_JNI_PARALLEL_HPP_
+
+#include <algorithm>
+
+// The minimal number of elements handled by a thread, so small blobs are not
+// split and the overhead of waking threads is negligible.
+const int kMinParallelCount = 1 << 18;
+
+/** Set the number of threads for parallel operations, 0 for all cores. */
+void SetNumThreads(int threads);
+
+/** Get the number of threads for parallel operations. */
+int GetNumThreads();
+
+// A range job of ParallelFor, calls func(begin, end) on the type erased func
+typedef void (*RangeJob)(const void* func, int begin, int end);
+
+/**
+ * Run job on ranges [i * chunk, min(count, (i + 1) * chunk)) for i in
+ * [0, ranges) on the persistent worker threads and the calling thread. Returns
+ * after all ranges are done. If the workers are busy with another call, all
+ * ranges run on the calling thread. Nothing is allocated per call, workers are
+ * only started when more threads are required than ever before.
+ */
+void RunParallel(RangeJob job, const void* func, int count, int chunk,
+  int ranges);
+
+template <typename Func>
+void CallRange(const void* func, int begin, int end) {
+  (*static_cast<const Func*>(func))(begin, end);
+}
+
+/**
+ * Split [0, count) into continuous ranges and call func(begin, end) for each
+ * range on multiple threads. The calling thread runs the first range. Returns
+ * after all ranges are done. If count is small, func(0, count) is called
+ * directly without waking any thread.
+ */
+template <typename Func>
+void ParallelFor(const int count, const Func& func) {
+  if (count <= 0) return;
+  const int threads = std::min(GetNumThreads(),
+    (count + kMinParallelCount - 1) / kMinParallelCount);
+  if (threads <= 1) {
+    func(0, count);
+    return;
+  }
+  const int chunk = (count + threads - 1) / threads;
+  RunParallel(&CallRange<Func>, &func, count, chunk,
+    (count + chunk - 1) / chunk);
+}
+
+#endif  // CAFFE_JNI_PARALLEL_HPP_
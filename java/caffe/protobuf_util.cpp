@@ -1,6 +1,7 @@
 #include <google/protobuf/io/coded_stream.h>
 #include <google/protobuf/io/zero_copy_stream_impl.h>
 
+#include "metrics.hpp"
 #include "protobuf_util.hpp"
 
 using google::protobuf::io::ArrayInputStream;
@@ -8,32 +9,60 @@ using google::protobuf::io::CodedInputStream;
 using google::protobuf::io::ZeroCopyInputStream;
 
 bool ReadProtoFromByteArray(JNIEnv* env, jbyteArray array, Message* proto) {
+  const bool metrics = MetricsEnabled();
   jsize size = env->GetArrayLength(array);
+  const int64_t pinned = metrics ? NowNanos() : 0;
   jbyte* carray = reinterpret_cast<jbyte*>(
     env->GetPrimitiveArrayCritical(array, 0));
+  bool success = ReadProtoFromBuffer(carray, size, proto);
+  // the array is read-only, so jvm can safely discard the copy
+  env->ReleasePrimitiveArrayCritical(array, carray, JNI_ABORT);
+  if (metrics) {
+    AddMetric(ARRAY_PINS, 1);
+    AddLatency(PIN_NANOS, NowNanos() - pinned);
+  }
+  return success;
+}
 
+bool ReadProtoFromBuffer(const void* data, size_t size, Message* proto) {
+  // protobuf can't parse more than INT_MAX bytes
+  if (size > INT_MAX) return false;
+  const bool metrics = MetricsEnabled();
+  const int64_t start = metrics ? NowNanos() : 0;
   // modified from ReadProtoFromBinaryFile function in caffe's io.cpp
-  ZeroCopyInputStream* raw_input = new ArrayInputStream(carray, size);
+  ZeroCopyInputStream* raw_input = new ArrayInputStream(data, size);
   CodedInputStream* coded_input = new CodedInputStream(raw_input);
   coded_input->SetTotalBytesLimit(INT_MAX, 536870912);
 
   bool success = proto->ParseFromCodedStream(coded_input);
 
-  // the array is read-only, so jvm can safely discard the copy
-  env->ReleasePrimitiveArrayCritical(array, carray, JNI_ABORT);
   delete coded_input;
   delete raw_input;
+  if (metrics) {
+    AddMetric(BYTES_DESERIALIZED, size);
+    AddLatency(DESERIALIZE_NANOS, NowNanos() - start);
+  }
   return success;
 }
 
 jbyteArray WriteProtoToByteArray(JNIEnv* env, const Message& proto) {
+  const bool metrics = MetricsEnabled();
+  const int64_t start = metrics ? NowNanos() : 0;
   int size = proto.ByteSize();
   // create a byte[] object
   jbyteArray array = env->NewByteArray(size);
+  const int64_t pinned = metrics ? NowNanos() : 0;
   jbyte* carray = reinterpret_cast<jbyte*>(
     env->GetPrimitiveArrayCritical(array, 0));
   proto.SerializeToArray(carray, size);
   // copy back the content and free the c++ array
   env->ReleasePrimitiveArrayCritical(array, carray, 0);
+  if (metrics) {
+    const int64_t end = NowNanos();
+    AddMetric(ARRAY_PINS, 1);
+    AddLatency(PIN_NANOS, end - pinned);
+    AddMetric(BYTES_SERIALIZED, size);
+    AddLatency(SERIALIZE_NANOS, end - start);
+  }
   return array;
 }
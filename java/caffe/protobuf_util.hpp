@@ -8,6 +8,9 @@ using google::protobuf::Message;
 
 bool ReadProtoFromByteArray(JNIEnv* env, jbyteArray array, Message* proto);
 
+/** Parse a binary proto from memory, e.g. a memory mapped file. */
+bool ReadProtoFromBuffer(const void* data, size_t size, Message* proto);
+
 jbyteArray WriteProtoToByteArray(JNIEnv* env, const Message& proto);
 
 #endif
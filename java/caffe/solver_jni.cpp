@@ -1,19 +1,12 @@
-#include <map>
-#include <utility>
-
 #include "caffe/caffe.hpp"
 #include "com_htc_speedo_caffe_Solver.h"
 #include "jni_solver.hpp"
 #include "protobuf_util.hpp"
 
 using caffe::Caffe;
-using caffe::map;
 using caffe::NetParameter;
 using caffe::SolverParameter;
 
-// A map to record if a solver is double precision or not
-map<jlong, bool> precisionMap;
-
 void Java_com_htc_speedo_caffe_Solver_DisableGoogleLogging
   (JNIEnv * env, jclass obj) {
   FLAGS_minloglevel = 4;  // FATAL is 3, set level to 4 ignores all logs
@@ -63,104 +56,422 @@ jlong Java_com_htc_speedo_caffe_Solver_init(JNIEnv* env, jclass obj,
   solver_param.mutable_net_param()->CopyFrom(net_param);
   solver_param.clear_net();
 
-  jlong handle = 0;
-  // create solver
+  JNISolverBase* solver;
+  // create solver, the handle itself carries the precision
   if (doublePrecision) {
-    handle = (jlong) new JNISolver<double>(solver_param);
+    solver = new JNISolver<double>(solver_param);
   } else {
-    handle = (jlong) new JNISolver<float>(solver_param);
+    solver = new JNISolver<float>(solver_param);
   }
-  precisionMap.insert(std::pair<jlong, bool>(handle, doublePrecision));
-  return handle;
+  return JNISolverBase::ToHandle(solver);
 }
 
 void Java_com_htc_speedo_caffe_Solver_dispose(JNIEnv* env, jclass obj, jlong handle) {
-  if (precisionMap[handle]) {
-    delete (JNISolver<double>*) handle;
-  } else {
-    delete (JNISolver<float>*) handle;
-  }
+  if (!JNISolverBase::FromHandle(env, handle)) return;
+  JNISolverBase::Release(handle);
+}
+
+jlong Java_com_htc_speedo_caffe_Solver_cloneSolver(JNIEnv* env, jclass obj,
+  jlong handle, jboolean history) {
+  shared_ptr<JNISolverBase> solver = JNISolverBase::FromHandle(env, handle);
+  if (!solver) return 0;
+  return JNISolverBase::ToHandle(solver->clone(history));
 }
 
 jdouble Java_com_htc_speedo_caffe_Solver_train(JNIEnv* env, jclass obj,
   jlong handle, jint iteration, jboolean update_diff) {
+  shared_ptr<JNISolverBase> solver = JNISolverBase::FromHandle(env, handle);
+  if (!solver) return 0;
   // train for given iterations
-  if (precisionMap[handle]) {
-    return ((JNISolver<double>*) handle)->train(iteration, update_diff);
-  } else {
-    return ((JNISolver<float>*) handle)->train(iteration, update_diff);
-  }
+  return solver->train(iteration, update_diff);
 }
 
 jdouble Java_com_htc_speedo_caffe_Solver_test(JNIEnv* env, jclass obj,
   jlong handle, jint iteration) {
+  shared_ptr<JNISolverBase> solver = JNISolverBase::FromHandle(env, handle);
+  if (!solver) return 0;
   // test for given iterations, should be (test data size/test batch size).
-  if (precisionMap[handle]) {
-    return ((JNISolver<double>*) handle)->test(iteration);
-  } else {
-    return ((JNISolver<float>*) handle)->test(iteration);
+  return solver->test(iteration);
+}
+
+jdoubleArray Java_com_htc_speedo_caffe_Solver_testOutputs(JNIEnv* env,
+  jclass obj, jlong handle, jint iteration, jint netId) {
+  shared_ptr<JNISolverBase> solver = JNISolverBase::FromHandle(env, handle);
+  if (!solver) return NULL;
+  vector<double> sums;
+  if (!solver->testOutputs(iteration, netId, &sums)) {
+    jclass exception = env->FindClass("java/lang/IllegalArgumentException");
+    env->ThrowNew(exception, "Invalid test net id!");
+    return NULL;
+  }
+  jdoubleArray array = env->NewDoubleArray(sums.size());
+  if (!sums.empty()) {
+    env->SetDoubleArrayRegion(array, 0, sums.size(), &sums[0]);
   }
+  return array;
+}
+
+jobjectArray Java_com_htc_speedo_caffe_Solver_getTestOutputNames(JNIEnv* env,
+  jclass obj, jlong handle, jint netId) {
+  shared_ptr<JNISolverBase> solver = JNISolverBase::FromHandle(env, handle);
+  if (!solver) return NULL;
+  vector<string> names;
+  if (!solver->getTestOutputNames(netId, &names)) {
+    jclass exception = env->FindClass("java/lang/IllegalArgumentException");
+    env->ThrowNew(exception, "Invalid test net id!");
+    return NULL;
+  }
+  jobjectArray array = env->NewObjectArray(names.size(),
+    env->FindClass("java/lang/String"), NULL);
+  for (int i = 0; i < names.size(); i++) {
+    jstring name = env->NewStringUTF(names[i].c_str());
+    env->SetObjectArrayElement(array, i, name);
+    env->DeleteLocalRef(name);
+  }
+  return array;
 }
 
 void Java_com_htc_speedo_caffe_Solver_setIteration(JNIEnv* env, jclass obj,
   jlong handle, jint iteration) {
-  if (precisionMap[handle]) {
-    ((JNISolver<double>*) handle)->setIteration(iteration);
-  } else {
-    ((JNISolver<float>*) handle)->setIteration(iteration);
-  }
+  shared_ptr<JNISolverBase> solver = JNISolverBase::FromHandle(env, handle);
+  if (!solver) return;
+  solver->setIteration(iteration);
 }
 
 void Java_com_htc_speedo_caffe_Solver_setBatchSize(JNIEnv* env, jclass obj,
   jlong handle, jint batch_size) {
-  if (precisionMap[handle]) {
-    ((JNISolver<double>*) handle)->setBatchSize(batch_size);
-  } else {
-    ((JNISolver<float>*) handle)->setBatchSize(batch_size);
-  }
+  shared_ptr<JNISolverBase> solver = JNISolverBase::FromHandle(env, handle);
+  if (!solver) return;
+  solver->setBatchSize(batch_size);
 }
 
 void Java_com_htc_speedo_caffe_Solver_updateParameter(JNIEnv* env, jclass obj,
   jlong handle, jbyteArray paramBytes) {
+  shared_ptr<JNISolverBase> solver = JNISolverBase::FromHandle(env, handle);
+  if (!solver) return;
   SolverParameter param;
   ReadProtoFromByteArray(env, paramBytes, &param);
-  if (precisionMap[handle]) {
-    ((JNISolver<double>*) handle)->updateParameter(param);
-  } else {
-    ((JNISolver<float>*) handle)->updateParameter(param);
-  }
+  solver->updateParameter(param);
 }
 
 void Java_com_htc_speedo_caffe_Solver_setWeight(JNIEnv* env, jclass obj,
   jlong handle, jbyteArray weight) {
+  shared_ptr<JNISolverBase> solver = JNISolverBase::FromHandle(env, handle);
+  if (!solver) return;
   NetParameter net_param;
   ReadProtoFromByteArray(env, weight, &net_param);
-  if (precisionMap[handle]) {
-    ((JNISolver<double>*) handle)->setWeight(net_param);
-  } else {
-    ((JNISolver<float>*) handle)->setWeight(net_param);
-  }
+  solver->setWeight(net_param);
 }
 
 jbyteArray Java_com_htc_speedo_caffe_Solver_getWeight(JNIEnv* env, jclass obj,
   jlong handle, jboolean diff) {
+  shared_ptr<JNISolverBase> solver = JNISolverBase::FromHandle(env, handle);
+  if (!solver) return NULL;
   NetParameter net_param;
-  if (precisionMap[handle]) {
-    ((JNISolver<double>*) handle)->getWeight(&net_param, diff);
-  } else {
-    ((JNISolver<float>*) handle)->getWeight(&net_param, diff);
+  solver->getWeight(&net_param, diff);
+  return WriteProtoToByteArray(env, net_param);
+}
+
+jbyteArray Java_com_htc_speedo_caffe_Solver_getLayers(JNIEnv* env, jclass obj,
+  jlong handle, jobjectArray layers, jboolean diff) {
+  shared_ptr<JNISolverBase> solver = JNISolverBase::FromHandle(env, handle);
+  if (!solver) return NULL;
+  std::set<string> names;
+  for (int i = 0; i < env->GetArrayLength(layers); i++) {
+    jstring name = (jstring) env->GetObjectArrayElement(layers, i);
+    const char* chars = env->GetStringUTFChars(name, NULL);
+    names.insert(chars);
+    env->ReleaseStringUTFChars(name, chars);
+    env->DeleteLocalRef(name);
   }
+  NetParameter net_param;
+  solver->getLayers(names, diff, &net_param);
+  return WriteProtoToByteArray(env, net_param);
+}
+
+void Java_com_htc_speedo_caffe_Solver_setVersionTracking(JNIEnv* env,
+  jclass obj, jlong handle, jboolean enabled) {
+  shared_ptr<JNISolverBase> solver = JNISolverBase::FromHandle(env, handle);
+  if (!solver) return;
+  solver->setVersionTracking(enabled);
+}
+
+jlong Java_com_htc_speedo_caffe_Solver_getVersion(JNIEnv* env, jclass obj,
+  jlong handle) {
+  shared_ptr<JNISolverBase> solver = JNISolverBase::FromHandle(env, handle);
+  if (!solver) return 0;
+  return solver->getVersion();
+}
+
+jbyteArray Java_com_htc_speedo_caffe_Solver_getWeightSince(JNIEnv* env,
+  jclass obj, jlong handle, jlong version) {
+  shared_ptr<JNISolverBase> solver = JNISolverBase::FromHandle(env, handle);
+  if (!solver) return NULL;
+  NetParameter net_param;
+  solver->getWeightSince(version, &net_param);
   return WriteProtoToByteArray(env, net_param);
 }
 
 jbyteArray Java_com_htc_speedo_caffe_Solver_mergeDelta(JNIEnv* env, jclass obj,
   jlong handle, jbyteArray delta) {
+  shared_ptr<JNISolverBase> solver = JNISolverBase::FromHandle(env, handle);
+  if (!solver) return NULL;
   NetParameter net_param;
   ReadProtoFromByteArray(env, delta, &net_param);
-  if (precisionMap[handle]) {
-    ((JNISolver<double>*) handle)->mergeDelta(net_param, &net_param);
-  } else {
-    ((JNISolver<float>*) handle)->mergeDelta(net_param, &net_param);
-  }
+  solver->mergeDelta(net_param, &net_param);
   return WriteProtoToByteArray(env, net_param);
 }
+
+jbyteArray Java_com_htc_speedo_caffe_Solver_getLayout(JNIEnv* env, jclass obj,
+  jlong handle) {
+  shared_ptr<JNISolverBase> solver = JNISolverBase::FromHandle(env, handle);
+  if (!solver) return NULL;
+  NetParameter layout;
+  solver->getLayout(&layout);
+  return WriteProtoToByteArray(env, layout);
+}
+
+void Java_com_htc_speedo_caffe_Solver_getWeightBuffer(JNIEnv* env, jclass obj,
+  jlong handle, jobject buffer, jboolean diff) {
+  shared_ptr<JNISolverBase> solver = JNISolverBase::FromHandle(env, handle);
+  if (!solver) return;
+  // the direct buffer is already allocated and checked in java
+  solver->getWeightBuffer(env->GetDirectBufferAddress(buffer), diff);
+}
+
+void Java_com_htc_speedo_caffe_Solver_setWeightBuffer(JNIEnv* env, jclass obj,
+  jlong handle, jobject buffer, jboolean diff) {
+  shared_ptr<JNISolverBase> solver = JNISolverBase::FromHandle(env, handle);
+  if (!solver) return;
+  solver->setWeightBuffer(env->GetDirectBufferAddress(buffer), diff);
+}
+
+void Java_com_htc_speedo_caffe_Solver_mergeDeltaBuffer(JNIEnv* env,
+  jclass obj, jlong handle, jobject delta, jobject weight) {
+  shared_ptr<JNISolverBase> solver = JNISolverBase::FromHandle(env, handle);
+  if (!solver) return;
+  // weight buffer is optional
+  solver->mergeDeltaBuffer(env->GetDirectBufferAddress(delta),
+    weight ? env->GetDirectBufferAddress(weight) : NULL);
+}
+
+void Java_com_htc_speedo_caffe_Solver_mergeSliceBuffer(JNIEnv* env,
+  jclass obj, jlong handle, jintArray blobs, jobject delta, jobject weight) {
+  shared_ptr<JNISolverBase> solver = JNISolverBase::FromHandle(env, handle);
+  if (!solver) return;
+  // blob indices are checked in java
+  vector<int> indices(env->GetArrayLength(blobs));
+  if (!indices.empty()) {
+    env->GetIntArrayRegion(blobs, 0, indices.size(), &indices[0]);
+  }
+  solver->mergeSliceBuffer(indices, env->GetDirectBufferAddress(delta),
+    weight ? env->GetDirectBufferAddress(weight) : NULL);
+}
+
+/** Calls GradientListener.onGradient in java for each exported layer. */
+class JavaLayerCallback : public LayerCallback {
+ public:
+  JavaLayerCallback(JNIEnv* env, jobject listener, jobject delta)
+    : env_(env), listener_(listener), delta_(delta) {
+    method_ = env->GetMethodID(env->GetObjectClass(listener), "onGradient",
+      "(ILjava/nio/Buffer;II)V");
+  }
+
+  virtual bool operator()(int layer, int offset, int count) {
+    env_->CallVoidMethod(listener_, method_, layer, delta_, offset, count);
+    // stop the backward pass if the listener throws
+    return !env_->ExceptionCheck();
+  }
+
+ private:
+  JNIEnv* env_;
+  jobject listener_;
+  jobject delta_;
+  jmethodID method_;
+};
+
+jdouble Java_com_htc_speedo_caffe_Solver_trainExport(JNIEnv* env, jclass obj,
+  jlong handle, jobject delta, jobject listener) {
+  shared_ptr<JNISolverBase> solver = JNISolverBase::FromHandle(env, handle);
+  if (!solver) return 0;
+  void* buffer = env->GetDirectBufferAddress(delta);
+  // listener is optional
+  if (!listener) return solver->trainExport(buffer, NULL);
+  JavaLayerCallback callback(env, listener, delta);
+  return solver->trainExport(buffer, &callback);
+}
+
+jint Java_com_htc_speedo_caffe_Solver_getCompressedDelta(JNIEnv* env,
+  jclass obj, jlong handle, jobject output, jint sparsification,
+  jdouble parameter, jint quantization, jboolean errorFeedback) {
+  shared_ptr<JNISolverBase> solver = JNISolverBase::FromHandle(env, handle);
+  if (!solver) return 0;
+  CompressionParameter param;
+  param.sparsification = static_cast<Sparsification>(sparsification);
+  param.parameter = parameter;
+  param.quantization = static_cast<Quantization>(quantization);
+  vector<int> counts;
+  solver->getBlobCounts(&counts);
+  if (env->GetDirectBufferCapacity(output) <
+    static_cast<jlong>(MaxCompressedSize(counts, param))) {
+    jclass exception = env->FindClass("java/lang/IllegalArgumentException");
+    env->ThrowNew(exception, "Buffer is too small for compressed delta!");
+    return 0;
+  }
+  return solver->getCompressedDelta(param, errorFeedback,
+    static_cast<char*>(env->GetDirectBufferAddress(output)));
+}
+
+void Java_com_htc_speedo_caffe_Solver_resetResidual(JNIEnv* env, jclass obj,
+  jlong handle) {
+  shared_ptr<JNISolverBase> solver = JNISolverBase::FromHandle(env, handle);
+  if (!solver) return;
+  solver->resetResidual();
+}
+
+void Java_com_htc_speedo_caffe_Solver_mergeCompressedDelta(JNIEnv* env,
+  jclass obj, jlong handle, jobject compressed, jint size, jobject weight) {
+  shared_ptr<JNISolverBase> solver = JNISolverBase::FromHandle(env, handle);
+  if (!solver) return;
+  // weight buffer is optional
+  if (!solver->mergeCompressedDelta(
+    static_cast<const char*>(env->GetDirectBufferAddress(compressed)), size,
+    weight ? env->GetDirectBufferAddress(weight) : NULL)) {
+    jclass exception = env->FindClass("java/lang/IllegalArgumentException");
+    env->ThrowNew(exception, "Malformed compressed delta!");
+  }
+}
+
+jlong Java_com_htc_speedo_caffe_Solver_getStateSize(JNIEnv* env, jclass obj,
+  jlong handle, jboolean history) {
+  shared_ptr<JNISolverBase> solver = JNISolverBase::FromHandle(env, handle);
+  if (!solver) return 0;
+  return solver->getStateSize(history);
+}
+
+void Java_com_htc_speedo_caffe_Solver_snapshotState(JNIEnv* env, jclass obj,
+  jlong handle, jobject output, jboolean history) {
+  shared_ptr<JNISolverBase> solver = JNISolverBase::FromHandle(env, handle);
+  if (!solver) return;
+  // the direct buffer is already checked in java
+  solver->snapshotState(
+    static_cast<char*>(env->GetDirectBufferAddress(output)), history);
+}
+
+void Java_com_htc_speedo_caffe_Solver_restoreState(JNIEnv* env, jclass obj,
+  jlong handle, jobject input, jlong size, jboolean weightsOnly) {
+  shared_ptr<JNISolverBase> solver = JNISolverBase::FromHandle(env, handle);
+  if (!solver) return;
+  if (!solver->restoreState(
+    static_cast<const char*>(env->GetDirectBufferAddress(input)), size,
+    weightsOnly)) {
+    jclass exception = env->FindClass("java/lang/IllegalArgumentException");
+    env->ThrowNew(exception, "Snapshot does not match the solver!");
+  }
+}
+
+void Java_com_htc_speedo_caffe_Solver_setWeightBinaryProto(JNIEnv* env,
+  jclass obj, jlong handle, jobject input, jlong size) {
+  shared_ptr<JNISolverBase> solver = JNISolverBase::FromHandle(env, handle);
+  if (!solver) return;
+  // parse directly from the (usually memory mapped) buffer
+  NetParameter net_param;
+  if (!ReadProtoFromBuffer(env->GetDirectBufferAddress(input), size,
+    &net_param)) {
+    jclass exception = env->FindClass("java/lang/IllegalArgumentException");
+    env->ThrowNew(exception, "Failed to parse binary proto of weights!");
+    return;
+  }
+  solver->setWeight(net_param);
+}
+
+jintArray Java_com_htc_speedo_caffe_Solver_getMemoryDataShape(JNIEnv* env,
+  jclass obj, jlong handle) {
+  shared_ptr<JNISolverBase> solver = JNISolverBase::FromHandle(env, handle);
+  if (!solver) return NULL;
+  vector<int> shape;
+  // returns null if there is no memory data layer
+  if (!solver->getMemoryDataShape(&shape)) return NULL;
+  jintArray array = env->NewIntArray(shape.size());
+  env->SetIntArrayRegion(array, 0, shape.size(), &shape[0]);
+  return array;
+}
+
+void Java_com_htc_speedo_caffe_Solver_setMemoryData(JNIEnv* env, jclass obj,
+  jlong handle, jobject data, jobject labels, jint n) {
+  shared_ptr<JNISolverBase> solver = JNISolverBase::FromHandle(env, handle);
+  if (!solver) return;
+  // the direct buffers are already checked in java
+  if (!solver->setMemoryData(env->GetDirectBufferAddress(data),
+    env->GetDirectBufferAddress(labels), n)) {
+    jclass exception = env->FindClass("java/lang/IllegalArgumentException");
+    env->ThrowNew(exception, "Data does not match the memory data layer!");
+  }
+}
+
+void Java_com_htc_speedo_caffe_Solver_setMetricsEnabled(JNIEnv* env,
+  jclass obj, jboolean enabled) {
+  SetMetricsEnabled(enabled);
+}
+
+jboolean Java_com_htc_speedo_caffe_Solver_isMetricsEnabled(JNIEnv* env,
+  jclass obj) {
+  return MetricsEnabled();
+}
+
+jlongArray Java_com_htc_speedo_caffe_Solver_getGlobalMetrics(JNIEnv* env,
+  jclass obj) {
+  const int size = METRIC_COUNTERS * (1 + kHistogramBuckets);
+  int64_t values[size];
+  GetMetrics(values);
+  jlongArray array = env->NewLongArray(size);
+  env->SetLongArrayRegion(array, 0, size, reinterpret_cast<jlong*>(values));
+  return array;
+}
+
+void Java_com_htc_speedo_caffe_Solver_resetGlobalMetrics(JNIEnv* env,
+  jclass obj) {
+  ResetMetrics();
+}
+
+jlongArray Java_com_htc_speedo_caffe_Solver_getMetrics(JNIEnv* env,
+  jclass obj, jlong handle) {
+  shared_ptr<JNISolverBase> solver = JNISolverBase::FromHandle(env, handle);
+  if (!solver) return NULL;
+  vector<int64_t> metrics;
+  solver->getMetrics(&metrics);
+  jlongArray array = env->NewLongArray(metrics.size());
+  env->SetLongArrayRegion(array, 0, metrics.size(),
+    reinterpret_cast<jlong*>(&metrics[0]));
+  return array;
+}
+
+jobjectArray Java_com_htc_speedo_caffe_Solver_getLayerNames(JNIEnv* env,
+  jclass obj, jlong handle) {
+  shared_ptr<JNISolverBase> solver = JNISolverBase::FromHandle(env, handle);
+  if (!solver) return NULL;
+  vector<string> names;
+  solver->getLayerNames(&names);
+  jobjectArray array = env->NewObjectArray(names.size(),
+    env->FindClass("java/lang/String"), NULL);
+  for (int i = 0; i < names.size(); i++) {
+    jstring name = env->NewStringUTF(names[i].c_str());
+    env->SetObjectArrayElement(array, i, name);
+    env->DeleteLocalRef(name);
+  }
+  return array;
+}
+
+void Java_com_htc_speedo_caffe_Solver_resetMetrics(JNIEnv* env, jclass obj,
+  jlong handle) {
+  shared_ptr<JNISolverBase> solver = JNISolverBase::FromHandle(env, handle);
+  if (!solver) return;
+  solver->resetMetrics();
+}
+
+jlong Java_com_htc_speedo_caffe_Solver_getMemoryFootprint(JNIEnv* env,
+  jclass obj, jlong handle) {
+  shared_ptr<JNISolverBase> solver = JNISolverBase::FromHandle(env, handle);
+  if (!solver) return 0;
+  return solver->getMemoryFootprint();
+}
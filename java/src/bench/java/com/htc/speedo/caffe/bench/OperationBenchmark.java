@@ -0,0 +1,116 @@
+package com.htc.speedo.caffe.bench;
+
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.htc.speedo.caffe.NetParameterOperation;
+import com.htc.speedo.caffe.NetParameterOperation.ReduceMode;
+import com.htc.speedo.caffe.ParameterLayout;
+import com.htc.speedo.caffe.Solver;
+
+/**
+ * Cost of {@link NetParameterOperation} arithmetic on serialized net parameters and on flat
+ * buffers against model size.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class OperationBenchmark {
+  // The number of inputs of reduce
+  private static final int REDUCE_INPUTS = 4;
+
+  @Param({"100000", "10000000", "100000000"})
+  public int parameters;
+
+  @Param({"false", "true"})
+  public boolean doublePrecision;
+
+  @Setup
+  public void setup() throws IOException {
+    // the solver is only used to create the weights
+    Solver solver = SyntheticModel.solver(parameters, 1, doublePrecision);
+    model1 = solver.getWeight();
+    ParameterLayout layout = solver.getLayout();
+    for (int i = 0; i < REDUCE_INPUTS; i++) {
+      Buffer flat = SyntheticModel.typedView(layout.allocate(), doublePrecision);
+      solver.getWeight(flat);
+      flats.add(flat);
+    }
+    solver.train(1);
+    model2 = solver.getWeight();
+    output = SyntheticModel.typedView(layout.allocate(), doublePrecision);
+    solver.dispose();
+  }
+
+  @Benchmark
+  public byte[] plusProto() {
+    return NetParameterOperation.plus(model1, model2);
+  }
+
+  @Benchmark
+  public byte[] plusSkipProto() {
+    return NetParameterOperation.plus(model1, model2, 0.5f);
+  }
+
+  @Benchmark
+  public byte[] divideProto() {
+    return NetParameterOperation.divide(model1, 3);
+  }
+
+  @Benchmark
+  public byte[] reduceProto() {
+    List<byte[]> models = new ArrayList<byte[]>(REDUCE_INPUTS);
+    for (int i = 0; i < REDUCE_INPUTS; i++) models.add(i % 2 == 0 ? model1 : model2);
+    return NetParameterOperation.reduce(models, ReduceMode.MEAN);
+  }
+
+  @Benchmark
+  public Buffer axpyFlat() {
+    if (doublePrecision)
+      NetParameterOperation.axpy(0.5, (DoubleBuffer) flats.get(0), (DoubleBuffer) output);
+    else
+      NetParameterOperation.axpy(0.5f, (FloatBuffer) flats.get(0), (FloatBuffer) output);
+    return output;
+  }
+
+  @Benchmark
+  public Buffer scaleFlat() {
+    if (doublePrecision)
+      NetParameterOperation.scale((DoubleBuffer) output, 0.5);
+    else
+      NetParameterOperation.scale((FloatBuffer) output, 0.5f);
+    return output;
+  }
+
+  @Benchmark
+  public Buffer reduceFlat() {
+    NetParameterOperation.reduce(flats, output, ReduceMode.MEAN, null);
+    return output;
+  }
+
+  // The serialized weights before and after an update
+  private byte[] model1, model2;
+  // The flat buffers as inputs of reduce, and the output
+  private final List<Buffer> flats = new ArrayList<Buffer>();
+  private Buffer output;
+}
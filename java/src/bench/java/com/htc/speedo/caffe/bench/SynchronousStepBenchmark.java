@@ -0,0 +1,110 @@
+package com.htc.speedo.caffe.bench;
+
+import java.io.IOException;
+import java.nio.Buffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.htc.speedo.caffe.NetParameterOperation;
+import com.htc.speedo.caffe.NetParameterOperation.ReduceMode;
+import com.htc.speedo.caffe.ParameterLayout;
+import com.htc.speedo.caffe.Solver;
+
+/**
+ * End to end cost of one synchronous step of N workers that only compute gradients, modeled on
+ * singleWorkerGradientOnlySynchronous in JNITest. One worker solver computes the gradients of all
+ * workers in turn, and a master solver merges the mean gradient. The total batch size is fixed,
+ * so more workers means smaller batches and more transfers per step.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class SynchronousStepBenchmark {
+  // The total batch size of a step
+  private static final int BATCH_SIZE = 64;
+
+  @Param({"1", "4", "16"})
+  public int workers;
+
+  @Param({"100000", "1000000", "10000000"})
+  public int parameters;
+
+  @Param({"false", "true"})
+  public boolean doublePrecision;
+
+  @Setup
+  public void setup() throws IOException {
+    int batch_size = (BATCH_SIZE - 1) / workers + 1;
+    master = SyntheticModel.solver(parameters, batch_size, doublePrecision);
+    worker = SyntheticModel.solver(parameters, batch_size, doublePrecision);
+    weight = master.getWeight();
+    ParameterLayout layout = master.getLayout();
+    flatWeight = SyntheticModel.typedView(layout.allocate(), doublePrecision);
+    master.getWeight(flatWeight);
+    for (int i = 0; i < workers; i++)
+      flatDeltas.add(SyntheticModel.typedView(layout.allocate(), doublePrecision));
+    flatMean = SyntheticModel.typedView(layout.allocate(), doublePrecision);
+  }
+
+  @TearDown
+  public void tearDown() {
+    master.dispose();
+    worker.dispose();
+  }
+
+  /** A step with protobuf serialization, same as the test. */
+  @Benchmark
+  public double protoStep() {
+    byte[] delta = null;
+    double loss = 0;
+    worker.setWeight(weight);
+    for (int i = 0; i < workers; i++) {
+      loss += worker.train(1, false);
+      if (delta == null)
+        delta = worker.getDelta();
+      else
+        delta = NetParameterOperation.plus(delta, worker.getDelta());
+    }
+    weight = master.mergeDelta(NetParameterOperation.divide(delta, workers));
+    return loss / workers;
+  }
+
+  /** A step with flat buffers and native reduce. */
+  @Benchmark
+  public double flatStep() {
+    double loss = 0;
+    worker.setWeight(flatWeight);
+    for (int i = 0; i < workers; i++) {
+      loss += worker.train(1, false);
+      worker.getDelta(flatDeltas.get(i));
+    }
+    NetParameterOperation.reduce(flatDeltas, flatMean, ReduceMode.MEAN, null);
+    master.mergeDelta(flatMean, flatWeight);
+    return loss / workers;
+  }
+
+  // The master solver to merge deltas, and the worker solver to compute gradients
+  private Solver master, worker;
+  // The latest weights of the proto step
+  private byte[] weight;
+  // The latest weights, deltas of each worker and mean delta of the flat step
+  private Buffer flatWeight, flatMean;
+  private final List<Buffer> flatDeltas = new ArrayList<Buffer>();
+}
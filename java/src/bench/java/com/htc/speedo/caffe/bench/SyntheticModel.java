@@ -0,0 +1,62 @@
+package com.htc.speedo.caffe.bench;
+
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+
+import caffe.Caffe.NetParameter;
+import caffe.Caffe.SolverParameter;
+
+import com.google.protobuf.TextFormat;
+
+import com.htc.speedo.caffe.Solver;
+
+/**
+ * Synthetic models of given number of parameters for benchmarks. The model is a two layer
+ * perceptron fed by a DummyDataLayer, so it trains without any data files.
+ */
+final class SyntheticModel {
+  // The number of input features and classes
+  static final int INPUT = 1000, OUTPUT = 10;
+
+  private SyntheticModel() {}
+
+  /** A net with roughly given number of parameters, the hidden layer is sized to match. */
+  static NetParameter model(int parameters, int batch_size) throws IOException {
+    int hidden = Math.max(1, parameters / (INPUT + OUTPUT + 1));
+    String prototxt = "name: 'synthetic' "
+      + "layer { name: 'data' type: 'DummyData' top: 'data' top: 'label' dummy_data_param { "
+      + "  shape { dim: " + batch_size + " dim: " + INPUT + " } shape { dim: " + batch_size + " }"
+      + "  data_filler { type: 'gaussian' std: 1 } data_filler { type: 'constant' value: 1 } } }"
+      + "layer { name: 'ip1' type: 'InnerProduct' bottom: 'data' top: 'ip1' "
+      + "  inner_product_param { num_output: " + hidden + " weight_filler { type: 'xavier' } } }"
+      + "layer { name: 'relu1' type: 'ReLU' bottom: 'ip1' top: 'ip1' }"
+      + "layer { name: 'ip2' type: 'InnerProduct' bottom: 'ip1' top: 'ip2' "
+      + "  inner_product_param { num_output: " + OUTPUT + " weight_filler { type: 'xavier' } } }"
+      + "layer { name: 'loss' type: 'SoftmaxWithLoss' bottom: 'ip2' bottom: 'label' top: 'loss' }";
+    NetParameter.Builder builder = NetParameter.newBuilder();
+    TextFormat.merge(prototxt, builder);
+    return builder.build();
+  }
+
+  /** A plain SGD solver with momentum, which never tests. */
+  static SolverParameter solverParameter() throws IOException {
+    SolverParameter.Builder builder = SolverParameter.newBuilder();
+    TextFormat.merge("base_lr: 0.01 momentum: 0.9 lr_policy: 'fixed' random_seed: 1", builder);
+    return builder.build();
+  }
+
+  /** Create a solver of the synthetic model. */
+  static Solver solver(int parameters, int batch_size, boolean doublePrecision)
+    throws IOException {
+    Solver.DisableGoogleLogging();
+    Solver solver = new Solver();
+    solver.init(solverParameter(), model(parameters, batch_size), doublePrecision);
+    return solver;
+  }
+
+  /** Create a float or double view of the flat buffer. */
+  static Buffer typedView(ByteBuffer buffer, boolean doublePrecision) {
+    return doublePrecision ? buffer.asDoubleBuffer() : buffer.asFloatBuffer();
+  }
+}
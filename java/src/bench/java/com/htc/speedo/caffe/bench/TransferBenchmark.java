@@ -0,0 +1,106 @@
+package com.htc.speedo.caffe.bench;
+
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.htc.speedo.caffe.ParameterLayout;
+import com.htc.speedo.caffe.Solver;
+
+/**
+ * Cost of moving weights and deltas between java and the c++ solver, with protobuf serialization
+ * and with flat buffers, against model size. jniCall measures the fixed overhead of a native call
+ * on the solver handle.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class TransferBenchmark {
+  @Param({"100000", "10000000", "100000000"})
+  public int parameters;
+
+  @Param({"false", "true"})
+  public boolean doublePrecision;
+
+  @Setup
+  public void setup() throws IOException {
+    solver = SyntheticModel.solver(parameters, 1, doublePrecision);
+    // compute a real gradient to merge
+    solver.train(1, false);
+    weight = solver.getWeight();
+    delta = solver.getDelta();
+    ParameterLayout layout = solver.getLayout();
+    ByteBuffer flatWeightBytes = layout.allocate();
+    ByteBuffer flatDeltaBytes = layout.allocate();
+    flatWeight = SyntheticModel.typedView(flatWeightBytes, doublePrecision);
+    flatDelta = SyntheticModel.typedView(flatDeltaBytes, doublePrecision);
+    solver.getWeight(flatWeight);
+    solver.getDelta(flatDelta);
+  }
+
+  @TearDown
+  public void tearDown() {
+    solver.dispose();
+  }
+
+  @Benchmark
+  public byte[] getWeightProto() {
+    return solver.getWeight();
+  }
+
+  @Benchmark
+  public void setWeightProto() {
+    solver.setWeight(weight);
+  }
+
+  @Benchmark
+  public byte[] mergeDeltaProto() {
+    return solver.mergeDelta(delta);
+  }
+
+  @Benchmark
+  public Buffer getWeightFlat() {
+    solver.getWeight(flatWeight);
+    return flatWeight;
+  }
+
+  @Benchmark
+  public void setWeightFlat() {
+    solver.setWeight(flatWeight);
+  }
+
+  @Benchmark
+  public Buffer mergeDeltaFlat() {
+    solver.mergeDelta(flatDelta, flatWeight);
+    return flatWeight;
+  }
+
+  @Benchmark
+  @OutputTimeUnit(TimeUnit.NANOSECONDS)
+  public long jniCall() {
+    return solver.getVersion();
+  }
+
+  private Solver solver;
+  // The serialized weights and deltas
+  private byte[] weight, delta;
+  // The flat buffers of weights and deltas
+  private Buffer flatWeight, flatDelta;
+}
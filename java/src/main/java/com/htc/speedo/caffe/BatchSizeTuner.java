@@ -0,0 +1,254 @@
+package com.htc.speedo.caffe;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Logger;
+
+import caffe.Caffe.SolverParameter;
+
+/**
+ * Tunes the split of an effective batch into batch size and iter_size of a solver for throughput.
+ * Each candidate batch size is measured by a short window of real training iterations, so tuning
+ * also trains the model. The candidate with the most samples per second within the memory budget
+ * is applied with {@link Solver#setBatchSize(int)} and {@link Solver#updateParameter}.
+ * <p>
+ * The iter_size of a batch size is the effective batch divided by batch size, rounded. If the
+ * product differs from the effective batch, base_lr is scaled by the ratio (linear scaling rule).
+ * The tuner overrides base_lr and iter_size of the solver, other fields are taken from the solver
+ * parameter given to the constructor. Decisions are logged at INFO level.
+ * <p>
+ * Candidates are measured in ascending order, and a candidate whose memory footprint is predicted
+ * to exceed the memory budget is never trained. Caffe never releases blob memory when the batch
+ * shrinks, blobs keep the capacity of the largest batch trained so far, while
+ * {@link Solver#getMemoryFootprint()} only counts the elements in use. So after tuning, the solver
+ * holds the memory of the largest candidate measured, even if a smaller one is applied.
+ */
+public class BatchSizeTuner {
+  private static final Logger logger = Logger.getLogger(BatchSizeTuner.class.getName());
+
+  /** The measurement of a batch size. */
+  public static class Decision {
+    Decision(int batchSize, int iterSize, float learningRate, double samplesPerSecond,
+      long memoryFootprint) {
+      this.batchSize = batchSize;
+      this.iterSize = iterSize;
+      this.learningRate = learningRate;
+      this.samplesPerSecond = samplesPerSecond;
+      this.memoryFootprint = memoryFootprint;
+    }
+
+    public int getBatchSize() {
+      return batchSize;
+    }
+
+    public int getIterSize() {
+      return iterSize;
+    }
+
+    /** The base_lr used with the batch size. */
+    public float getLearningRate() {
+      return learningRate;
+    }
+
+    /** Training throughput measured in the window. */
+    public double getSamplesPerSecond() {
+      return samplesPerSecond;
+    }
+
+    /**
+     * See {@link Solver#getMemoryFootprint()}, the memory in use with the batch size, not the
+     * memory held by the solver.
+     */
+    public long getMemoryFootprint() {
+      return memoryFootprint;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("batch_size %d x iter_size %d, base_lr %g: %.1f samples/s, %d bytes",
+        batchSize, iterSize, learningRate, samplesPerSecond, memoryFootprint);
+    }
+
+    private final int batchSize, iterSize;
+    private final float learningRate;
+    private final double samplesPerSecond;
+    private final long memoryFootprint;
+  }
+
+  /**
+   * Create a tuner, nothing is changed until {@link #tune()} or {@link #train(int)}.
+   * @param param The solver parameter to update, usually the one the solver is initialized with.
+   * Its base_lr is for the effective batch.
+   * @param effectiveBatch The number of samples of each iteration, i.e. batch size x iter_size.
+   * @param candidates The batch sizes to try, in any order.
+   */
+  public BatchSizeTuner(Solver solver, SolverParameter param, int effectiveBatch,
+    int... candidates) {
+    if (effectiveBatch <= 0)
+      throw new IllegalArgumentException("Effective batch must be positive!");
+    if (candidates.length == 0)
+      throw new IllegalArgumentException("Requires at least one candidate batch size!");
+    for (int candidate: candidates) {
+      if (candidate <= 0 || candidate > effectiveBatch)
+        throw new IllegalArgumentException("Invalid candidate batch size " + candidate);
+    }
+    this.solver = solver;
+    this.param = param;
+    this.effectiveBatch = effectiveBatch;
+    this.candidates = candidates.clone();
+    // ascending, so memory grows with each measurement
+    Arrays.sort(this.candidates);
+  }
+
+  /**
+   * Set the iterations of each measurement. Warmup iterations are not timed, e.g. the first
+   * iteration after batch size changes reshapes the net.
+   */
+  public void setWindow(int warmup, int iterations) {
+    if (warmup < 0 || iterations <= 0)
+      throw new IllegalArgumentException("Invalid window!");
+    this.warmup = warmup;
+    this.window = iterations;
+  }
+
+  /** Skip batch sizes using more memory than the given bytes, 0 (default) for no limit. */
+  public void setMemoryBudget(long bytes) {
+    memoryBudget = bytes;
+  }
+
+  /** Re-tune in {@link #train(int)} every given iterations, 0 (default) to tune only once. */
+  public void setRetuneInterval(int iterations) {
+    if (iterations < 0)
+      throw new IllegalArgumentException("Retune interval must be non-negative!");
+    retuneInterval = iterations;
+  }
+
+  /**
+   * Measure candidates in ascending order and apply the fastest one within the memory budget.
+   * Measuring stops before the first candidate whose footprint is predicted to exceed the budget,
+   * extrapolated linearly from the candidates measured. The smallest candidate is always measured,
+   * and applied if none fits the budget.
+   * @return The applied decision.
+   */
+  public Decision tune() {
+    List<Decision> results = new ArrayList<Decision>(candidates.length);
+    Decision best = null;
+    for (int candidate: candidates) {
+      if (memoryBudget > 0 && !results.isEmpty() && predictFootprint(results, candidate)
+        > memoryBudget) {
+        logger.fine("Skipped batch size " + candidate + " and larger, over the memory budget");
+        break;
+      }
+      Decision result = measure(candidate);
+      results.add(result);
+      logger.fine("Measured " + result);
+      if (memoryBudget <= 0 || result.getMemoryFootprint() <= memoryBudget) {
+        if (best == null || result.getSamplesPerSecond() > best.getSamplesPerSecond())
+          best = result;
+      }
+    }
+    if (best == null) {
+      logger.warning("No batch size fits the memory budget of " + memoryBudget + " bytes");
+      best = results.get(0);
+    }
+    apply(best.getBatchSize());
+    measurements = Collections.unmodifiableList(results);
+    decision = best;
+    logger.info("Selected " + best);
+    return best;
+  }
+
+  /**
+   * Train for given iterations, tuning first if not tuned yet, and re-tuning every
+   * {@link #setRetuneInterval(int) retune interval}. Iterations of measurements are counted.
+   * @return The average loss.
+   */
+  public double train(int iteration) {
+    double loss = 0;
+    int done = 0, counted = 0;
+    while (done < iteration) {
+      if (decision == null || (retuneInterval > 0 && sinceTune >= retuneInterval)) {
+        tune();
+        sinceTune = 0;
+        done += measurements.size() * (warmup + window);
+        continue;
+      }
+      int steps = iteration - done;
+      if (retuneInterval > 0) steps = Math.min(steps, retuneInterval - sinceTune);
+      // losses of measurements are not counted, as they are of different batch sizes
+      loss += solver.train(steps) * steps;
+      counted += steps;
+      sinceTune += steps;
+      done += steps;
+    }
+    return counted == 0 ? 0 : loss / counted;
+  }
+
+  /** The applied decision, null if not tuned yet. */
+  public Decision getDecision() {
+    return decision;
+  }
+
+  /** The measurements of all candidates in the last tuning. */
+  public List<Decision> getMeasurements() {
+    return measurements;
+  }
+
+  /** Train a window with the batch size, and measure throughput and memory. */
+  private Decision measure(int batchSize) {
+    apply(batchSize);
+    if (warmup > 0) solver.train(warmup);
+    long start = System.nanoTime();
+    solver.train(window);
+    double seconds = (System.nanoTime() - start) / 1e9;
+    int iterSize = iterSize(batchSize);
+    return new Decision(batchSize, iterSize, learningRate(batchSize),
+      (double) batchSize * iterSize * window / seconds, solver.getMemoryFootprint());
+  }
+
+  /**
+   * Predict the footprint of a batch size from the last two measurements. With a single
+   * measurement, the whole footprint is assumed to scale with the batch size, which overestimates
+   * since parameters and history do not.
+   */
+  private static long predictFootprint(List<Decision> measured, int batchSize) {
+    Decision last = measured.get(measured.size() - 1);
+    Decision previous = measured.size() > 1 ? measured.get(measured.size() - 2) : null;
+    if (previous == null || previous.getBatchSize() == last.getBatchSize())
+      return last.getMemoryFootprint() * batchSize / last.getBatchSize();
+    double perSample = (double) (last.getMemoryFootprint() - previous.getMemoryFootprint())
+      / (last.getBatchSize() - previous.getBatchSize());
+    return last.getMemoryFootprint() + (long) (perSample * (batchSize - last.getBatchSize()));
+  }
+
+  /** Set batch size, iter_size and base_lr of the solver. */
+  private void apply(int batchSize) {
+    solver.setBatchSize(batchSize);
+    solver.updateParameter(param.toBuilder().setIterSize(iterSize(batchSize))
+      .setBaseLr(learningRate(batchSize)).build());
+  }
+
+  private int iterSize(int batchSize) {
+    return Math.max(1, Math.round((float) effectiveBatch / batchSize));
+  }
+
+  /** Scale base_lr with the actual effective batch. */
+  private float learningRate(int batchSize) {
+    return param.getBaseLr() * batchSize * iterSize(batchSize) / effectiveBatch;
+  }
+
+  private final Solver solver;
+  private final SolverParameter param;
+  private final int effectiveBatch;
+  private final int[] candidates;
+  // The iterations of each measurement
+  private int warmup = 1, window = 5;
+  private long memoryBudget = 0;
+  private int retuneInterval = 0;
+  // Iterations trained since last tuning
+  private int sinceTune = 0;
+  private Decision decision;
+  private List<Decision> measurements = Collections.emptyList();
+}
@@ -0,0 +1,169 @@
+package com.htc.speedo.caffe;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import caffe.Caffe.NetParameter;
+import caffe.Caffe.SolverParameter;
+
+import com.htc.speedo.caffe.NetParameterOperation.ReduceMode;
+
+/**
+ * Data parallel training with multiple solver replicas in the same process. Each step, all
+ * replicas compute gradients of their own part of the mini-batch concurrently on CPU threads. The
+ * gradients are averaged natively and applied to a single master solver, whose new weights are
+ * then copied back to all replicas. All transfers use flat buffers (see {@link ParameterLayout}).
+ * <p>
+ * Each replica reads its training data independently, so the replica models should read
+ * different data, e.g. different shards of the training set. The master solver is only used to
+ * update weights (and for test), it never trains on its own data. But the training data layer of
+ * its model is still set up, e.g. a DataLayer opens its source and prefetches a batch that is
+ * never used. To avoid that, give the master a model whose training data layer reads nothing,
+ * e.g. a MemoryData layer that is never fed.
+ */
+public class DataParallelTrainer {
+  /**
+   * Create a trainer with one replica for each of replica models.
+   * @param solver The solver parameter for both master and replicas.
+   * @param model The net parameter of the master solver, its training data is never used.
+   * @param replicaModels The net parameter of each replica, usually only differs from model in
+   * the source of training data.
+   */
+  public DataParallelTrainer(SolverParameter solver, NetParameter model,
+    List<NetParameter> replicaModels, boolean doublePrecision) {
+    if (replicaModels.isEmpty())
+      throw new IllegalArgumentException("Requires at least one replica!");
+    master = new Solver();
+    master.init(solver, model, doublePrecision);
+    // replicas never test, so don't create test nets for them
+    SolverParameter replica_param = solver.toBuilder().clearTestIter().setTestInterval(0).build();
+    ParameterLayout layout = master.getLayout();
+    weight = layout.allocate();
+    reduced = layout.allocate();
+    for (NetParameter replicaModel: replicaModels) {
+      Solver replica = new Solver();
+      replica.init(replica_param, replicaModel, doublePrecision);
+      replicas.add(replica);
+      ByteBuffer delta = layout.allocate();
+      deltas.add(delta);
+      deltaViews.add(typedView(delta, doublePrecision));
+    }
+    reducedView = typedView(reduced, doublePrecision);
+    // replicas train on the device of the calling thread
+    executor = Executors.newFixedThreadPool(replicas.size(),
+      Solver.deviceThreadFactory("caffe-replica"));
+    // all replicas starts from the weights of master
+    master.getWeight(weight);
+    for (Solver replica: replicas) replica.setWeight(weight);
+  }
+
+  /** Get the master solver, which holds the latest weights. */
+  public Solver getMaster() {
+    return master;
+  }
+
+  /** Get a replica, e.g. to feed its MemoryData layer. */
+  public Solver getReplica(int index) {
+    return replicas.get(index);
+  }
+
+  /** Get the number of replicas. */
+  public int getReplicaCount() {
+    return replicas.size();
+  }
+
+  /**
+   * Set the total batch size of a mini-batch, it's evenly divided to all replicas. If batch_size
+   * is 0, batch size of each replica is reset to the original one defined in its model.
+   */
+  public void setBatchSize(int batch_size) {
+    int replica_batch_size = (batch_size + replicas.size() - 1) / replicas.size();
+    for (Solver replica: replicas) replica.setBatchSize(replica_batch_size);
+  }
+
+  /** Train for given iterations, returns the average loss. */
+  public double train(int iteration) throws InterruptedException {
+    double loss = 0;
+    for (int i = 0; i < iteration; i++) loss += step();
+    return loss / iteration;
+  }
+
+  /** Train for one mini-batch on all replicas, returns the average loss of all replicas. */
+  public double step() throws InterruptedException {
+    // compute gradients on all replicas concurrently
+    List<Callable<Double>> compute = new ArrayList<Callable<Double>>(replicas.size());
+    for (int i = 0; i < replicas.size(); i++) {
+      final Solver replica = replicas.get(i);
+      final Buffer delta = deltas.get(i);
+      compute.add(new Callable<Double>() {
+        @Override
+        public Double call() {
+          double loss = replica.train(1, false);
+          replica.getDelta(delta);
+          return loss;
+        }
+      });
+    }
+    double loss = 0;
+    for (Double replica_loss: invokeAll(compute)) loss += replica_loss;
+    // average gradients natively and update the master
+    NetParameterOperation.reduce(deltaViews, reducedView, ReduceMode.MEAN, null);
+    master.mergeDelta(reduced, weight);
+    // copy new weights back to all replicas concurrently
+    List<Callable<Void>> broadcast = new ArrayList<Callable<Void>>(replicas.size());
+    for (final Solver replica: replicas) {
+      broadcast.add(new Callable<Void>() {
+        @Override
+        public Void call() {
+          replica.setWeight(weight);
+          return null;
+        }
+      });
+    }
+    invokeAll(broadcast);
+    return loss / replicas.size();
+  }
+
+  /** Dispose all solvers and stop the threads. */
+  public void dispose() {
+    executor.shutdownNow();
+    for (Solver replica: replicas) replica.dispose();
+    master.dispose();
+  }
+
+  /** Run all tasks on the thread pool, and wait for the results. */
+  private <T> List<T> invokeAll(List<Callable<T>> tasks) throws InterruptedException {
+    List<T> results = new ArrayList<T>(tasks.size());
+    try {
+      for (Future<T> future: executor.invokeAll(tasks)) results.add(future.get());
+    } catch (ExecutionException e) {
+      throw new IllegalStateException("Replica failed!", e.getCause());
+    }
+    return results;
+  }
+
+  /** Create a float or double view of the flat buffer. */
+  static Buffer typedView(ByteBuffer buffer, boolean doublePrecision) {
+    return doublePrecision ? buffer.asDoubleBuffer() : buffer.asFloatBuffer();
+  }
+
+  // The master solver to update weights
+  private final Solver master;
+  // The replicas to compute gradients
+  private final List<Solver> replicas = new ArrayList<Solver>();
+  // The flat buffers of gradients of each replica, and their typed views
+  private final List<ByteBuffer> deltas = new ArrayList<ByteBuffer>();
+  private final List<Buffer> deltaViews = new ArrayList<Buffer>();
+  // The flat buffers of averaged gradients and latest weights
+  private final ByteBuffer reduced, weight;
+  private final Buffer reducedView;
+  // The threads to run replicas
+  private final ExecutorService executor;
+}
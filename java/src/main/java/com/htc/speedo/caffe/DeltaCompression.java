@@ -0,0 +1,112 @@
+package com.htc.speedo.caffe;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Options to compress deltas for exchange between workers, see
+ * {@link Solver#getCompressedDelta(ByteBuffer, DeltaCompression)}. Each parameter blob is
+ * sparsified and quantized independently, with a per-blob scale. The compressed format is
+ * independent of the precision of the solver, see compression.hpp for details.
+ * <p>
+ * With error feedback, the compression error (e.g. elements not selected by top-k) is kept in the
+ * solver and added to the delta of the next compression, so no gradient is lost in the long run.
+ */
+public class DeltaCompression {
+  /** How elements of a blob are selected. */
+  public enum Sparsification {
+    /** Keep all elements. */
+    NONE,
+    /** Keep the given ratio of elements with the largest absolute values. */
+    TOP_K,
+    /** Keep elements whose absolute values are not less than the given threshold. */
+    THRESHOLD
+  }
+
+  /** How selected elements are stored. */
+  public enum Quantization {
+    /** Single precision float. */
+    FP32,
+    /** Half precision float, scaled by the maximal absolute value of the blob. */
+    FP16,
+    /** 8-bit integer, scaled by the maximal absolute value of the blob. */
+    INT8
+  }
+
+  /**
+   * Create compression options.
+   * @param sparsification How elements are selected
+   * @param parameter The ratio for {@link Sparsification#TOP_K}, or the threshold for
+   * {@link Sparsification#THRESHOLD}, ignored for {@link Sparsification#NONE}.
+   * @param quantization How selected elements are stored
+   * @param errorFeedback Whether to keep the compression error in the solver
+   */
+  public DeltaCompression(Sparsification sparsification, double parameter,
+    Quantization quantization, boolean errorFeedback) {
+    if (sparsification == Sparsification.TOP_K && (parameter <= 0 || parameter > 1))
+      throw new IllegalArgumentException("Ratio of top-k must be in (0, 1]!");
+    if (sparsification == Sparsification.THRESHOLD && parameter < 0)
+      throw new IllegalArgumentException("Threshold must be non-negative!");
+    this.sparsification = sparsification;
+    this.parameter = parameter;
+    this.quantization = quantization;
+    this.errorFeedback = errorFeedback;
+  }
+
+  /** Keep the given ratio of largest elements of each blob, with error feedback. */
+  public static DeltaCompression topK(double ratio, Quantization quantization) {
+    return new DeltaCompression(Sparsification.TOP_K, ratio, quantization, true);
+  }
+
+  /** Keep elements not less than the threshold, with error feedback. */
+  public static DeltaCompression threshold(double threshold, Quantization quantization) {
+    return new DeltaCompression(Sparsification.THRESHOLD, threshold, quantization, true);
+  }
+
+  /** Keep all elements, only quantize them, with error feedback. */
+  public static DeltaCompression dense(Quantization quantization) {
+    return new DeltaCompression(Sparsification.NONE, 0, quantization, true);
+  }
+
+  public Sparsification getSparsification() {
+    return sparsification;
+  }
+
+  public double getParameter() {
+    return parameter;
+  }
+
+  public Quantization getQuantization() {
+    return quantization;
+  }
+
+  public boolean isErrorFeedback() {
+    return errorFeedback;
+  }
+
+  /** The maximal size in bytes of compressed deltas of the layout. */
+  public int getMaxSize(ParameterLayout layout) {
+    int valueSize = quantization == Quantization.FP32 ? 4 : quantization == Quantization.FP16 ? 2
+      : 1;
+    // header: magic, sparsification, quantization, blob count
+    long size = 16;
+    for (ParameterLayout.BlobInfo blob: layout.getBlobs()) {
+      // blob header: count, number of stored elements, scale; values are padded to 4 bytes
+      size += 12 + ((long) blob.count * valueSize + 3) / 4 * 4;
+      if (sparsification != Sparsification.NONE) size += (long) blob.count * 4;
+    }
+    if (size > Integer.MAX_VALUE)
+      throw new IllegalStateException("Model is too large for a single compressed buffer!");
+    return (int) size;
+  }
+
+  /** Allocate a direct buffer large enough for compressed deltas of the layout. */
+  public ByteBuffer allocate(ParameterLayout layout) {
+    return ByteBuffer.allocateDirect(getMaxSize(layout)).order(ByteOrder.nativeOrder());
+  }
+
+  private final Sparsification sparsification;
+  private final double parameter;
+  private final Quantization quantization;
+  private final boolean errorFeedback;
+}
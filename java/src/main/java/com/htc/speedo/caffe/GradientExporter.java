@@ -0,0 +1,51 @@
+package com.htc.speedo.caffe;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+
+/**
+ * Double-buffered gradient export for overlapping communication with computation. Each step
+ * trains one mini-batch without update and publishes the gradients of each layer to a
+ * {@link GradientListener} as soon as its backward pass finishes. Steps alternate between two flat
+ * buffers, so the gradients of step t stay valid while step t + 1 is computing, and are only
+ * overwritten by step t + 2.
+ */
+public class GradientExporter {
+  /** Create an exporter for an initialized solver. */
+  public GradientExporter(Solver solver) {
+    this.solver = solver;
+    ParameterLayout layout = solver.getLayout();
+    buffers = new ByteBuffer[] {layout.allocate(), layout.allocate()};
+  }
+
+  /**
+   * Train one mini-batch without update, and publish gradients of each layer to the listener.
+   * Returns the loss.
+   */
+  public double step(GradientListener listener) {
+    double loss = solver.trainExport(buffers[(int) (step % 2)], listener);
+    step++;
+    return loss;
+  }
+
+  /** Get the number of finished steps. */
+  public long getStep() {
+    return step;
+  }
+
+  /**
+   * Get the flat buffer of gradients of the given step. Only the last two steps are available.
+   */
+  public Buffer getBuffer(long step) {
+    if (step < 0 || step >= this.step || step < this.step - 2)
+      throw new IllegalArgumentException("Gradients of step " + step + " are not available!");
+    return buffers[(int) (step % 2)];
+  }
+
+  // The solver to train
+  private final Solver solver;
+  // The two flat buffers for gradients, used alternately
+  private final ByteBuffer[] buffers;
+  // Number of finished steps
+  private long step = 0;
+}
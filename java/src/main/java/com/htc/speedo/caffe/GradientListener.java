@@ -0,0 +1,23 @@
+package com.htc.speedo.caffe;
+
+import java.nio.Buffer;
+
+/**
+ * Receives gradients of each layer during {@link Solver#trainExport(Buffer, GradientListener)}.
+ * Layers are notified from top to bottom, i.e. in the order of the backward pass, and only layers
+ * with parameter blobs are notified. A layer sharing parameters with lower layers (e.g. siamese
+ * nets) is notified after the backward pass of the lowest of them, when the accumulated gradients
+ * of the shared parameters are final.
+ */
+public interface GradientListener {
+  /**
+   * Called on the training thread as soon as the backward pass of a layer finishes. The backward
+   * pass of remaining layers waits for this function, so it should return quickly, e.g. by handing
+   * the range over to another thread. Throwing an exception aborts the backward pass.
+   * @param layerIndex The index of the layer in the net.
+   * @param delta The flat buffer of gradients, see {@link ParameterLayout}.
+   * @param offset The offset of the first blob of the layer in the flat buffer, in elements.
+   * @param count The total number of elements of all blobs of the layer.
+   */
+  void onGradient(int layerIndex, Buffer delta, int offset, int count);
+}
@@ -0,0 +1,30 @@
+package com.htc.speedo.caffe;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Transport to a parameter server in the same process. Deltas are copied into the queues of the
+ * update threads of shards, and weights are copied directly from shards.
+ */
+public class InMemoryTransport implements ParameterTransport {
+  public InMemoryTransport(ParameterServer server) {
+    this.server = server;
+  }
+
+  @Override
+  public void push(int shard, int worker, ByteBuffer delta) throws InterruptedException {
+    server.push(shard, worker, delta);
+  }
+
+  @Override
+  public void pull(int shard, int worker, int clock, ByteBuffer weight)
+    throws InterruptedException {
+    server.pull(shard, worker, clock, weight);
+  }
+
+  /** Nothing to close, the server is owned by the caller. */
+  @Override
+  public void close() {}
+
+  private final ParameterServer server;
+}
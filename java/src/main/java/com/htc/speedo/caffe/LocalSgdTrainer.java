@@ -0,0 +1,266 @@
+package com.htc.speedo.caffe;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import caffe.Caffe.NetParameter;
+import caffe.Caffe.SolverParameter;
+
+import com.htc.speedo.caffe.NetParameterOperation.ReduceMode;
+
+/**
+ * Local SGD, i.e. periodic model averaging, with multiple solver replicas in the same process.
+ * Each round, all replicas train k iterations independently and concurrently, then their weights
+ * are averaged natively and copied back to all replicas. Synchronization cost is proportional to
+ * the number of rounds instead of iterations. All transfers use flat buffers (see
+ * {@link ParameterLayout}).
+ * <p>
+ * The period k can adapt to the divergence of replicas, i.e. the root mean square distance of
+ * replicas to their average, relative to the distance the average moved since the last round.
+ * Each replica keeps its own solver history (e.g. momentum) across rounds.
+ * <p>
+ * Replicas never test while training, which would make a straggler of the replica and test weights
+ * not yet averaged. Instead, if the solver parameter has a test interval, the first replica tests
+ * the averaged weights after the rounds crossing each multiple of the interval, see
+ * {@link #getTestScore()}.
+ */
+public class LocalSgdTrainer {
+  /**
+   * Create a trainer with one replica for each of replica models. The first replica keeps the
+   * test nets, so it can test the averaged weights after each round. Replicas train on the device
+   * of the calling thread.
+   * @param replicaModels The net parameter of each replica, usually only differs in the source of
+   * training data.
+   */
+  public LocalSgdTrainer(SolverParameter solver, List<NetParameter> replicaModels,
+    boolean doublePrecision) {
+    if (replicaModels.isEmpty())
+      throw new IllegalArgumentException("Requires at least one replica!");
+    this.doublePrecision = doublePrecision;
+    testInterval = solver.getTestInterval();
+    testIteration = solver.getTestIterCount() > 0 ? solver.getTestIter(0) : 0;
+    // no replica tests during train, only the first one keeps the test nets
+    SolverParameter replica_param = solver.toBuilder().setTestInterval(0).build();
+    for (int i = 0; i < replicaModels.size(); i++) {
+      Solver replica = new Solver();
+      replica.init(i == 0 ? replica_param : replica_param.toBuilder().clearTestIter().build(),
+        replicaModels.get(i), doublePrecision);
+      replicas.add(replica);
+    }
+    ParameterLayout layout = replicas.get(0).getLayout();
+    for (int i = 0; i < replicas.size(); i++)
+      weights.add(DataParallelTrainer.typedView(layout.allocate(), doublePrecision));
+    average = DataParallelTrainer.typedView(layout.allocate(), doublePrecision);
+    last = DataParallelTrainer.typedView(layout.allocate(), doublePrecision);
+    executor = Executors.newFixedThreadPool(replicas.size(),
+      Solver.deviceThreadFactory("caffe-local-sgd"));
+    // all replicas starts from the weights of the first one
+    replicas.get(0).getWeight(last);
+    for (Solver replica: replicas) replica.setWeight(last);
+  }
+
+  /** Get a replica, replica 0 can test. All replicas have the averaged weights after a round. */
+  public Solver getReplica(int index) {
+    return replicas.get(index);
+  }
+
+  /** Get the number of replicas. */
+  public int getReplicaCount() {
+    return replicas.size();
+  }
+
+  /** Use a fixed number of iterations between synchronizations. */
+  public void setSyncPeriod(int period) {
+    if (period <= 0)
+      throw new IllegalArgumentException("Sync period must be positive!");
+    this.period = period;
+    adaptive = false;
+  }
+
+  /** Get the number of iterations of the next round. */
+  public int getSyncPeriod() {
+    return period;
+  }
+
+  /**
+   * Adapt the sync period to the divergence of replicas after each round. The period is halved if
+   * the divergence is more than twice of the target, and doubled if less than half of the target.
+   */
+  public void setAdaptive(int minPeriod, int maxPeriod, double targetDivergence) {
+    if (minPeriod <= 0 || maxPeriod < minPeriod)
+      throw new IllegalArgumentException("Invalid range of sync period!");
+    this.minPeriod = minPeriod;
+    this.maxPeriod = maxPeriod;
+    this.targetDivergence = targetDivergence;
+    period = Math.min(maxPeriod, Math.max(minPeriod, period));
+    adaptive = true;
+  }
+
+  /**
+   * Set the step size of the averaged weight difference since last round. 1 (default) replaces the
+   * weights with the average of replicas.
+   */
+  public void setOuterLearningRate(double rate) {
+    outerRate = rate;
+  }
+
+  /** The divergence measured in the last round, see {@link LocalSgdTrainer}. */
+  public double getDivergence() {
+    return divergence;
+  }
+
+  /**
+   * The result of the last test of the averaged weights, see {@link Solver#test(int)}, or NaN if
+   * never tested.
+   */
+  public double getTestScore() {
+    return testScore;
+  }
+
+  /** Train for at least given iterations on each replica in rounds, returns the average loss. */
+  public double train(int iteration) throws InterruptedException {
+    double loss = 0;
+    int done = 0;
+    while (done < iteration) {
+      int round = period;
+      loss += round() * round;
+      done += round;
+    }
+    return loss / done;
+  }
+
+  /**
+   * Train one round of {@link #getSyncPeriod()} iterations on all replicas, then average the
+   * weights and adapt the period.
+   * @return The average loss of all replicas.
+   */
+  public double round() throws InterruptedException {
+    final int iteration = period;
+    List<Callable<Double>> tasks = new ArrayList<Callable<Double>>(replicas.size());
+    for (int i = 0; i < replicas.size(); i++) {
+      final Solver replica = replicas.get(i);
+      final Buffer weight = weights.get(i);
+      tasks.add(new Callable<Double>() {
+        @Override
+        public Double call() {
+          double loss = replica.train(iteration);
+          replica.getWeight(weight);
+          return loss;
+        }
+      });
+    }
+    double loss = 0;
+    for (Double replica_loss: invokeAll(tasks)) loss += replica_loss;
+    // average natively, and measure how far replicas are from the average
+    NetParameterOperation.reduce(weights, average, ReduceMode.MEAN, null);
+    double spread = 0;
+    for (Buffer weight: weights) spread += squaredDistance(weight, average);
+    double progress = squaredDistance(average, last);
+    divergence = progress == 0 ? 0 : Math.sqrt(spread / weights.size() / progress);
+    if (outerRate != 1) {
+      // average = last + rate * (average - last)
+      axpy(-1, last, average);
+      scale(average, outerRate);
+      axpy(1, last, average);
+    }
+    copy(average, last);
+    List<Callable<Void>> broadcast = new ArrayList<Callable<Void>>(replicas.size());
+    for (final Solver replica: replicas) {
+      broadcast.add(new Callable<Void>() {
+        @Override
+        public Void call() {
+          replica.setWeight(average);
+          return null;
+        }
+      });
+    }
+    invokeAll(broadcast);
+    int before = iterations;
+    iterations += iteration;
+    if (testInterval > 0 && testIteration > 0 && iterations / testInterval > before / testInterval)
+      testScore = replicas.get(0).test(testIteration);
+    if (adaptive) {
+      if (divergence > 2 * targetDivergence)
+        period = Math.max(minPeriod, period / 2);
+      else if (divergence < targetDivergence / 2)
+        period = Math.min(maxPeriod, period * 2);
+    }
+    return loss / replicas.size();
+  }
+
+  /** Dispose all solvers and stop the threads. */
+  public void dispose() {
+    executor.shutdownNow();
+    for (Solver replica: replicas) replica.dispose();
+  }
+
+  /** Run all tasks on the thread pool, and wait for the results. */
+  private <T> List<T> invokeAll(List<Callable<T>> tasks) throws InterruptedException {
+    List<T> results = new ArrayList<T>(tasks.size());
+    try {
+      for (Future<T> future: executor.invokeAll(tasks)) results.add(future.get());
+    } catch (ExecutionException e) {
+      throw new IllegalStateException("Replica failed!", e.getCause());
+    }
+    return results;
+  }
+
+  private double squaredDistance(Buffer a, Buffer b) {
+    if (doublePrecision)
+      return NetParameterOperation.squaredDistance((DoubleBuffer) a, (DoubleBuffer) b);
+    else
+      return NetParameterOperation.squaredDistance((FloatBuffer) a, (FloatBuffer) b);
+  }
+
+  private void axpy(double alpha, Buffer x, Buffer y) {
+    if (doublePrecision)
+      NetParameterOperation.axpy(alpha, (DoubleBuffer) x, (DoubleBuffer) y);
+    else
+      NetParameterOperation.axpy((float) alpha, (FloatBuffer) x, (FloatBuffer) y);
+  }
+
+  private void scale(Buffer x, double factor) {
+    if (doublePrecision)
+      NetParameterOperation.scale((DoubleBuffer) x, factor);
+    else
+      NetParameterOperation.scale((FloatBuffer) x, (float) factor);
+  }
+
+  private void copy(Buffer from, Buffer to) {
+    if (doublePrecision)
+      ((DoubleBuffer) to.clear()).put((DoubleBuffer) ((DoubleBuffer) from).duplicate().clear());
+    else
+      ((FloatBuffer) to.clear()).put((FloatBuffer) ((FloatBuffer) from).duplicate().clear());
+    to.clear();
+  }
+
+  private final boolean doublePrecision;
+  // The replicas to train
+  private final List<Solver> replicas = new ArrayList<Solver>();
+  // The flat buffers of weights of each replica, their average, and the weights of last round
+  private final List<Buffer> weights = new ArrayList<Buffer>();
+  private final Buffer average, last;
+  // The iterations of each round, and the range and target divergence if adaptive
+  private int period = 1, minPeriod, maxPeriod;
+  private double targetDivergence;
+  private boolean adaptive = false;
+  // The step size of the averaged difference
+  private double outerRate = 1;
+  // The divergence measured in the last round
+  private double divergence = 0;
+  // The iterations trained by each replica, and when and how long to test the averaged weights
+  private int iterations = 0;
+  private final int testInterval, testIteration;
+  private double testScore = Double.NaN;
+  // The threads to run replicas
+  private final ExecutorService executor;
+}
@@ -0,0 +1,118 @@
+package com.htc.speedo.caffe;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Streams training data from java into the MemoryDataLayer of a solver, so examples generated on
+ * the fly don't need to be written into LevelDB or LMDB first. The feed owns a ring of slots, each
+ * holding the samples of one train iteration in direct buffers. A producer thread fills free slots
+ * ahead of time with {@link #acquire()} and {@link #publish(Slot)}, while {@link #train(int)}
+ * trains on published slots in order. The solver reads the slots in place without any copy.
+ */
+public class MemoryDataFeed {
+  /** A slot of samples for one train iteration. */
+  public static class Slot {
+    Slot(int samples, int sampleSize, boolean doublePrecision) {
+      int elementSize = doublePrecision ? 8 : 4;
+      ByteBuffer dataBytes = ByteBuffer.allocateDirect(samples * sampleSize * elementSize)
+        .order(ByteOrder.nativeOrder());
+      ByteBuffer labelBytes = ByteBuffer.allocateDirect(samples * elementSize)
+        .order(ByteOrder.nativeOrder());
+      data = DataParallelTrainer.typedView(dataBytes, doublePrecision);
+      labels = DataParallelTrainer.typedView(labelBytes, doublePrecision);
+    }
+
+    /**
+     * The data of all samples, a FloatBuffer or DoubleBuffer depending on the precision of the
+     * solver. Samples are stored one after another, each in channels * height * width order.
+     */
+    public Buffer getData() {
+      return data;
+    }
+
+    /** The label of each sample, a FloatBuffer or DoubleBuffer same as data. */
+    public Buffer getLabels() {
+      return labels;
+    }
+
+    private final Buffer data, labels;
+  }
+
+  /**
+   * Create a feed for a solver, whose training net must have a MemoryDataLayer. Slots have the
+   * same precision as the solver.
+   * @param slots The number of slots in the ring, at least 2 so producer can fill a slot while
+   * the solver trains on another.
+   */
+  public MemoryDataFeed(Solver solver, int slots) {
+    if (slots < 2)
+      throw new IllegalArgumentException("Requires at least 2 slots!");
+    int[] shape = solver.getMemoryDataShape();
+    if (shape == null)
+      throw new IllegalArgumentException("Training net has no MemoryDataLayer!");
+    this.solver = solver;
+    doublePrecision = solver.getLayout().isDoublePrecision();
+    samples = shape[0];
+    sampleSize = shape[1] * shape[2] * shape[3];
+    free = new ArrayBlockingQueue<Slot>(slots);
+    ready = new ArrayBlockingQueue<Slot>(slots);
+    for (int i = 0; i < slots; i++) free.add(new Slot(samples, sampleSize, doublePrecision));
+  }
+
+  /** The number of samples in each slot, i.e. consumed by each train iteration. */
+  public int getSamples() {
+    return samples;
+  }
+
+  /** The number of elements of each sample. */
+  public int getSampleSize() {
+    return sampleSize;
+  }
+
+  /** Get a free slot to fill, blocks until the solver has consumed a slot if none is free. */
+  public Slot acquire() throws InterruptedException {
+    return free.take();
+  }
+
+  /** Publish a filled slot, which is trained after all previously published slots. */
+  public void publish(Slot slot) {
+    ready.add(slot);
+  }
+
+  /**
+   * Train for given iterations, each on the next published slot. Blocks until the producer
+   * publishes enough slots.
+   * @return The average loss.
+   */
+  public double train(int iteration) throws InterruptedException {
+    double loss = 0;
+    for (int i = 0; i < iteration; i++) {
+      Slot slot = ready.take();
+      try {
+        if (doublePrecision)
+          solver.setMemoryData((DoubleBuffer) slot.data, (DoubleBuffer) slot.labels);
+        else
+          solver.setMemoryData((FloatBuffer) slot.data, (FloatBuffer) slot.labels);
+        loss += solver.train(1);
+      } finally {
+        // all samples of the slot are consumed (or dropped on failure), so the producer can
+        // reuse it
+        free.add(slot);
+      }
+    }
+    return loss / iteration;
+  }
+
+  private final Solver solver;
+  private final boolean doublePrecision;
+  // The number of samples of each slot, and the number of elements of each sample
+  private final int samples, sampleSize;
+  // Slots to be filled by producer, and slots to be trained by the solver
+  private final BlockingQueue<Slot> free, ready;
+}
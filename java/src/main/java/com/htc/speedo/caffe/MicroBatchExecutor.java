@@ -0,0 +1,313 @@
+package com.htc.speedo.caffe;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Coalesces concurrent single-sample inference requests into batches, so the net runs forward on
+ * larger batches with better BLAS efficiency. A batch is run as soon as it's full, or when the
+ * oldest request has waited for the max wait time. All forward passes run on a single thread
+ * owned by the executor, which is the only user of the net. If a forward pass throws, requests of
+ * the batch fail with the exception, and an {@link Error} also shuts down the executor.
+ */
+public class MicroBatchExecutor {
+  /** A snapshot of the statistics of the executor. */
+  public static class Stats {
+    /** Number of finished requests. */
+    public final long requests;
+    /** Number of forward passes. */
+    public final long batches;
+    /** Average number of requests per batch divided by max batch size. */
+    public final double fillRatio;
+    /** Median latency from submit to result of recent requests, in nanoseconds. */
+    public final long latencyP50;
+    /** 99th percentile latency from submit to result of recent requests, in nanoseconds. */
+    public final long latencyP99;
+
+    Stats(long requests, long batches, double fillRatio, long latencyP50, long latencyP99) {
+      this.requests = requests;
+      this.batches = batches;
+      this.fillRatio = fillRatio;
+      this.latencyP50 = latencyP50;
+      this.latencyP99 = latencyP99;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("requests=%d batches=%d fill=%.2f p50=%dus p99=%dus", requests,
+        batches, fillRatio, latencyP50 / 1000, latencyP99 / 1000);
+    }
+  }
+
+  /**
+   * Create the executor and start its thread.
+   * @param net An initialized net, should not be used by others after this
+   * @param maxBatchSize The maximal number of requests in a forward pass
+   * @param maxWait The maximal time the oldest request waits for a batch to fill
+   */
+  public MicroBatchExecutor(Net net, int maxBatchSize, long maxWait, TimeUnit unit) {
+    if (maxBatchSize <= 0)
+      throw new IllegalArgumentException("Max batch size must be positive!");
+    this.net = net;
+    this.maxBatchSize = maxBatchSize;
+    this.maxWaitNanos = unit.toNanos(maxWait);
+    doublePrecision = net.isDoublePrecision();
+    inputSize = net.getInputSize();
+    outputSize = net.getOutputSize();
+    int elementSize = doublePrecision ? 8 : 4;
+    input = ByteBuffer.allocateDirect(maxBatchSize * inputSize * elementSize)
+      .order(ByteOrder.nativeOrder());
+    output = ByteBuffer.allocateDirect(maxBatchSize * outputSize * elementSize)
+      .order(ByteOrder.nativeOrder());
+    // views for each possible batch size, so forward creates no buffer
+    floatInputs = new FloatBuffer[maxBatchSize + 1];
+    doubleInputs = new DoubleBuffer[maxBatchSize + 1];
+    for (int n = 1; n <= maxBatchSize; n++) {
+      input.limit(n * inputSize * elementSize);
+      if (doublePrecision)
+        doubleInputs[n] = input.slice().order(ByteOrder.nativeOrder()).asDoubleBuffer();
+      else
+        floatInputs[n] = input.slice().order(ByteOrder.nativeOrder()).asFloatBuffer();
+    }
+    input.clear();
+    floatOutput = output.asFloatBuffer();
+    doubleOutput = output.asDoubleBuffer();
+    // device is per-thread in caffe, use the same device as the creating thread
+    thread = Solver.deviceThreadFactory("caffe-micro-batch").newThread(new Runnable() {
+      @Override
+      public void run() {
+        loop();
+      }
+    });
+    thread.start();
+  }
+
+  /**
+   * Submit a single sample for inference.
+   * @param sample The input of the sample, must have {@link Net#getInputSize()} elements
+   * @return The future of the output of the sample
+   */
+  public Future<float[]> submit(float[] sample) {
+    if (sample.length != inputSize)
+      throw new IllegalArgumentException("Sample must have " + inputSize + " elements!");
+    if (shutdown)
+      throw new IllegalStateException("Executor has been shut down!");
+    Request request = new Request(sample);
+    queue.add(request);
+    // shutdown may have drained the queue before the request is added, never leave it pending
+    if (shutdown) {
+      queue.remove(request);
+      request.cancel(false);
+      throw new IllegalStateException("Executor has been shut down!");
+    }
+    return request;
+  }
+
+  /** Get the statistics of the executor. */
+  public synchronized Stats getStats() {
+    int size = (int) Math.min(latencyCount, latencies.length);
+    long[] sorted = Arrays.copyOf(latencies, size);
+    Arrays.sort(sorted);
+    return new Stats(requests, batches,
+      batches == 0 ? 0 : (double) requests / batches / maxBatchSize, percentile(sorted, 0.5),
+      percentile(sorted, 0.99));
+  }
+
+  /**
+   * Stop the executor. The running batch is finished, pending requests are cancelled. The net is
+   * not disposed.
+   */
+  public void shutdown() throws InterruptedException {
+    // set before draining the queue, so submit either sees the flag or is drained
+    shutdown = true;
+    thread.interrupt();
+    thread.join();
+    for (Request request = queue.poll(); request != null; request = queue.poll())
+      request.cancel(false);
+  }
+
+  /** The loop of the executor thread. */
+  private void loop() {
+    List<Request> batch = new ArrayList<Request>(maxBatchSize);
+    try {
+      while (!shutdown) {
+        batch.add(queue.take());
+        long deadline = batch.get(0).submitTime + maxWaitNanos;
+        while (batch.size() < maxBatchSize) {
+          Request request = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+          if (request == null) break;
+          batch.add(request);
+        }
+        run(batch);
+        batch.clear();
+      }
+    } catch (InterruptedException e) {
+      // shutdown
+    } finally {
+      // the loop may also exit on an error, reject new requests and never leave any pending
+      shutdown = true;
+      for (Request request: batch)
+        request.cancel(false);
+      for (Request request = queue.poll(); request != null; request = queue.poll())
+        request.cancel(false);
+    }
+  }
+
+  /** Run forward on a batch and scatter the results. */
+  private void run(List<Request> batch) {
+    // skip cancelled requests
+    int n = 0;
+    for (int i = 0; i < batch.size(); i++) {
+      Request request = batch.get(i);
+      if (request.isDone()) continue;
+      batch.set(n, request);
+      float[] sample = request.sample;
+      int offset = n * inputSize;
+      for (int j = 0; j < inputSize; j++) {
+        if (doublePrecision)
+          input.putDouble((offset + j) * 8, sample[j]);
+        else
+          input.putFloat((offset + j) * 4, sample[j]);
+      }
+      n++;
+    }
+    if (n == 0) return;
+    try {
+      if (doublePrecision)
+        net.forward(doubleInputs[n], doubleOutput);
+      else
+        net.forward(floatInputs[n], floatOutput);
+    } catch (Throwable e) {
+      for (int i = 0; i < n; i++) batch.get(i).fail(e);
+      // errors are not recoverable, stop the executor
+      if (e instanceof Error) throw (Error) e;
+      return;
+    }
+    long now = System.nanoTime();
+    for (int i = 0; i < n; i++) {
+      float[] result = new float[outputSize];
+      int offset = i * outputSize;
+      for (int j = 0; j < outputSize; j++) {
+        result[j] = doublePrecision ? (float) output.getDouble((offset + j) * 8)
+          : output.getFloat((offset + j) * 4);
+      }
+      Request request = batch.get(i);
+      request.complete(result);
+      record(now - request.submitTime);
+    }
+    synchronized (this) {
+      batches++;
+    }
+  }
+
+  /** Record the latency of a finished request. */
+  private synchronized void record(long latency) {
+    latencies[(int) (latencyCount++ % latencies.length)] = latency;
+    requests++;
+  }
+
+  private static long percentile(long[] sorted, double p) {
+    if (sorted.length == 0) return 0;
+    return sorted[(int) Math.min(sorted.length - 1, Math.floor(p * sorted.length))];
+  }
+
+  /** A pending inference request, completed by the executor thread. */
+  private static class Request implements Future<float[]> {
+    Request(float[] sample) {
+      this.sample = sample;
+    }
+
+    synchronized void complete(float[] result) {
+      if (isDone()) return;
+      this.result = result;
+      latch.countDown();
+    }
+
+    synchronized void fail(Throwable error) {
+      if (isDone()) return;
+      this.error = error;
+      latch.countDown();
+    }
+
+    @Override
+    public synchronized boolean cancel(boolean mayInterruptIfRunning) {
+      if (isDone()) return false;
+      cancelled = true;
+      latch.countDown();
+      return true;
+    }
+
+    @Override
+    public boolean isCancelled() {
+      return cancelled;
+    }
+
+    @Override
+    public boolean isDone() {
+      return latch.getCount() == 0;
+    }
+
+    @Override
+    public float[] get() throws InterruptedException, ExecutionException {
+      latch.await();
+      return getResult();
+    }
+
+    @Override
+    public float[] get(long timeout, TimeUnit unit) throws InterruptedException,
+      ExecutionException, TimeoutException {
+      if (!latch.await(timeout, unit))
+        throw new TimeoutException();
+      return getResult();
+    }
+
+    private synchronized float[] getResult() throws ExecutionException {
+      if (cancelled)
+        throw new CancellationException();
+      if (error != null)
+        throw new ExecutionException(error);
+      return result;
+    }
+
+    final float[] sample;
+    final long submitTime = System.nanoTime();
+    private final CountDownLatch latch = new CountDownLatch(1);
+    private volatile boolean cancelled = false;
+    private float[] result;
+    private Throwable error;
+  }
+
+  // The number of recent latencies kept for percentiles
+  private static final int LATENCY_WINDOW = 10000;
+
+  private final Net net;
+  private final int maxBatchSize;
+  private final long maxWaitNanos;
+  private final boolean doublePrecision;
+  private final int inputSize, outputSize;
+  // The input and output buffers of the largest batch, and typed views of them
+  private final ByteBuffer input, output;
+  private final FloatBuffer[] floatInputs;
+  private final DoubleBuffer[] doubleInputs;
+  private final FloatBuffer floatOutput;
+  private final DoubleBuffer doubleOutput;
+  private final BlockingQueue<Request> queue = new LinkedBlockingQueue<Request>();
+  private final Thread thread;
+  private volatile boolean shutdown = false;
+  // Statistics, guarded by this
+  private final long[] latencies = new long[LATENCY_WINDOW];
+  private long latencyCount = 0, requests = 0, batches = 0;
+}
@@ -0,0 +1,157 @@
+package com.htc.speedo.caffe;
+
+import java.nio.Buffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+
+import caffe.Caffe.NetParameter;
+
+/**
+ * The net jni wrapper for Caffe, for inference. The net is always in TEST phase. The first input
+ * blob of the net (e.g. {@code input: "data"} in deploy prototxt) is fed from java, and the first
+ * output blob is copied back.
+ * <p>
+ * Inputs and outputs are passed in reusable direct buffers in native byte order, and
+ * {@link #forward(FloatBuffer, FloatBuffer)} creates no object per call. The batch size is the
+ * number of samples in the input buffer, the net is reshaped when batch size changes. As
+ * {@link Solver}, a single net should only be used by one thread at a time.
+ */
+public class Net {
+  static {
+    System.loadLibrary("caffe_jni");
+  }
+
+  /** Creates a net instance in java. Must init before use. */
+  public Net() {
+    handle = 0;
+  }
+
+  /** Init the caffe net with given parameters in c++, phase is set to TEST. */
+  public synchronized void init(NetParameter model, boolean doublePrecision) {
+    if (handle != 0)
+      throw new IllegalStateException("Net has already been initialized!");
+    double_precision = doublePrecision;
+    handle = init(model.toByteArray(), doublePrecision);
+    inputShape = getShape(handle, true);
+    outputShape = getShape(handle, false);
+    if (inputShape.length == 0 || outputShape.length == 0) {
+      dispose();
+      throw new IllegalArgumentException("Net must have at least one input and one output!");
+    }
+  }
+
+  /**
+   * Delete the caffe net in c++. Should init again before use. It's safe to call dispose more
+   * than once.
+   */
+  public synchronized void dispose() {
+    if (handle != 0) dispose(handle);
+    handle = 0;
+  }
+
+  /**
+   * Share weights of all layers with the training net of the solver (by layer names), so the net
+   * always uses the latest weights of the solver without any copy. The solver must have the same
+   * precision.
+   */
+  public void shareWeights(Solver solver) {
+    if (handle == 0)
+      throw new IllegalStateException("Net must be initialized before shareWeights!");
+    shareWeights(handle, solver.getHandle());
+  }
+
+  /** Set the caffe net parameters to the given model. */
+  public void setWeight(NetParameter model) {
+    if (handle == 0)
+      throw new IllegalStateException("Net must be initialized before setWeight!");
+    setWeight(handle, model.toByteArray());
+  }
+
+  /** Whether the net is double precision. */
+  public boolean isDoublePrecision() {
+    return double_precision;
+  }
+
+  /** The number of input elements of a single sample. */
+  public int getInputSize() {
+    return sampleSize(inputShape);
+  }
+
+  /**
+   * The number of output elements of a single sample, as defined in the model. The output buffer
+   * must hold this number of elements for each sample.
+   */
+  public int getOutputSize() {
+    return sampleSize(outputShape);
+  }
+
+  /**
+   * Run forward on a batch of samples.
+   * @param input The input samples, the capacity must be a multiple of {@link #getInputSize()}.
+   * @param output The output of all samples, starting from the beginning of the buffer.
+   * @return The number of output elements.
+   */
+  public int forward(FloatBuffer input, FloatBuffer output) {
+    checkBuffer(input, input.order(), false);
+    checkBuffer(output, output.order(), false);
+    return forward(input, output);
+  }
+
+  /**
+   * Run forward on a batch of samples.
+   * @param input The input samples, the capacity must be a multiple of {@link #getInputSize()}.
+   * @param output The output of all samples, starting from the beginning of the buffer.
+   * @return The number of output elements.
+   */
+  public int forward(DoubleBuffer input, DoubleBuffer output) {
+    checkBuffer(input, input.order(), true);
+    checkBuffer(output, output.order(), true);
+    return forward(input, output);
+  }
+
+  /** Run forward on checked buffers. */
+  private int forward(Buffer input, Buffer output) {
+    if (handle == 0)
+      throw new IllegalStateException("Net must be initialized before forward!");
+    int count = forward(handle, input, input.capacity(), output, output.capacity());
+    if (count == -1)
+      throw new IllegalArgumentException("Input size must be a multiple of " + getInputSize());
+    if (count == -2)
+      throw new IllegalArgumentException("Output buffer is too small!");
+    return count;
+  }
+
+  /** Check the buffer is direct, in native order and matches the precision. */
+  private void checkBuffer(Buffer buffer, ByteOrder order, boolean doublePrecision) {
+    if (doublePrecision != double_precision)
+      throw new IllegalArgumentException("Buffer does not match precision of the net!");
+    if (!buffer.isDirect())
+      throw new IllegalArgumentException("Buffer must be a direct buffer!");
+    if (order != ByteOrder.nativeOrder())
+      throw new IllegalArgumentException("Buffer must be in native byte order!");
+  }
+
+  /** The number of elements of a single sample, i.e. all but the first axis. */
+  private static int sampleSize(int[] shape) {
+    int size = 1;
+    for (int i = 1; i < shape.length; i++) size *= shape[i];
+    return size;
+  }
+
+  // The handle of the c++ net, see handle_registry.hpp
+  private long handle;
+  // If the c++ net is double precision
+  private boolean double_precision;
+  // The shapes of the first input and output blobs, as defined in the model
+  private int[] inputShape, outputShape;
+
+  // jni functions, see net_jni.cpp for implementation
+  private static native long init(byte[] model, boolean doublePrecision);
+  private static native void dispose(long handle);
+  private static native void shareWeights(long handle, long solverHandle);
+  private static native void setWeight(long handle, byte[] weight);
+  private static native int[] getShape(long handle, boolean input);
+  private static native int forward(long handle, Buffer input, int inputCount, Buffer output,
+    int outputCapacity);
+}
@@ -1,10 +1,28 @@
 package com.htc.speedo.caffe;
 
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.util.BitSet;
+import java.util.List;
+
 import caffe.Caffe.NetParameter;
 
 import com.google.protobuf.InvalidProtocolBufferException;
 
 public class NetParameterOperation {
+  /** How multiple net parameters are combined in reduce operations. */
+  public enum ReduceMode {
+    /** Sum of all inputs. */
+    SUM,
+    /** Average of all inputs. */
+    MEAN,
+    /** Weighted sum of all inputs, a weight must be provided for each input. */
+    WEIGHTED
+  }
+
   static {
     System.loadLibrary("caffe_jni");
   }
@@ -39,13 +57,229 @@ public class NetParameterOperation {
     return NetParameter.parseFrom(multiply(p.toByteArray(), factor));
   }
 
-  /** Divide weights by a factor. */
+  /** Divide weights by a factor, i.e. multiply by 1 / factor. */
   static public NetParameter divide(NetParameter p, double factor)
     throws InvalidProtocolBufferException {
     return NetParameter.parseFrom(divide(p.toByteArray(), factor));
   }
 
-  // jni functions, see solver_jni.cpp for implementation
+  /**
+   * Reduce many net parameters (e.g. deltas from all workers) in one native call. Each model is
+   * parsed exactly once and accumulated into a single output. The result is same as chained
+   * {@link #plus(byte[],byte[])} followed by {@link #divide(byte[],double)} in MEAN mode. Throws
+   * IllegalArgumentException if a model is malformed, or has different layers or blobs.
+   */
+  static public byte[] reduce(List<byte[]> models, ReduceMode mode) {
+    return reduce(models, mode, null);
+  }
+
+  /**
+   * Reduce many net parameters in one native call.
+   * @param weights The weight of each model, only used in WEIGHTED mode.
+   */
+  static public byte[] reduce(List<byte[]> models, ReduceMode mode, double[] weights) {
+    checkReduce(models.size(), mode, weights);
+    return reduceModels(models.toArray(new byte[models.size()][]), mode.ordinal(), weights);
+  }
+
+  /**
+   * Reduce many flat buffers into the output buffer in one native call. All buffers must be
+   * {@link FloatBuffer} or {@link DoubleBuffer} of the same capacity. The output buffer can be
+   * the same as the first input buffer.
+   * @param weights The weight of each input, only used in WEIGHTED mode.
+   */
+  static public void reduce(List<? extends Buffer> inputs, Buffer output, ReduceMode mode,
+    double[] weights) {
+    checkReduce(inputs.size(), mode, weights);
+    boolean doublePrecision = output instanceof DoubleBuffer;
+    int count = checkBuffer(output, output.capacity());
+    for (Buffer input: inputs) {
+      if ((input instanceof DoubleBuffer) != doublePrecision)
+        throw new IllegalArgumentException("Flat buffers must have same precision!");
+      checkBuffer(input, count);
+    }
+    reduceBuffers(count, inputs.toArray(new Buffer[inputs.size()]), output, mode.ordinal(),
+      weights, doublePrecision);
+  }
+
+  /** Check the arguments of reduce operations. */
+  private static void checkReduce(int size, ReduceMode mode, double[] weights) {
+    if (size == 0)
+      throw new IllegalArgumentException("Nothing to reduce!");
+    if (mode == ReduceMode.WEIGHTED && (weights == null || weights.length != size))
+      throw new IllegalArgumentException("Must provide a weight for each input!");
+  }
+
+  /**
+   * Set the number of threads used by the operations, 0 for all cores (default). Blobs with less
+   * than 256K elements are not split across threads.
+   */
+  static public native void setNumThreads(int threads);
+
+  /** Get the number of threads used by the operations. */
+  static public native int getNumThreads();
+
+  // Operations on flat buffers (see ParameterLayout). All operations work in-place on the whole
+  // capacity of direct buffers and allocate nothing, buffers must have the same capacity.
+
+  /** y += alpha * x on flat buffers. */
+  static public void axpy(float alpha, FloatBuffer x, FloatBuffer y) {
+    int count = checkBuffer(y, y.capacity());
+    checkBuffer(x, count);
+    axpyBuffer(count, alpha, x, y, false);
+  }
+
+  /** y += alpha * x on flat buffers. */
+  static public void axpy(double alpha, DoubleBuffer x, DoubleBuffer y) {
+    int count = checkBuffer(y, y.capacity());
+    checkBuffer(x, count);
+    axpyBuffer(count, alpha, x, y, true);
+  }
+
+  /** Add x into the accumulator on flat buffers. */
+  static public void add(FloatBuffer accumulator, FloatBuffer x) {
+    axpy(1, x, accumulator);
+  }
+
+  /** Add x into the accumulator on flat buffers. */
+  static public void add(DoubleBuffer accumulator, DoubleBuffer x) {
+    axpy(1, x, accumulator);
+  }
+
+  /** x *= factor on flat buffer. */
+  static public void scale(FloatBuffer x, float factor) {
+    scaleBuffer(checkBuffer(x, x.capacity()), factor, x, false);
+  }
+
+  /** x *= factor on flat buffer. */
+  static public void scale(DoubleBuffer x, double factor) {
+    scaleBuffer(checkBuffer(x, x.capacity()), factor, x, true);
+  }
+
+  /** y = (a + b) * (1 / n) on flat buffers. y can be the same buffer as a or b. */
+  static public void addDivide(FloatBuffer a, FloatBuffer b, float n, FloatBuffer y) {
+    int count = checkBuffer(y, y.capacity());
+    checkBuffer(a, count);
+    checkBuffer(b, count);
+    addDivideBuffer(count, a, b, n, y, false);
+  }
+
+  /** y = (a + b) * (1 / n) on flat buffers. y can be the same buffer as a or b. */
+  static public void addDivide(DoubleBuffer a, DoubleBuffer b, double n, DoubleBuffer y) {
+    int count = checkBuffer(y, y.capacity());
+    checkBuffer(a, count);
+    checkBuffer(b, count);
+    addDivideBuffer(count, a, b, n, y, true);
+  }
+
+  /** Squared euclidean distance between two flat buffers, i.e. sum of (a - b)^2. */
+  static public double squaredDistance(FloatBuffer a, FloatBuffer b) {
+    int count = checkBuffer(a, a.capacity());
+    checkBuffer(b, count);
+    return squaredDistanceBuffer(count, a, b, false);
+  }
+
+  /** Squared euclidean distance between two flat buffers, i.e. sum of (a - b)^2. */
+  static public double squaredDistance(DoubleBuffer a, DoubleBuffer b) {
+    int count = checkBuffer(a, a.capacity());
+    checkBuffer(b, count);
+    return squaredDistanceBuffer(count, a, b, true);
+  }
+
+  /**
+   * Add x into the accumulator on flat buffers, only for the selected blobs (see
+   * {@link ParameterLayout#selectBlobs(float, long)}). Other blobs are not touched at all.
+   */
+  static public void plus(FloatBuffer accumulator, FloatBuffer x, ParameterLayout layout,
+    BitSet selected) {
+    int count = checkBuffer(accumulator, layout.getCount());
+    checkBuffer(x, count);
+    axpyRangesBuffer(1, x, accumulator, layout.getRanges(selected), false);
+  }
+
+  /**
+   * Add x into the accumulator on flat buffers, only for the selected blobs (see
+   * {@link ParameterLayout#selectBlobs(float, long)}). Other blobs are not touched at all.
+   */
+  static public void plus(DoubleBuffer accumulator, DoubleBuffer x, ParameterLayout layout,
+    BitSet selected) {
+    int count = checkBuffer(accumulator, layout.getCount());
+    checkBuffer(x, count);
+    axpyRangesBuffer(1, x, accumulator, layout.getRanges(selected), true);
+  }
+
+  /**
+   * Seeded version of {@link #plus(NetParameter, NetParameter, float)} on flat buffers. Each blob
+   * is skipped with the possibility of skip, and only selected blobs are read and written.
+   * @return The selected blobs, so only these blobs need to be exchanged.
+   */
+  static public BitSet plus(FloatBuffer accumulator, FloatBuffer x, ParameterLayout layout,
+    float skip, long seed) {
+    BitSet selected = layout.selectBlobs(skip, seed);
+    plus(accumulator, x, layout, selected);
+    return selected;
+  }
+
+  /**
+   * Seeded version of {@link #plus(NetParameter, NetParameter, float)} on flat buffers. Each blob
+   * is skipped with the possibility of skip, and only selected blobs are read and written.
+   * @return The selected blobs, so only these blobs need to be exchanged.
+   */
+  static public BitSet plus(DoubleBuffer accumulator, DoubleBuffer x, ParameterLayout layout,
+    float skip, long seed) {
+    BitSet selected = layout.selectBlobs(skip, seed);
+    plus(accumulator, x, layout, selected);
+    return selected;
+  }
+
+  /**
+   * y += alpha * x, where x is a compressed delta of size bytes (see {@link DeltaCompression}).
+   * The delta is decompressed on the fly, without a dense copy.
+   */
+  static public void axpyCompressed(float alpha, ByteBuffer x, int size, FloatBuffer y) {
+    checkCompressed(x, size);
+    axpyCompressedBuffer(checkBuffer(y, y.capacity()), alpha, x, size, y, false);
+  }
+
+  /**
+   * y += alpha * x, where x is a compressed delta of size bytes (see {@link DeltaCompression}).
+   * The delta is decompressed on the fly, without a dense copy.
+   */
+  static public void axpyCompressed(double alpha, ByteBuffer x, int size, DoubleBuffer y) {
+    checkCompressed(x, size);
+    axpyCompressedBuffer(checkBuffer(y, y.capacity()), alpha, x, size, y, true);
+  }
+
+  /** Check the buffer is direct and holds a compressed delta of given size. */
+  static void checkCompressed(ByteBuffer buffer, int size) {
+    if (!buffer.isDirect())
+      throw new IllegalArgumentException("Compressed delta must be a direct buffer!");
+    if (size < 0 || size > buffer.capacity())
+      throw new IllegalArgumentException("Invalid size of compressed delta: " + size);
+  }
+
+  /**
+   * Check the buffer is direct, in native order and has the given capacity.
+   * @return The number of elements in the buffer.
+   */
+  static int checkBuffer(Buffer buffer, int count) {
+    if (!buffer.isDirect())
+      throw new IllegalArgumentException("Flat buffer must be a direct buffer!");
+    ByteOrder order;
+    if (buffer instanceof FloatBuffer)
+      order = ((FloatBuffer) buffer).order();
+    else if (buffer instanceof DoubleBuffer)
+      order = ((DoubleBuffer) buffer).order();
+    else
+      throw new IllegalArgumentException("Flat buffer must be a FloatBuffer or DoubleBuffer!");
+    if (order != ByteOrder.nativeOrder())
+      throw new IllegalArgumentException("Flat buffer must be in native byte order!");
+    if (buffer.capacity() != count)
+      throw new IllegalArgumentException("Flat buffers must have same capacity!");
+    return count;
+  }
+
+  // jni functions, see operation_jni.cpp for implementation
 
   /** Plus weight by weight for two net parameters. */
   static public native byte[] plus(byte[] model1, byte[] model2);
@@ -55,6 +289,22 @@ public class NetParameterOperation {
   static public native byte[] minus(byte[] model1, byte[] model2);
   /** Multiply weights by a factor. */
   static public native byte[] multiply(byte[] model, double factor);
-  /** Divide weights by a factor. */
+  /** Divide weights by a factor, i.e. multiply by 1 / factor. */
   static public native byte[] divide(byte[] model, double factor);
+
+  private static native byte[] reduceModels(byte[][] models, int mode, double[] weights);
+  private static native void reduceBuffers(int count, Buffer[] inputs, Buffer output, int mode,
+    double[] weights, boolean doublePrecision);
+  private static native void axpyBuffer(int count, double alpha, Buffer x, Buffer y,
+    boolean doublePrecision);
+  private static native void axpyRangesBuffer(double alpha, Buffer x, Buffer y, int[] ranges,
+    boolean doublePrecision);
+  private static native void axpyCompressedBuffer(int count, double alpha, ByteBuffer x, int size,
+    Buffer y, boolean doublePrecision);
+  private static native void scaleBuffer(int count, double alpha, Buffer x,
+    boolean doublePrecision);
+  private static native void addDivideBuffer(int count, Buffer a, Buffer b, double n, Buffer y,
+    boolean doublePrecision);
+  private static native double squaredDistanceBuffer(int count, Buffer a, Buffer b,
+    boolean doublePrecision);
 }
@@ -0,0 +1,225 @@
+package com.htc.speedo.caffe;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import caffe.Caffe.BlobProto;
+import caffe.Caffe.LayerParameter;
+import caffe.Caffe.NetParameter;
+
+/**
+ * The layout of all parameter blobs of a net in a flat buffer. Blobs are stored back to back in
+ * the order of layers and blobs, which is the same order as the {@link NetParameter} returned by
+ * {@link Solver#getWeightProto()}. Elements are float or double depending on the precision of the
+ * solver, in native byte order.
+ * <p>
+ * Flat buffers must be direct buffers (e.g. created by {@link #allocate()}), so the content can
+ * be copied with a single memcpy in c++. The position of a buffer is ignored, data always starts
+ * at the beginning of the buffer.
+ */
+public class ParameterLayout {
+  /** Describes a single parameter blob in the flat buffer. */
+  public static class BlobInfo {
+    /** The name of the layer that owns the blob. */
+    public final String layerName;
+    /** The index of the layer in the net. */
+    public final int layerIndex;
+    /** The index of the blob in the layer. */
+    public final int blobIndex;
+    /** The index of the blob in the layout. */
+    public final int index;
+    /** The shape of the blob. */
+    public final int[] shape;
+    /** The offset of the blob in the flat buffer, in number of elements. */
+    public final int offset;
+    /** The number of elements in the blob. */
+    public final int count;
+
+    BlobInfo(String layerName, int layerIndex, int blobIndex, int index, int[] shape,
+      int offset) {
+      this.layerName = layerName;
+      this.layerIndex = layerIndex;
+      this.blobIndex = blobIndex;
+      this.index = index;
+      this.shape = shape;
+      this.offset = offset;
+      int count = 1;
+      for (int dim: shape) count *= dim;
+      this.count = count;
+    }
+
+    /** Create a view of this blob in the given flat buffer. */
+    public FloatBuffer slice(FloatBuffer buffer) {
+      FloatBuffer duplicate = buffer.duplicate();
+      duplicate.limit(offset + count).position(offset);
+      return duplicate.slice();
+    }
+
+    /** Create a view of this blob in the given flat buffer. */
+    public DoubleBuffer slice(DoubleBuffer buffer) {
+      DoubleBuffer duplicate = buffer.duplicate();
+      duplicate.limit(offset + count).position(offset);
+      return duplicate.slice();
+    }
+  }
+
+  /**
+   * Create layout from the net parameter returned by c++. The net parameter contains only layer
+   * names and blob shapes.
+   */
+  ParameterLayout(NetParameter layout, boolean doublePrecision) {
+    this.doublePrecision = doublePrecision;
+    List<BlobInfo> blobs = new ArrayList<BlobInfo>();
+    int offset = 0;
+    for (int i = 0; i < layout.getLayerCount(); i++) {
+      LayerParameter layer = layout.getLayer(i);
+      for (int j = 0; j < layer.getBlobsCount(); j++) {
+        BlobProto blob = layer.getBlobs(j);
+        int[] shape = new int[blob.getShape().getDimCount()];
+        for (int k = 0; k < shape.length; k++) shape[k] = (int) blob.getShape().getDim(k);
+        BlobInfo info = new BlobInfo(layer.getName(), i, j, blobs.size(), shape, offset);
+        blobs.add(info);
+        offset += info.count;
+      }
+    }
+    Set<String> layerNames = new LinkedHashSet<String>();
+    for (LayerParameter layer: layout.getLayerList()) layerNames.add(layer.getName());
+    this.layerNames = Collections.unmodifiableSet(layerNames);
+    this.blobs = Collections.unmodifiableList(blobs);
+    this.count = offset;
+  }
+
+  /** All parameter blobs in the order of the flat buffer. */
+  public List<BlobInfo> getBlobs() {
+    return blobs;
+  }
+
+  /** Names of all layers of the net, in order, including layers without parameters. */
+  public Set<String> getLayerNames() {
+    return layerNames;
+  }
+
+  /** The total number of elements in the flat buffer. */
+  public int getCount() {
+    return count;
+  }
+
+  /** The total number of elements of the selected blobs. */
+  public int getCount(BitSet selected) {
+    int total = 0;
+    for (int i = selected.nextSetBit(0); i >= 0 && i < blobs.size();
+      i = selected.nextSetBit(i + 1))
+      total += blobs.get(i).count;
+    return total;
+  }
+
+  /** Whether elements are double or float. */
+  public boolean isDoublePrecision() {
+    return doublePrecision;
+  }
+
+  /** The size of an element in bytes. */
+  public int getElementSize() {
+    return doublePrecision ? 8 : 4;
+  }
+
+  /** The total size of the flat buffer in bytes. */
+  public long getByteSize() {
+    return (long) count * getElementSize();
+  }
+
+  /**
+   * Randomly select blobs, each blob is skipped with the possibility of skip. The selection only
+   * depends on the seed, so all workers using the same seed select the same blobs.
+   * @return The indices of selected blobs, see {@link BlobInfo#index}.
+   */
+  public BitSet selectBlobs(float skip, long seed) {
+    Random random = new Random(seed);
+    BitSet selected = new BitSet(blobs.size());
+    for (int i = 0; i < blobs.size(); i++) {
+      if (random.nextFloat() >= skip) selected.set(i);
+    }
+    return selected;
+  }
+
+  /**
+   * Get the ranges of selected blobs in the flat buffer, as pairs of offset and count in
+   * elements. Adjacent blobs are merged into a single range.
+   */
+  public int[] getRanges(BitSet selected) {
+    int[] ranges = new int[2 * selected.cardinality()];
+    int size = 0;
+    for (int i = selected.nextSetBit(0); i >= 0 && i < blobs.size();
+      i = selected.nextSetBit(i + 1)) {
+      BlobInfo blob = blobs.get(i);
+      if (size > 0 && ranges[size - 2] + ranges[size - 1] == blob.offset) {
+        ranges[size - 1] += blob.count;
+      } else {
+        ranges[size++] = blob.offset;
+        ranges[size++] = blob.count;
+      }
+    }
+    return Arrays.copyOf(ranges, size);
+  }
+
+  /**
+   * Allocate a direct buffer in native byte order that can hold all parameters. Use
+   * {@link ByteBuffer#asFloatBuffer()} or {@link ByteBuffer#asDoubleBuffer()} to get a typed view.
+   */
+  public ByteBuffer allocate() {
+    if (getByteSize() > Integer.MAX_VALUE)
+      throw new IllegalStateException("Model is too large for a single flat buffer!");
+    return ByteBuffer.allocateDirect((int) getByteSize()).order(ByteOrder.nativeOrder());
+  }
+
+  /**
+   * Check if a buffer can be used as a flat buffer of this layout. The buffer must be direct, in
+   * native byte order, large enough and match the precision if it's a typed buffer.
+   */
+  public void checkBuffer(Buffer buffer) {
+    checkBuffer(buffer, count);
+  }
+
+  /** Same as {@link #checkBuffer(Buffer)}, but the buffer only needs to hold count elements. */
+  void checkBuffer(Buffer buffer, int count) {
+    if (buffer == null)
+      throw new IllegalArgumentException("Flat buffer must not be null!");
+    if (!buffer.isDirect())
+      throw new IllegalArgumentException("Flat buffer must be a direct buffer!");
+    long capacity;
+    ByteOrder order;
+    if (buffer instanceof ByteBuffer) {
+      capacity = buffer.capacity() / getElementSize();
+      order = ((ByteBuffer) buffer).order();
+    } else if (buffer instanceof FloatBuffer && !doublePrecision) {
+      capacity = buffer.capacity();
+      order = ((FloatBuffer) buffer).order();
+    } else if (buffer instanceof DoubleBuffer && doublePrecision) {
+      capacity = buffer.capacity();
+      order = ((DoubleBuffer) buffer).order();
+    } else {
+      throw new IllegalArgumentException("Flat buffer does not match precision of the layout!");
+    }
+    if (order != ByteOrder.nativeOrder())
+      throw new IllegalArgumentException("Flat buffer must be in native byte order!");
+    if (capacity < count)
+      throw new IllegalArgumentException("Flat buffer is too small, requires " + count
+        + " elements, but only " + capacity + " available!");
+  }
+
+  private final Set<String> layerNames;
+  private final List<BlobInfo> blobs;
+  private final int count;
+  private final boolean doublePrecision;
+}
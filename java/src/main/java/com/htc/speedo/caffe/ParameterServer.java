@@ -0,0 +1,391 @@
+package com.htc.speedo.caffe;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import caffe.Caffe.NetParameter;
+import caffe.Caffe.SolverParameter;
+
+import com.htc.speedo.caffe.ParameterLayout.BlobInfo;
+
+/**
+ * An in-process parameter server. Parameter blobs are sharded across several master solvers, each
+ * with its own update thread and solver history (e.g. momentum), so a single update never blocks
+ * all shards. Workers push deltas and pull weights of each shard (see
+ * {@link ParameterServerWorker}), through a {@link ParameterTransport}.
+ * <p>
+ * Deltas and weights of a shard are exchanged as slices: the ranges of the blobs of the shard in
+ * the flat buffer (see {@link #getShardRanges(int)}) concatenated in order. Each shard only keeps
+ * and updates the slice of its own blobs (see {@link Solver#mergeDelta(BitSet, Buffer, Buffer)}),
+ * other blobs of its solver and their history are never touched.
+ * <p>
+ * The consistency of reads is controlled by the {@link Consistency} mode, with clocks counting the
+ * deltas pushed by each worker.
+ */
+public class ParameterServer {
+  /** How stale the weights pulled by a worker can be. */
+  public enum Consistency {
+    /**
+     * Bulk synchronous: deltas of a clock from all workers are averaged and merged once, and a
+     * worker can't pull clock c until all workers have pushed c deltas. A worker's push of the
+     * next clock blocks until the current clock is merged.
+     */
+    SYNC,
+    /**
+     * Stale synchronous: each delta is merged as soon as it arrives, and a worker can't pull clock
+     * c until all workers have pushed c - staleness deltas.
+     */
+    STALE,
+    /** Fully asynchronous: each delta is merged as soon as it arrives, pulls never wait. */
+    ASYNC
+  }
+
+  /**
+   * Create a parameter server. All shards start from the same weights.
+   * @param solver The solver parameter of shard solvers, which defines the update rule.
+   * @param model The net parameter of shard solvers.
+   * @param shards The number of shards, each with a solver and an update thread.
+   * @param workers The number of workers, whose ids are 0 to workers - 1.
+   * @param staleness The bound of staleness, only used in STALE mode.
+   */
+  public ParameterServer(SolverParameter solver, NetParameter model, boolean doublePrecision,
+    int shards, int workers, Consistency consistency, int staleness) {
+    if (shards <= 0 || workers <= 0)
+      throw new IllegalArgumentException("Requires at least one shard and one worker!");
+    if (consistency == Consistency.STALE && staleness < 0)
+      throw new IllegalArgumentException("Staleness must be non-negative!");
+    // each shard only sees its own blobs, so clipping by the global norm is impossible
+    if (solver.getClipGradients() >= 0)
+      throw new IllegalArgumentException("clip_gradients is not supported by parameter server!");
+    this.doublePrecision = doublePrecision;
+    this.workers = workers;
+    this.consistency = consistency;
+    // only wait in STALE mode, SYNC is the same as 0 staleness
+    this.staleness = consistency == Consistency.STALE ? staleness : 0;
+    // shard solvers never test
+    SolverParameter shard_param = solver.toBuilder().clearTestIter().setTestInterval(0).build();
+    ByteBuffer initial = null;
+    BitSet[] assignment = null;
+    for (int i = 0; i < shards; i++) {
+      Solver shardSolver = new Solver();
+      shardSolver.init(shard_param, model, doublePrecision);
+      if (i == 0) {
+        layout = shardSolver.getLayout();
+        assignment = assignShards(layout, shards);
+        initial = layout.allocate();
+        shardSolver.getWeight(initial);
+      }
+      this.shards.add(new Shard(i, shardSolver, assignment[i], initial));
+    }
+  }
+
+  /**
+   * Assign blobs to shards, so that shards hold about the same number of elements. Workers use
+   * this with the same layout to know the blobs of each shard.
+   */
+  public static BitSet[] assignShards(ParameterLayout layout, int shards) {
+    List<BlobInfo> blobs = new ArrayList<BlobInfo>(layout.getBlobs());
+    BitSet[] assignment = new BitSet[shards];
+    long[] sizes = new long[shards];
+    for (int i = 0; i < shards; i++) assignment[i] = new BitSet(blobs.size());
+    // greedy, largest blob to the smallest shard
+    Collections.sort(blobs, new Comparator<BlobInfo>() {
+      @Override
+      public int compare(BlobInfo a, BlobInfo b) {
+        return a.count != b.count ? (a.count > b.count ? -1 : 1) : a.index - b.index;
+      }
+    });
+    for (BlobInfo blob: blobs) {
+      int smallest = 0;
+      for (int i = 1; i < shards; i++) if (sizes[i] < sizes[smallest]) smallest = i;
+      assignment[smallest].set(blob.index);
+      sizes[smallest] += blob.count;
+    }
+    return assignment;
+  }
+
+  /** The layout of the flat buffers of the model. */
+  public ParameterLayout getLayout() {
+    return layout;
+  }
+
+  /** Get the number of shards. */
+  public int getShardCount() {
+    return shards.size();
+  }
+
+  /** Get the number of workers. */
+  public int getWorkerCount() {
+    return workers;
+  }
+
+  /** The ranges of a shard in the flat buffer, see {@link ParameterLayout#getRanges(BitSet)}. */
+  public int[] getShardRanges(int shard) {
+    return shards.get(shard).ranges.clone();
+  }
+
+  /** The number of bytes of a slice of a shard. */
+  public int getShardByteSize(int shard) {
+    return shards.get(shard).byteSize;
+  }
+
+  /**
+   * Push the delta of a shard from a worker, the delta is merged in the update thread of the
+   * shard. Blocks if the update thread is too far behind, or in SYNC mode if the worker already
+   * pushed a delta of the current clock.
+   * @param delta The slice of the delta, from position to limit, which is not changed.
+   */
+  public void push(int shard, final int worker, ByteBuffer delta) throws InterruptedException {
+    checkWorker(worker);
+    final Shard target = shards.get(shard);
+    if (delta.remaining() != target.byteSize)
+      throw new IllegalArgumentException("Delta does not match size of the shard!");
+    checkClosed();
+    if (consistency == Consistency.SYNC) {
+      // each clock averages exactly one delta of each worker
+      synchronized (target) {
+        while (!closed && target.pushed[worker] > target.merged) target.wait();
+        checkClosed();
+        target.pushed[worker]++;
+      }
+    }
+    ByteBuffer slice = target.free.take();
+    // the buffer may be returned by dispose
+    checkClosed();
+    slice.clear();
+    slice.put(delta.duplicate()).flip();
+    try {
+      target.updater.execute(new Merge(target, worker, slice));
+    } catch (RejectedExecutionException e) {
+      target.free.add(slice);
+      throw new IllegalStateException("Parameter server is disposed!", e);
+    }
+  }
+
+  /**
+   * Pull the weights of a shard for a worker at given clock, i.e. the number of deltas the worker
+   * has pushed. Blocks until the weights are fresh enough for the consistency mode.
+   * @param weight The slice is written from the position of the buffer, the position is not
+   * changed.
+   */
+  public void pull(int shard, int worker, int clock, ByteBuffer weight)
+    throws InterruptedException {
+    checkWorker(worker);
+    Shard source = shards.get(shard);
+    if (weight.remaining() < source.byteSize)
+      throw new IllegalArgumentException("Buffer is too small for the shard!");
+    synchronized (source) {
+      if (consistency != Consistency.ASYNC) {
+        while (!closed && source.minClock() < clock - staleness) source.wait();
+      }
+      checkClosed();
+      weight.duplicate().put(source.weight.duplicate());
+    }
+  }
+
+  /** Copy the latest weights of all shards into a flat buffer, e.g. for test. */
+  public void getWeight(ByteBuffer weight) {
+    layout.checkBuffer(weight);
+    for (Shard shard: shards) {
+      synchronized (shard) {
+        checkClosed();
+        scatter(shard.weight, shard.ranges, layout.getElementSize(), weight);
+      }
+    }
+  }
+
+  /**
+   * Dispose all shard solvers and stop update threads, pending deltas are dropped. Blocked and
+   * later pushes and pulls throw {@link IllegalStateException}.
+   */
+  public void dispose() {
+    closed = true;
+    for (Shard shard: shards) {
+      // wake up pushes waiting for buffers
+      for (Runnable dropped: shard.updater.shutdownNow()) shard.free.add(((Merge) dropped).slice);
+    }
+    boolean interrupted = false;
+    for (Shard shard: shards) {
+      // the running merge uses the solver, so wait even if interrupted
+      boolean terminated = false;
+      while (!terminated) {
+        try {
+          terminated = shard.updater.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+      synchronized (shard) {
+        shard.notifyAll();
+        shard.solver.dispose();
+      }
+    }
+    if (interrupted) Thread.currentThread().interrupt();
+  }
+
+  private void checkWorker(int worker) {
+    if (worker < 0 || worker >= workers)
+      throw new IllegalArgumentException("Invalid worker id: " + worker);
+  }
+
+  private void checkClosed() {
+    if (closed) throw new IllegalStateException("Parameter server is disposed!");
+  }
+
+  /** Concatenate the ranges of a flat buffer into the slice, from the position of the slice. */
+  static void gather(ByteBuffer full, int[] ranges, int elementSize, ByteBuffer slice) {
+    ByteBuffer source = full.duplicate();
+    for (int i = 0; i < ranges.length; i += 2) {
+      source.limit((ranges[i] + ranges[i + 1]) * elementSize).position(ranges[i] * elementSize);
+      slice.put(source);
+    }
+  }
+
+  /** Copy the slice from its position into the ranges of a flat buffer. */
+  static void scatter(ByteBuffer slice, int[] ranges, int elementSize, ByteBuffer full) {
+    ByteBuffer source = slice.duplicate();
+    ByteBuffer target = full.duplicate();
+    for (int i = 0; i < ranges.length; i += 2) {
+      source.limit(source.position() + ranges[i + 1] * elementSize);
+      target.position(ranges[i] * elementSize);
+      target.put(source);
+    }
+  }
+
+  /** Allocate a direct buffer in native byte order for a slice. */
+  private static ByteBuffer allocateSlice(int byteSize) {
+    return ByteBuffer.allocateDirect(byteSize).order(ByteOrder.nativeOrder());
+  }
+
+  /** Merge a delta into a shard, keeps the slice so dispose can return dropped ones. */
+  private static class Merge implements Runnable {
+    Merge(Shard shard, int worker, ByteBuffer slice) {
+      this.shard = shard;
+      this.worker = worker;
+      this.slice = slice;
+    }
+
+    @Override
+    public void run() {
+      shard.merge(worker, slice);
+    }
+
+    final Shard shard;
+    final int worker;
+    final ByteBuffer slice;
+  }
+
+  /** A shard of the parameter server, the state is guarded by the shard itself. */
+  private class Shard {
+    Shard(int index, Solver solver, BitSet blobs, ByteBuffer initial) {
+      this.solver = solver;
+      this.blobs = blobs;
+      ranges = layout.getRanges(blobs);
+      byteSize = layout.getCount(blobs) * layout.getElementSize();
+      weight = allocateSlice(byteSize);
+      gather(initial, ranges, layout.getElementSize(), weight.duplicate());
+      // the solvers start from the same weights, but only the blobs of the shard matter
+      solver.setWeight(initial);
+      sum = consistency == Consistency.SYNC ? allocateSlice(byteSize) : null;
+      // a few deltas of each worker can be queued before push blocks
+      free = new ArrayBlockingQueue<ByteBuffer>(2 * workers);
+      for (int i = 0; i < 2 * workers; i++) free.add(allocateSlice(byteSize));
+      applied = new int[workers];
+      pushed = new int[workers];
+      updater = Executors.newSingleThreadExecutor(
+        Solver.deviceThreadFactory("caffe-ps-shard-" + index));
+    }
+
+    /** Merge a delta from a worker, run in the update thread. */
+    void merge(int worker, ByteBuffer delta) {
+      try {
+        if (consistency == Consistency.SYNC) {
+          Buffer typedSum = DataParallelTrainer.typedView(sum, doublePrecision);
+          Buffer typedDelta = DataParallelTrainer.typedView(delta, doublePrecision);
+          if (doublePrecision)
+            NetParameterOperation.add((DoubleBuffer) typedSum, (DoubleBuffer) typedDelta);
+          else
+            NetParameterOperation.add((FloatBuffer) typedSum, (FloatBuffer) typedDelta);
+          if (++pending < workers) {
+            synchronized (this) {
+              applied[worker]++;
+            }
+            return;
+          }
+          if (doublePrecision)
+            NetParameterOperation.scale((DoubleBuffer) typedSum, 1.0 / workers);
+          else
+            NetParameterOperation.scale((FloatBuffer) typedSum, 1.0f / workers);
+          synchronized (this) {
+            solver.mergeDelta(blobs, sum, weight);
+            applied[worker]++;
+            merged++;
+            notifyAll();
+          }
+          if (doublePrecision)
+            NetParameterOperation.scale((DoubleBuffer) typedSum, 0);
+          else
+            NetParameterOperation.scale((FloatBuffer) typedSum, 0);
+          pending = 0;
+        } else {
+          synchronized (this) {
+            solver.mergeDelta(blobs, delta, weight);
+            applied[worker]++;
+            notifyAll();
+          }
+        }
+      } finally {
+        free.add(delta);
+      }
+    }
+
+    /** The minimal clock of all workers. */
+    int minClock() {
+      int min = Integer.MAX_VALUE;
+      for (int clock: applied) min = Math.min(min, clock);
+      return min;
+    }
+
+    final Solver solver;
+    // The blobs of the shard, and their ranges in the flat buffer
+    final BitSet blobs;
+    final int[] ranges;
+    // The number of bytes of the slice of the shard
+    final int byteSize;
+    // The latest weights of the slice
+    final ByteBuffer weight;
+    // The sum of sliced deltas of the current clock in SYNC mode, only used by the update thread
+    final ByteBuffer sum;
+    int pending = 0;
+    // Slices to receive deltas, returned after merged
+    final BlockingQueue<ByteBuffer> free;
+    // The number of deltas merged (or accumulated in SYNC mode) from each worker
+    final int[] applied;
+    // The number of deltas pushed by each worker, and clocks merged in SYNC mode
+    final int[] pushed;
+    int merged = 0;
+    final ExecutorService updater;
+  }
+
+  private final boolean doublePrecision;
+  private final int workers;
+  private final Consistency consistency;
+  private final int staleness;
+  private ParameterLayout layout;
+  private final List<Shard> shards = new ArrayList<Shard>();
+  private volatile boolean closed = false;
+}
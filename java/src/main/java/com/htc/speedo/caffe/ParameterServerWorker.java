@@ -0,0 +1,79 @@
+package com.htc.speedo.caffe;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+
+/**
+ * A worker of a {@link ParameterServer}. Each step pulls the weights of all shards, computes the
+ * gradients of a mini-batch on the local solver, and pushes the deltas of all shards. The local
+ * solver must have the same model as the server, but it can read its own training data.
+ */
+public class ParameterServerWorker {
+  /**
+   * Create a worker.
+   * @param solver The local solver to compute gradients.
+   * @param transport The transport to the server.
+   * @param worker The id of the worker, unique among all workers of the server.
+   * @param shards The number of shards of the server.
+   */
+  public ParameterServerWorker(Solver solver, ParameterTransport transport, int worker,
+    int shards) {
+    this.solver = solver;
+    this.transport = transport;
+    this.worker = worker;
+    ParameterLayout layout = solver.getLayout();
+    elementSize = layout.getElementSize();
+    weight = layout.allocate();
+    delta = layout.allocate();
+    // same assignment as the server, since the layout is the same
+    BitSet[] assignment = ParameterServer.assignShards(layout, shards);
+    ranges = new int[shards][];
+    slices = new ByteBuffer[shards];
+    for (int i = 0; i < shards; i++) {
+      ranges[i] = layout.getRanges(assignment[i]);
+      int size = 0;
+      for (int j = 1; j < ranges[i].length; j += 2) size += ranges[i][j];
+      slices[i] = ByteBuffer.allocateDirect(size * elementSize);
+    }
+  }
+
+  /** The clock of the worker, i.e. number of finished steps. */
+  public int getClock() {
+    return clock;
+  }
+
+  /**
+   * Train a mini-batch with the latest weights from the server, and push the deltas.
+   * @return The loss of the mini-batch.
+   */
+  public double step() throws IOException, InterruptedException {
+    for (int i = 0; i < slices.length; i++) {
+      slices[i].clear();
+      transport.pull(i, worker, clock, slices[i]);
+      ParameterServer.scatter(slices[i], ranges[i], elementSize, weight);
+    }
+    solver.setWeight(weight);
+    double loss = solver.train(1, false);
+    solver.getDelta(delta);
+    for (int i = 0; i < slices.length; i++) {
+      slices[i].clear();
+      ParameterServer.gather(delta, ranges[i], elementSize, slices[i]);
+      slices[i].flip();
+      transport.push(i, worker, slices[i]);
+    }
+    clock++;
+    return loss;
+  }
+
+  private final Solver solver;
+  private final ParameterTransport transport;
+  private final int worker;
+  private final int elementSize;
+  // The flat buffers of weights and deltas of the local solver
+  private final ByteBuffer weight, delta;
+  // The ranges of each shard, and the buffers of slices of each shard
+  private final int[][] ranges;
+  private final ByteBuffer[] slices;
+  private int clock = 0;
+}
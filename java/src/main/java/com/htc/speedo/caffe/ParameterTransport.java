@@ -0,0 +1,22 @@
+package com.htc.speedo.caffe;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * How a worker talks to a {@link ParameterServer}. Payloads are slices of a shard, see
+ * {@link ParameterServer#push(int, int, ByteBuffer)} and
+ * {@link ParameterServer#pull(int, int, int, ByteBuffer)}.
+ */
+public interface ParameterTransport extends Closeable {
+  /** Push the delta slice of a shard, from position to limit of the buffer. */
+  void push(int shard, int worker, ByteBuffer delta) throws IOException, InterruptedException;
+
+  /**
+   * Pull the weight slice of a shard at given clock into the buffer, from its position. Blocks
+   * until the weights are fresh enough for the consistency mode of the server.
+   */
+  void pull(int shard, int worker, int clock, ByteBuffer weight)
+    throws IOException, InterruptedException;
+}
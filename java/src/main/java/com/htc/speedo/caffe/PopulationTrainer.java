@@ -0,0 +1,238 @@
+package com.htc.speedo.caffe;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import caffe.Caffe.NetParameter;
+import caffe.Caffe.SolverParameter;
+
+/**
+ * Population based training of solvers in the same process. All members share one net
+ * definition, and differ in the solver parameters supported by
+ * {@link Solver#updateParameter(SolverParameter)}, e.g. base_lr, momentum and weight_decay.
+ * <p>
+ * Each round, all members train for some iterations and test concurrently on a bounded thread
+ * pool. Then the worst members are killed and replaced by the best ones: the full state of a
+ * winner (weights, history and iteration) is copied to the loser with
+ * {@link Solver#snapshotState(ByteBuffer)}, and the winner's solver parameters are perturbed. So
+ * compute moves to promising configurations, instead of running every configuration to the end.
+ * <p>
+ * The first member is initialized from protobuf, other members are {@link Solver#cloneSolver()
+ * cloned} from it before training, so all members start from the same weights. Members train on
+ * the device of the thread creating the population.
+ */
+public class PopulationTrainer {
+  /** A member of the population. */
+  public static class Member {
+    Member(int id, Solver solver, SolverParameter param) {
+      this.id = id;
+      this.solver = solver;
+      this.param = param;
+    }
+
+    /** The index of the member in the population. */
+    public int getId() {
+      return id;
+    }
+
+    /** The solver of the member, e.g. to save the weights of the best member. */
+    public Solver getSolver() {
+      return solver;
+    }
+
+    /** The current solver parameters (only the fields to update) of the member. */
+    public SolverParameter getParameter() {
+      return param;
+    }
+
+    /** The test score of last round, see {@link PopulationTrainer#setScore(String, boolean)}. */
+    public double getScore() {
+      return score;
+    }
+
+    /** The number of times the member is replaced by a winner. */
+    public int getReplaced() {
+      return replaced;
+    }
+
+    private final int id;
+    private final Solver solver;
+    private SolverParameter param;
+    private double score = Double.NaN;
+    private int replaced = 0;
+  }
+
+  /**
+   * Create a population, one member for each configuration.
+   * @param solver The solver parameter shared by all members, must have a test net.
+   * @param configs The solver parameters to update of each member, see
+   * {@link Solver#updateParameter(SolverParameter)}.
+   * @param threads The maximum number of members training at the same time.
+   */
+  public PopulationTrainer(SolverParameter solver, NetParameter model, boolean doublePrecision,
+    List<SolverParameter> configs, int threads) {
+    if (configs.size() < 2)
+      throw new IllegalArgumentException("Requires at least two members!");
+    Solver first = new Solver();
+    first.init(solver, model, doublePrecision);
+    members.add(new Member(0, first, configs.get(0)));
+    for (int i = 1; i < configs.size(); i++)
+      members.add(new Member(i, first.cloneSolver(false), configs.get(i)));
+    for (Member member: members) member.solver.updateParameter(member.param);
+    state = ByteBuffer.allocateDirect((int) first.getStateSize());
+    executor =
+      Executors.newFixedThreadPool(threads, Solver.deviceThreadFactory("caffe-population"));
+  }
+
+  /** Set the fraction of members replaced after each round, 0.25 by default. */
+  public void setTruncation(double fraction) {
+    if (fraction <= 0 || fraction > 0.5)
+      throw new IllegalArgumentException("Truncation must be in (0, 0.5]!");
+    truncation = fraction;
+  }
+
+  /**
+   * Set the score members are ranked by. By default, it's the first output of the first test net,
+   * and higher is better.
+   * @param output The name of an output of the first test net, see
+   * {@link Solver#getTestOutputNames(int)}, or null for the first output.
+   * @param higherIsBetter False for outputs like loss.
+   */
+  public void setScore(String output, boolean higherIsBetter) {
+    if (output != null
+      && !Arrays.asList(members.get(0).solver.getTestOutputNames(0)).contains(output))
+      throw new IllegalArgumentException("Unknown test output: " + output);
+    scoreOutput = output;
+    this.higherIsBetter = higherIsBetter;
+  }
+
+  /**
+   * Set the factors to perturb base_lr, weight_decay and momentum of a copied winner. Each field
+   * set in the configuration of the winner is multiplied by one of the factors, chosen at random
+   * for each field independently. Momentum is perturbed on 1 - momentum.
+   */
+  public void setPerturbFactors(double down, double up) {
+    perturbDown = down;
+    perturbUp = up;
+  }
+
+  /** Set the seed of random choices of winners and perturbations. */
+  public void setSeed(long seed) {
+    random.setSeed(seed);
+  }
+
+  /** All members, in order of configurations. */
+  public List<Member> getMembers() {
+    return Collections.unmodifiableList(members);
+  }
+
+  /** The member with the best score in last round. */
+  public Member getBest() {
+    return ranked().get(0);
+  }
+
+  /**
+   * Run given rounds. Each round trains all members for given iterations and tests them, then
+   * replaces the losers, except for the last round.
+   * @return The best member after the last round.
+   */
+  public Member run(int rounds, final int iteration, final int testIteration)
+    throws InterruptedException {
+    for (int round = 0; round < rounds; round++) {
+      List<Callable<Double>> tasks = new ArrayList<Callable<Double>>(members.size());
+      for (final Member member: members) {
+        tasks.add(new Callable<Double>() {
+          @Override
+          public Double call() {
+            member.solver.train(iteration);
+            if (scoreOutput == null) return member.solver.test(testIteration);
+            return member.solver.test(testIteration, 0).get(scoreOutput);
+          }
+        });
+      }
+      List<Future<Double>> results = executor.invokeAll(tasks);
+      try {
+        for (int i = 0; i < members.size(); i++) members.get(i).score = results.get(i).get();
+      } catch (ExecutionException e) {
+        throw new IllegalStateException("Member failed!", e.getCause());
+      }
+      if (round < rounds - 1) exploit();
+    }
+    return getBest();
+  }
+
+  /** Dispose all solvers and stop the threads. */
+  public void dispose() {
+    executor.shutdownNow();
+    for (Member member: members) member.solver.dispose();
+  }
+
+  /** Replace the worst members with copies of randomly chosen best members. */
+  private void exploit() {
+    List<Member> ranked = ranked();
+    int count = Math.max(1, (int) (ranked.size() * truncation));
+    for (int i = 0; i < count; i++) {
+      Member winner = ranked.get(random.nextInt(count));
+      Member loser = ranked.get(ranked.size() - 1 - i);
+      // weights, history and iteration
+      winner.solver.snapshotState(state);
+      loser.solver.restoreState(state);
+      loser.param = perturb(winner.param);
+      loser.solver.updateParameter(loser.param);
+      loser.score = winner.score;
+      loser.replaced++;
+    }
+  }
+
+  /** Perturb base_lr, weight_decay and momentum of the parameter. */
+  private SolverParameter perturb(SolverParameter param) {
+    SolverParameter.Builder builder = param.toBuilder();
+    if (param.hasBaseLr()) builder.setBaseLr((float) (param.getBaseLr() * factor()));
+    if (param.hasWeightDecay())
+      builder.setWeightDecay((float) (param.getWeightDecay() * factor()));
+    if (param.hasMomentum())
+      builder.setMomentum((float) Math.max(0, 1 - (1 - param.getMomentum()) * factor()));
+    return builder.build();
+  }
+
+  private double factor() {
+    return random.nextBoolean() ? perturbUp : perturbDown;
+  }
+
+  /** Members sorted by score, best first. Members not tested yet are the last. */
+  private List<Member> ranked() {
+    List<Member> ranked = new ArrayList<Member>(members);
+    Collections.sort(ranked, new Comparator<Member>() {
+      @Override
+      public int compare(Member a, Member b) {
+        if (Double.isNaN(a.score) || Double.isNaN(b.score))
+          return Boolean.compare(Double.isNaN(a.score), Double.isNaN(b.score));
+        return higherIsBetter ? Double.compare(b.score, a.score) : Double.compare(a.score, b.score);
+      }
+    });
+    return ranked;
+  }
+
+  // All members, in order of configurations
+  private final List<Member> members = new ArrayList<Member>();
+  // The buffer to copy the state of winners
+  private final ByteBuffer state;
+  // The threads to train members
+  private final ExecutorService executor;
+  private final Random random = new Random();
+  private double truncation = 0.25;
+  private double perturbDown = 0.8, perturbUp = 1.25;
+  // The test output to rank by, null for the first output
+  private String scoreOutput = null;
+  private boolean higherIsBetter = true;
+}
@@ -0,0 +1,112 @@
+package com.htc.speedo.caffe;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import caffe.Caffe.NetParameter;
+import caffe.Caffe.SolverParameter;
+
+/**
+ * Evaluate a solver on several solver replicas concurrently, each on its own thread on the device
+ * of the thread creating the evaluator. Test iterations are evenly divided to all replicas, and the
+ * outputs of all replicas are merged as if a single solver ran all iterations. Weights are copied
+ * to the replicas with flat buffers (see {@link ParameterLayout}).
+ * <p>
+ * Each replica reads its test data independently, so the replica models should read different
+ * shards of the test set. Each replica is a full solver, so it also sets up the training net, and
+ * its training data layer opens the training source and keeps a prefetch batch in memory, though
+ * it's never trained. To avoid the cost, replace the training data layer of the shard models with
+ * a MemoryData layer of the same shape, which is never fed.
+ */
+public class ShardedEvaluator {
+  /**
+   * Create an evaluator with one replica for each of shard models.
+   * @param solver The solver parameter of the replicas, must define the test nets.
+   * @param shardModels The net parameter of each replica, usually only differs in the source of
+   * test data. The training net is set up but never run, see the class doc.
+   */
+  public ShardedEvaluator(SolverParameter solver, List<NetParameter> shardModels,
+    boolean doublePrecision) {
+    if (shardModels.isEmpty())
+      throw new IllegalArgumentException("Requires at least one shard!");
+    for (NetParameter shardModel: shardModels) {
+      Solver replica = new Solver();
+      replica.init(solver, shardModel, doublePrecision);
+      replicas.add(replica);
+    }
+    weight = replicas.get(0).getLayout().allocate();
+    typedWeight = DataParallelTrainer.typedView(weight, doublePrecision);
+    // shards test on the device of the calling thread
+    executor = Executors.newFixedThreadPool(replicas.size(),
+      Solver.deviceThreadFactory("caffe-eval-shard"));
+  }
+
+  /** Get the number of shards. */
+  public int getShardCount() {
+    return replicas.size();
+  }
+
+  /**
+   * Evaluate the current weights of a solver, which must have the same layout as the replicas.
+   * @param iteration The total number of test iterations of all shards
+   * @param testNetId The index of the test net, see {@link Solver#test(int, int)}
+   * @return The mean of each output element over all iterations.
+   */
+  public Map<String, Double> evaluate(Solver solver, int iteration, final int testNetId)
+    throws InterruptedException {
+    if (iteration < replicas.size())
+      throw new IllegalArgumentException("Requires at least one iteration for each shard!");
+    solver.getWeight(typedWeight);
+    List<Callable<double[]>> tasks = new ArrayList<Callable<double[]>>(replicas.size());
+    for (int i = 0; i < replicas.size(); i++) {
+      final Solver replica = replicas.get(i);
+      // the first shards run one more iteration if not evenly divided
+      final int shardIteration =
+        iteration / replicas.size() + (i < iteration % replicas.size() ? 1 : 0);
+      tasks.add(new Callable<double[]>() {
+        @Override
+        public double[] call() {
+          replica.setWeight(typedWeight);
+          return replica.testSums(shardIteration, testNetId);
+        }
+      });
+    }
+    double[] sums = null;
+    try {
+      for (Future<double[]> future: executor.invokeAll(tasks)) {
+        double[] shardSums = future.get();
+        if (sums == null)
+          sums = shardSums;
+        else if (sums.length != shardSums.length)
+          throw new IllegalStateException("Shards have different test outputs!");
+        else
+          for (int i = 0; i < sums.length; i++) sums[i] += shardSums[i];
+      }
+    } catch (ExecutionException e) {
+      throw new IllegalStateException("Shard failed!", e.getCause());
+    }
+    return Solver.getTestOutputs(replicas.get(0).getTestOutputNames(testNetId), sums, iteration);
+  }
+
+  /** Dispose all replicas and stop the threads. */
+  public void dispose() {
+    executor.shutdownNow();
+    for (Solver replica: replicas) replica.dispose();
+  }
+
+  // The replicas to run test
+  private final List<Solver> replicas = new ArrayList<Solver>();
+  // The flat buffer of weights to evaluate, and its typed view
+  private final ByteBuffer weight;
+  private final Buffer typedWeight;
+  // The threads to run replicas
+  private final ExecutorService executor;
+}
@@ -0,0 +1,193 @@
+package com.htc.speedo.caffe;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Transport to a parameter server over a TCP socket, with a blocking {@link SocketChannel} for
+ * each worker. Use {@link Server} to serve a parameter server, e.g. on the loopback interface.
+ * <p>
+ * Each request starts with a header of 5 ints: operation, shard, worker, clock and payload size.
+ * A push is followed by the delta slice and has no response. A pull is answered with the size and
+ * the weight slice. Slices are sent in native byte order, so both ends must be of the same
+ * architecture.
+ */
+public class SocketTransport implements ParameterTransport {
+  // Operations of requests
+  private static final int PUSH = 0, PULL = 1;
+  // Size of request header in bytes
+  private static final int HEADER_SIZE = 20;
+
+  /** Serves a parameter server on a socket, with a thread for each connection. */
+  public static class Server implements Closeable {
+    /**
+     * Start serving on the loopback interface.
+     * @param port The port to listen, 0 for any free port, see {@link #getAddress()}.
+     */
+    public Server(ParameterServer server, int port) throws IOException {
+      this(server, new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+    }
+
+    /** Start serving on given address. */
+    public Server(ParameterServer server, SocketAddress address) throws IOException {
+      this.server = server;
+      channel = ServerSocketChannel.open();
+      channel.bind(address);
+      acceptor = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          accept();
+        }
+      }, "caffe-ps-acceptor");
+      acceptor.setDaemon(true);
+      acceptor.start();
+    }
+
+    /** The address the server listens on. */
+    public InetSocketAddress getAddress() throws IOException {
+      return (InetSocketAddress) channel.getLocalAddress();
+    }
+
+    /** Stop accepting connections and close all connections. */
+    @Override
+    public void close() throws IOException {
+      channel.close();
+      synchronized (connections) {
+        for (SocketChannel connection: connections) connection.close();
+      }
+    }
+
+    private void accept() {
+      try {
+        while (true) {
+          final SocketChannel connection = channel.accept();
+          synchronized (connections) {
+            connections.add(connection);
+          }
+          Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+              serve(connection);
+            }
+          }, "caffe-ps-connection");
+          thread.setDaemon(true);
+          thread.start();
+        }
+      } catch (IOException e) {
+        // closed
+      }
+    }
+
+    /** Serve requests of a connection until it's closed. */
+    private void serve(SocketChannel connection) {
+      ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+      ByteBuffer sizeBuffer = ByteBuffer.allocate(4);
+      ByteBuffer payload = null;
+      try {
+        while (true) {
+          header.clear();
+          readFully(connection, header);
+          header.flip();
+          int operation = header.getInt(), shard = header.getInt(), worker = header.getInt();
+          int clock = header.getInt(), size = header.getInt();
+          // check the header before allocating anything, drop the connection if invalid
+          if (shard < 0 || shard >= server.getShardCount()) return;
+          int expected = server.getShardByteSize(shard);
+          if (operation == PULL) size = expected;
+          else if (operation != PUSH || size != expected) return;
+          if (payload == null || payload.capacity() < size)
+            payload = ByteBuffer.allocateDirect(size);
+          payload.clear().limit(size);
+          if (operation == PUSH) {
+            readFully(connection, payload);
+            payload.flip();
+            server.push(shard, worker, payload);
+          } else {
+            server.pull(shard, worker, clock, payload);
+            sizeBuffer.clear();
+            sizeBuffer.putInt(size).flip();
+            writeFully(connection, sizeBuffer);
+            writeFully(connection, payload);
+          }
+        }
+      } catch (IOException | InterruptedException | RuntimeException e) {
+        // the connection is dropped on any error, the worker sees a closed connection
+      } finally {
+        try {
+          connection.close();
+        } catch (IOException e) {
+          // ignored
+        }
+        synchronized (connections) {
+          connections.remove(connection);
+        }
+      }
+    }
+
+    private final ParameterServer server;
+    private final ServerSocketChannel channel;
+    private final Thread acceptor;
+    private final List<SocketChannel> connections = new ArrayList<SocketChannel>();
+  }
+
+  /** Connect to a server. */
+  public SocketTransport(SocketAddress address) throws IOException {
+    channel = SocketChannel.open(address);
+    channel.socket().setTcpNoDelay(true);
+  }
+
+  @Override
+  public synchronized void push(int shard, int worker, ByteBuffer delta) throws IOException {
+    writeHeader(PUSH, shard, worker, 0, delta.remaining());
+    writeFully(channel, delta.duplicate());
+  }
+
+  @Override
+  public synchronized void pull(int shard, int worker, int clock, ByteBuffer weight)
+    throws IOException {
+    writeHeader(PULL, shard, worker, clock, 0);
+    header.clear().limit(4);
+    readFully(channel, header);
+    int size = header.getInt(0);
+    if (weight.remaining() < size)
+      throw new IllegalArgumentException("Buffer is too small for the shard!");
+    ByteBuffer target = weight.duplicate();
+    target.limit(target.position() + size);
+    readFully(channel, target);
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+
+  private void writeHeader(int operation, int shard, int worker, int clock, int size)
+    throws IOException {
+    header.clear();
+    header.putInt(operation).putInt(shard).putInt(worker).putInt(clock).putInt(size).flip();
+    writeFully(channel, header);
+  }
+
+  private static void readFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer) < 0) throw new EOFException("Connection closed!");
+    }
+  }
+
+  private static void writeFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) channel.write(buffer);
+  }
+
+  private final SocketChannel channel;
+  // The buffer for request headers and response sizes
+  private final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+}
@@ -1,5 +1,29 @@
 package com.htc.speedo.caffe;
 
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import caffe.Caffe.LayerParameter;
 import caffe.Caffe.NetParameter;
 import caffe.Caffe.SolverParameter;
 
@@ -7,9 +31,24 @@ import com.google.protobuf.InvalidProtocolBufferException;
 
 /**
  * The solver jni wrapper for Caffe.
+ * <p>
+ * Independent solvers can be driven from different threads concurrently, there is no shared
+ * state between solvers in c++. A single solver should only be used by one thread at a time.
+ * Note that the device (see {@link #setDevice(int)}) is a per-thread setting in Caffe.
+ * <p>
+ * The asynchronous functions (e.g. {@link #trainAsync(int)}) run on a dedicated thread of the
+ * solver, in the order they are submitted. So a driver can submit
+ * {@link #getDeltaAsync(Buffer) getDeltaAsync} of step t followed by
+ * {@link #trainAsync(int, boolean) trainAsync} of step t + 1, and process the delta of step t
+ * while step t + 1 is computing. Synchronous functions are not ordered with the asynchronous
+ * ones, don't call them while there are pending asynchronous tasks.
+ * <p>
+ * The c++ solver holds the whole net, it should be released by {@link #dispose()} (or
+ * {@link #close()}, e.g. in a try-with-resources statement). As a safety net, a solver that is
+ * garbage collected without dispose releases the c++ solver in its finalizer.
  * @author Zhongyang Zheng (zhongyang_zheng@htc.com)
  */
-public class Solver {
+public class Solver implements AutoCloseable {
   /** The total number of GPUs, 0 for CPU only mode. */
   public static final int deviceCount;
 
@@ -33,17 +72,99 @@ public class Solver {
   }
 
   /** Init the caffe solver with given parameters in c++. */
-  public void init(SolverParameter solver, NetParameter model, boolean doublePrecision) {
+  public synchronized void init(SolverParameter solver, NetParameter model,
+    boolean doublePrecision) {
     if (handle != 0)
       throw new IllegalStateException("Solver has already been initialized!");
     original_param = solver;
+    double_precision = doublePrecision;
     handle = init(solver.toByteArray(), model.toByteArray(), doublePrecision);
   }
 
-  /** Delete the caffe solver in c++. Should init again before train or test. */
-  public void dispose() {
-    dispose(handle);
+  /**
+   * Delete the caffe solver in c++. Should init again before train or test. It's safe to call
+   * dispose more than once. Pending asynchronous tasks are cancelled, and the running one is waited
+   * for, unless dispose is called by the running task itself (e.g. from a listener), which can't
+   * wait for itself and sees a disposed solver once dispose returns.
+   */
+  public synchronized void dispose() {
+    if (executor != null) {
+      // cancel pending tasks, and wait for the running one, which stops before next iteration
+      executor.shutdownNow();
+      // the solver thread would wait for itself forever
+      boolean terminated = Thread.currentThread() == taskThread, interrupted = false;
+      while (!terminated) {
+        try {
+          terminated = executor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+          // the c++ solver can't be deleted while it's still in use, keep waiting
+          interrupted = true;
+        }
+      }
+      executor = null;
+      if (interrupted) Thread.currentThread().interrupt();
+    }
+    if (handle != 0) dispose(handle);
     handle = 0;
+    layout = null;
+    memoryData = memoryLabels = null;
+  }
+
+  /** Whether the solver is initialized and not disposed yet. */
+  public synchronized boolean isInitialized() {
+    return handle != 0;
+  }
+
+  /** Same as {@link #dispose()}, so solvers can be used in try-with-resources statements. */
+  @Override
+  public void close() {
+    dispose();
+  }
+
+  /**
+   * Release the c++ solver if it's not disposed. Pending asynchronous tasks reference the solver,
+   * and a native call in progress keeps the c++ solver alive until it returns (see
+   * handle_registry.hpp), so it's safe to release once the solver is unreachable.
+   */
+  @Override
+  protected void finalize() throws Throwable {
+    try {
+      if (handle != 0) dispose(handle);
+      handle = 0;
+    } finally {
+      super.finalize();
+    }
+  }
+
+  /** Same as {@link #cloneSolver(boolean)}, with history. */
+  public Solver cloneSolver() {
+    return cloneSolver(true);
+  }
+
+  /**
+   * Create an initialized copy of this solver in c++, with the same solver parameters (including
+   * {@link #updateParameter(SolverParameter) updates}), weights and iteration. The parameters
+   * already parsed in c++ are reused and weights are copied in memory, so no protobuf is involved.
+   * The batch size of the copy is the one defined in the model.
+   * @param history Whether to copy the solver history (e.g. momentum) as well. Otherwise the
+   * history of the copy is zero.
+   */
+  public synchronized Solver cloneSolver(boolean history) {
+    if (handle == 0)
+      throw new IllegalStateException("Solver must be initialized before cloneSolver!");
+    Solver copy = new Solver();
+    copy.original_param = original_param;
+    copy.double_precision = double_precision;
+    copy.layout = layout;
+    copy.handle = cloneSolver(handle, history);
+    return copy;
+  }
+
+  /** The handle of the c++ solver, for other jni wrappers sharing the solver. */
+  long getHandle() {
+    if (handle == 0)
+      throw new IllegalStateException("Solver must be initialized!");
+    return handle;
   }
 
   /** Train for given iterations. Always update the deltas. */
@@ -65,13 +186,288 @@ public class Solver {
     return train(handle, iteration, update_diff);
   }
 
-  /** Test for given iterations, should be (test data size/test batch size). */
+  /**
+   * Test for given iterations on the first test net, should be (test data size/test batch size).
+   * @return The mean of the first output of the test net, e.g. accuracy.
+   */
   public double test(int iteration) {
     if (handle == 0)
       throw new IllegalStateException("Solver must be initialized before test!");
     return test(handle, iteration);
   }
 
+  /**
+   * Test for exactly given iterations on a test net, which can be less than test_iter to evaluate
+   * on a cheap subset. Each test continues from where the last one stopped in the test data.
+   * @param testNetId The index of the test net, in the order defined in solver parameter.
+   * @return The mean of each output element over iterations, in order of
+   * {@link #getTestOutputNames(int)}.
+   */
+  public Map<String, Double> test(int iteration, int testNetId) {
+    return getTestOutputs(getTestOutputNames(testNetId), testSums(iteration, testNetId),
+      iteration);
+  }
+
+  /**
+   * The names of outputs of a test net, which are the output blob names, or blob name followed by
+   * "#" and index of the element for blobs with more than one element.
+   */
+  public String[] getTestOutputNames(int testNetId) {
+    if (handle == 0)
+      throw new IllegalStateException("Solver must be initialized before test!");
+    return getTestOutputNames(handle, testNetId);
+  }
+
+  /** The sum of each output element of the test net over given iterations. */
+  double[] testSums(int iteration, int testNetId) {
+    if (handle == 0)
+      throw new IllegalStateException("Solver must be initialized before test!");
+    if (iteration <= 0)
+      throw new IllegalArgumentException("Test iteration must be positive!");
+    return testOutputs(handle, iteration, testNetId);
+  }
+
+  /** Map of the mean of each output element by name. */
+  static Map<String, Double> getTestOutputs(String[] names, double[] sums, int iteration) {
+    if (names.length != sums.length)
+      throw new IllegalStateException("Outputs of test net changed during test!");
+    Map<String, Double> outputs = new LinkedHashMap<String, Double>();
+    for (int i = 0; i < names.length; i++) outputs.put(names[i], sums[i] / iteration);
+    return outputs;
+  }
+
+  /** Train for given iterations asynchronously. Always update the deltas. */
+  public Future<Double> trainAsync(int iteration) {
+    return trainAsync(iteration, true);
+  }
+
+  /**
+   * Train for given iterations asynchronously, see {@link #train(int, boolean)}. The task can be
+   * cancelled between iterations with {@link Future#cancel(boolean) cancel(true)}, iterations
+   * finished before cancellation are not rolled back.
+   */
+  public Future<Double> trainAsync(final int iteration, final boolean update_diff) {
+    if (!update_diff && iteration > 1)
+      throw new IllegalStateException("Cannot train more than one mini-batch if not update_diff!");
+    return submit(new Callable<Double>() {
+      @Override
+      public Double call() {
+        double loss = 0;
+        int i = 0;
+        // train one iteration at a time, so we can stop between iterations
+        for (; i < iteration && !Thread.currentThread().isInterrupted(); i++)
+          loss += train(1, update_diff);
+        return i == 0 ? 0 : loss / i;
+      }
+    });
+  }
+
+  /** Test for given iterations asynchronously, see {@link #test(int)}. */
+  public Future<Double> testAsync(final int iteration) {
+    return submit(new Callable<Double>() {
+      @Override
+      public Double call() {
+        return test(iteration);
+      }
+    });
+  }
+
+  /**
+   * Copy the caffe net parameter gradients into a flat buffer asynchronously, after all previously
+   * submitted tasks are finished. The buffer should not be used until the future is done.
+   */
+  public Future<Buffer> getDeltaAsync(final Buffer delta) {
+    getLayout().checkBuffer(delta);
+    return submit(new Callable<Buffer>() {
+      @Override
+      public Buffer call() {
+        getDelta(delta);
+        return delta;
+      }
+    });
+  }
+
+  /**
+   * Train one mini-batch without update, and copy the gradients into a flat buffer (see
+   * {@link ParameterLayout}). Same as {@link #train(int, boolean) train(1, false)} followed by
+   * {@link #getDelta(Buffer)}, except that the gradients of each layer are copied as soon as its
+   * backward pass finishes, and the listener is notified. Test and snapshot are not triggered.
+   * @param delta The flat buffer of gradients
+   * @param listener If not null, notified for each layer with parameters, see
+   * {@link GradientListener}.
+   */
+  public double trainExport(Buffer delta, GradientListener listener) {
+    getLayout().checkBuffer(delta);
+    return trainExport(handle, delta, listener);
+  }
+
+  /**
+   * Compress the current caffe net parameter gradients into a direct buffer, see
+   * {@link DeltaCompression}. Usually called after {@link #train(int, boolean) train(1, false)}.
+   * @param output A direct buffer of at least {@link DeltaCompression#getMaxSize(ParameterLayout)}
+   * bytes, e.g. created by {@link DeltaCompression#allocate(ParameterLayout)}
+   * @return The size of compressed delta in bytes, starting from the beginning of output.
+   */
+  public int getCompressedDelta(ByteBuffer output, DeltaCompression compression) {
+    if (!output.isDirect())
+      throw new IllegalArgumentException("Compressed delta must be a direct buffer!");
+    if (output.capacity() < compression.getMaxSize(getLayout()))
+      throw new IllegalArgumentException("Buffer is too small for compressed delta!");
+    return getCompressedDelta(handle, output, compression.getSparsification().ordinal(),
+      compression.getParameter(), compression.getQuantization().ordinal(),
+      compression.isErrorFeedback());
+  }
+
+  /** Clear the compression error kept for error feedback, see {@link DeltaCompression}. */
+  public void resetResidual() {
+    if (handle == 0)
+      throw new IllegalStateException("Solver must be initialized before resetResidual!");
+    resetResidual(handle);
+  }
+
+  /**
+   * Set the caffe net parameter diffs from a compressed delta and update to the model. Elements
+   * not in the compressed delta are treated as 0.
+   * @param compressed The compressed delta, see {@link DeltaCompression}
+   * @param size The size of compressed delta in bytes
+   * @param weight If not null, the updated weights are copied into this flat buffer.
+   */
+  public void mergeCompressedDelta(ByteBuffer compressed, int size, Buffer weight) {
+    ParameterLayout layout = getLayout();
+    NetParameterOperation.checkCompressed(compressed, size);
+    if (weight != null) layout.checkBuffer(weight);
+    mergeCompressedDelta(handle, compressed, size, weight);
+  }
+
+  /**
+   * The size in bytes of the solver state snapshot, see {@link #snapshotState(ByteBuffer)}. The
+   * size never changes after init.
+   */
+  public long getStateSize() {
+    if (handle == 0)
+      throw new IllegalStateException("Solver must be initialized before getStateSize!");
+    return getStateSize(handle, true);
+  }
+
+  /**
+   * Write the full solver state, i.e. weights, history (e.g. momentum) and iteration, into a
+   * direct buffer. The snapshot is a flat binary that can be memory mapped, see StateHeader in
+   * jni_solver.hpp. No protobuf is involved.
+   * @param output A direct buffer of at least {@link #getStateSize()} bytes.
+   */
+  public void snapshotState(ByteBuffer output) {
+    long size = getStateSize();
+    if (!output.isDirect())
+      throw new IllegalArgumentException("State buffer must be a direct buffer!");
+    if (output.capacity() < size)
+      throw new IllegalArgumentException("State buffer is too small, requires " + size
+        + " bytes!");
+    snapshotState(handle, output, true);
+  }
+
+  /** Write the full solver state into a file, which is memory mapped so c++ writes directly. */
+  public void snapshotState(Path path) throws IOException {
+    FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+      StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    try {
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, getStateSize());
+      snapshotState(buffer);
+      buffer.force();
+    } finally {
+      channel.close();
+    }
+  }
+
+  /** Write the full solver state into a channel. */
+  public void snapshotState(WritableByteChannel channel) throws IOException {
+    ByteBuffer buffer = allocateState();
+    snapshotState(buffer);
+    while (buffer.hasRemaining())
+      channel.write(buffer);
+  }
+
+  /**
+   * Write the full solver state into a file on a background thread. The state is copied in memory
+   * before return, so the solver can continue training while the file is written.
+   * @return The future of the path, which is done after the file is written.
+   */
+  public Future<Path> snapshotStateAsync(final Path path) {
+    final ByteBuffer buffer = allocateState();
+    snapshotState(buffer);
+    return getSnapshotExecutor().submit(new Callable<Path>() {
+      @Override
+      public Path call() throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+          StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        try {
+          while (buffer.hasRemaining())
+            channel.write(buffer);
+          channel.force(false);
+        } finally {
+          channel.close();
+        }
+        return path;
+      }
+    });
+  }
+
+  /**
+   * Restore the full solver state from a snapshot in a direct buffer, from the beginning to the
+   * limit of the buffer. Throws IllegalArgumentException if the snapshot does not match the net
+   * or precision of the solver.
+   */
+  public void restoreState(ByteBuffer input) {
+    if (handle == 0)
+      throw new IllegalStateException("Solver must be initialized before restoreState!");
+    if (!input.isDirect())
+      throw new IllegalArgumentException("State buffer must be a direct buffer!");
+    restoreState(handle, input, input.limit(), false);
+  }
+
+  /** Restore the full solver state from a snapshot file, which is memory mapped. */
+  public void restoreState(Path path) throws IOException {
+    FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+    try {
+      restoreState(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+    } finally {
+      channel.close();
+    }
+  }
+
+  /** Restore the full solver state from a channel, which contains exactly a snapshot. */
+  public void restoreState(ReadableByteChannel channel) throws IOException {
+    ByteBuffer buffer = allocateState();
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer) < 0)
+        throw new IllegalArgumentException("Snapshot is truncated!");
+    }
+    buffer.flip();
+    restoreState(buffer);
+  }
+
+  /** Allocate a direct buffer for the solver state snapshot. */
+  private ByteBuffer allocateState() {
+    long size = getStateSize();
+    if (size > Integer.MAX_VALUE)
+      throw new IllegalStateException("Solver state is too large for a single buffer!");
+    return ByteBuffer.allocateDirect((int) size).order(ByteOrder.nativeOrder());
+  }
+
+  /** Get the thread to write snapshots in background, created on first use. */
+  private static synchronized ExecutorService getSnapshotExecutor() {
+    if (snapshotExecutor == null) {
+      snapshotExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "caffe-snapshot");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    }
+    return snapshotExecutor;
+  }
+
   /** Set iteration of the solver. */
   public void setIteration(int iteration) {
     if (handle == 0)
@@ -130,6 +526,81 @@ public class Solver {
     updateParameter(handle, builder.build().toByteArray());
   }
 
+  /**
+   * Set the caffe net parameters of the given layers. Other layers in the model are not copied to
+   * c++, and other layers of the solver are not changed.
+   */
+  public void setWeight(NetParameter model, Set<String> layers) {
+    checkLayers(layers);
+    NetParameter.Builder builder = model.toBuilder().clearLayer();
+    for (LayerParameter layer: model.getLayerList()) {
+      if (layers.contains(layer.getName())) builder.addLayer(layer);
+    }
+    setWeight(builder.build().toByteArray());
+  }
+
+  /**
+   * Init the caffe solver, and load weights from a file (see {@link #setWeight(Path)}), e.g. for
+   * warm start from a caffemodel. The model should only define the net, without weights.
+   */
+  public void init(SolverParameter solver, NetParameter model, boolean doublePrecision,
+    Path weights) throws IOException {
+    init(solver, model, doublePrecision);
+    setWeight(weights);
+  }
+
+  /**
+   * Load the caffe net parameters from a file, without parsing it in java. The file is memory
+   * mapped and read directly by c++, so the model is never copied to java heap. The file can be
+   * either a caffemodel (binary proto of {@link NetParameter}), a flat weight file written by
+   * {@link #saveWeight(Path)}, or a state snapshot written by {@link #snapshotState(Path)} (only
+   * weights are loaded).
+   */
+  public void setWeight(Path path) throws IOException {
+    FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+    try {
+      loadWeight(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+    } finally {
+      channel.close();
+    }
+  }
+
+  /**
+   * Same as {@link #setWeight(Path)}, but read from a direct buffer (e.g. a
+   * {@link MappedByteBuffer}), from the beginning to the limit of the buffer.
+   */
+  public void loadWeight(ByteBuffer model) {
+    if (handle == 0)
+      throw new IllegalStateException("Solver must be initialized before loadWeight!");
+    if (!model.isDirect())
+      throw new IllegalArgumentException("Model buffer must be a direct buffer!");
+    int magic = model.limit() < 4 ? 0 : model.duplicate().order(ByteOrder.nativeOrder()).getInt(0);
+    if (magic == STATE_MAGIC || magic == WEIGHT_MAGIC)
+      restoreState(handle, model, model.limit(), true);
+    else
+      setWeightBinaryProto(handle, model, model.limit());
+  }
+
+  /**
+   * Save the caffe net parameters into a flat weight file, which can be loaded quickly by
+   * {@link #setWeight(Path)}. The file is a state snapshot without history, see
+   * {@link #snapshotState(ByteBuffer)}. The file is memory mapped so c++ writes directly.
+   */
+  public void saveWeight(Path path) throws IOException {
+    if (handle == 0)
+      throw new IllegalStateException("Solver must be initialized before saveWeight!");
+    FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+      StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    try {
+      MappedByteBuffer buffer =
+        channel.map(FileChannel.MapMode.READ_WRITE, 0, getStateSize(handle, false));
+      snapshotState(handle, buffer, false);
+      buffer.force();
+    } finally {
+      channel.close();
+    }
+  }
+
   /** Set the caffe net parameters to the given model. */
   public void setWeight(NetParameter model) {
     setWeight(model.toByteArray());
@@ -154,6 +625,73 @@ public class Solver {
     return getWeight(handle, false);
   }
 
+  /**
+   * Get the caffe net parameters of the given layers as protobuf. Other layers are not serialized
+   * in c++ at all.
+   */
+  public NetParameter getWeight(Set<String> layers) throws InvalidProtocolBufferException {
+    checkLayers(layers);
+    return NetParameter.parseFrom(getLayers(handle, layers.toArray(new String[0]), false));
+  }
+
+  /** Get the caffe net parameter gradients of the given layers as protobuf. */
+  public NetParameter getDelta(Set<String> layers) throws InvalidProtocolBufferException {
+    checkLayers(layers);
+    return NetParameter.parseFrom(getLayers(handle, layers.toArray(new String[0]), true));
+  }
+
+  /**
+   * Enable or disable version tracking (disabled by default). If enabled, an update (by train or
+   * merge delta) only stamps the blobs it changed with the new version, see {@link #getVersion()}.
+   * This sums the diff of every blob after every iteration, which is a device sync on GPU, and
+   * train runs one iteration at a time, so the average_loss display of caffe shows the loss of each
+   * iteration. If disabled, every update stamps all blobs.
+   */
+  public void setVersionTracking(boolean enabled) {
+    if (handle == 0)
+      throw new IllegalStateException("Solver must be initialized before setVersionTracking!");
+    setVersionTracking(handle, enabled);
+  }
+
+  /**
+   * Get the version of weights. The version increases every time weights are changed by train,
+   * merge delta or set weight, and each blob remembers the version that last changed it. With
+   * {@link #setVersionTracking(boolean) version tracking}, a blob is only considered changed by an
+   * update if the update is not all 0 (e.g. blobs with lr_mult 0 never change), otherwise all
+   * blobs are changed by an update.
+   */
+  public long getVersion() {
+    if (handle == 0)
+      throw new IllegalStateException("Solver must be initialized before getVersion!");
+    return getVersion(handle);
+  }
+
+  /**
+   * Get the caffe net parameters of layers that changed after the given version, as a patch that
+   * can be applied with {@link #setWeight(NetParameter)}. Use {@link #getVersion()} at the same
+   * time to get the version of the patch, e.g.
+   *
+   * <pre>
+   * NetParameter patch = master.getWeightSince(replicaVersion);
+   * replicaVersion = master.getVersion();
+   * replica.setWeight(patch);
+   * </pre>
+   */
+  public NetParameter getWeightSince(long version) throws InvalidProtocolBufferException {
+    if (handle == 0)
+      throw new IllegalStateException("Solver must be initialized before getWeightSince!");
+    return NetParameter.parseFrom(getWeightSince(handle, version));
+  }
+
+  /** Check the solver is initialized and all layers exist in the net. */
+  private void checkLayers(Set<String> layers) {
+    Set<String> names = getLayout().getLayerNames();
+    for (String layer: layers) {
+      if (!names.contains(layer))
+        throw new IllegalArgumentException("Layer " + layer + " does not exist in the net!");
+    }
+  }
+
   /** Set the caffe net parameter diffs to the given model and update to the model. */
   public NetParameter mergeDelta(NetParameter model) throws InvalidProtocolBufferException {
     return NetParameter.parseFrom(mergeDelta(model.toByteArray()));
@@ -178,21 +716,260 @@ public class Solver {
     return getWeight(handle, true);
   }
 
-  // The c++ pointer for caffe solver
+  /**
+   * Get the layout of parameter blobs in flat buffers. The layout never changes after init, so
+   * it's only fetched from c++ once.
+   */
+  public ParameterLayout getLayout() {
+    if (handle == 0)
+      throw new IllegalStateException("Solver must be initialized before getLayout!");
+    if (layout == null) {
+      try {
+        layout = new ParameterLayout(NetParameter.parseFrom(getLayout(handle)), double_precision);
+      } catch (InvalidProtocolBufferException e) {
+        // the layout is generated by c++, so this should never happen
+        throw new IllegalStateException("Failed to parse layout from c++!", e);
+      }
+    }
+    return layout;
+  }
+
+  /**
+   * Copy the caffe net parameters into a flat buffer, see {@link ParameterLayout}. No protobuf
+   * serialization is involved.
+   */
+  public void getWeight(Buffer weight) {
+    getLayout().checkBuffer(weight);
+    getWeightBuffer(handle, weight, false);
+  }
+
+  /** Copy the caffe net parameter gradients into a flat buffer, see {@link ParameterLayout}. */
+  public void getDelta(Buffer delta) {
+    getLayout().checkBuffer(delta);
+    getWeightBuffer(handle, delta, true);
+  }
+
+  /** Set the caffe net parameters from a flat buffer, see {@link ParameterLayout}. */
+  public void setWeight(Buffer weight) {
+    getLayout().checkBuffer(weight);
+    setWeightBuffer(handle, weight, false);
+  }
+
+  /**
+   * Set the caffe net parameter diffs from a flat buffer and update to the model.
+   * @param delta The flat buffer of gradients, see {@link ParameterLayout}
+   * @param weight If not null, the updated weights are copied into this flat buffer.
+   */
+  public void mergeDelta(Buffer delta, Buffer weight) {
+    ParameterLayout layout = getLayout();
+    layout.checkBuffer(delta);
+    if (weight != null) layout.checkBuffer(weight);
+    mergeDeltaBuffer(handle, delta, weight);
+  }
+
+  /**
+   * Same as {@link #mergeDelta(Buffer, Buffer)}, but only the selected blobs are updated, e.g. the
+   * blobs of a shard of {@link ParameterServer}. Other blobs and their solver history are not
+   * touched, but the iteration still advances. With clip_gradients, gradients are clipped
+   * by the norm of the selected blobs only, not the global norm.
+   * @param blobs The indices of the selected blobs, see {@link ParameterLayout.BlobInfo#index}.
+   * @param delta The gradients of the selected blobs back to back, i.e. the concatenated ranges of
+   * {@link ParameterLayout#getRanges(BitSet)}.
+   * @param weight If not null, the updated weights of the selected blobs are copied into this
+   * buffer back to back.
+   */
+  public void mergeDelta(BitSet blobs, Buffer delta, Buffer weight) {
+    ParameterLayout layout = getLayout();
+    if (blobs.length() > layout.getBlobs().size())
+      throw new IllegalArgumentException("Invalid blob index: " + (blobs.length() - 1));
+    int count = layout.getCount(blobs);
+    layout.checkBuffer(delta, count);
+    if (weight != null) layout.checkBuffer(weight, count);
+    int[] indices = new int[blobs.cardinality()];
+    for (int i = 0, blob = blobs.nextSetBit(0); blob >= 0; blob = blobs.nextSetBit(blob + 1))
+      indices[i++] = blob;
+    mergeSliceBuffer(handle, indices, delta, weight);
+  }
+
+  /**
+   * Get the shape of data consumed by each train iteration from the MemoryDataLayer of the
+   * training net, i.e. {samples, channels, height, width}, where samples is the batch size of the
+   * layer times iter_size.
+   * @return The shape, or null if the training net has no MemoryDataLayer.
+   */
+  public int[] getMemoryDataShape() {
+    if (handle == 0)
+      throw new IllegalStateException("Solver must be initialized before getMemoryDataShape!");
+    return getMemoryDataShape(handle);
+  }
+
+  /**
+   * Point the MemoryDataLayer of the training net to samples in direct buffers without any copy.
+   * Each train iteration consumes the next samples (see {@link #getMemoryDataShape()}), and wraps
+   * around at the end. The buffers must not be changed until consumed, the solver keeps them
+   * referenced until next call of setMemoryData.
+   * @param data The samples, channels * height * width elements for each sample.
+   * @param labels The label of each sample, the capacity is the number of samples, which must be
+   * a multiple of the batch size.
+   */
+  public void setMemoryData(FloatBuffer data, FloatBuffer labels) {
+    setMemoryData(data, labels, false);
+  }
+
+  /** Double precision version of {@link #setMemoryData(FloatBuffer, FloatBuffer)}. */
+  public void setMemoryData(DoubleBuffer data, DoubleBuffer labels) {
+    setMemoryData(data, labels, true);
+  }
+
+  /** Check the buffers and set them to the MemoryDataLayer. */
+  private void setMemoryData(Buffer data, Buffer labels, boolean doublePrecision) {
+    int[] shape = getMemoryDataShape();
+    if (shape == null)
+      throw new IllegalStateException("Training net has no MemoryDataLayer!");
+    if (doublePrecision != double_precision)
+      throw new IllegalArgumentException("Buffer does not match precision of the solver!");
+    int samples = NetParameterOperation.checkBuffer(labels, labels.capacity());
+    NetParameterOperation.checkBuffer(data, samples * shape[1] * shape[2] * shape[3]);
+    setMemoryData(handle, data, labels, samples);
+    // the c++ layer holds pointers into the buffers, keep them from being collected
+    memoryData = data;
+    memoryLabels = labels;
+  }
+
+  /**
+   * Get a snapshot of the metrics of this solver and the process wide counters, see
+   * {@link SolverMetrics}. Metrics are only collected while enabled.
+   */
+  public SolverMetrics getMetrics() {
+    if (handle == 0)
+      throw new IllegalStateException("Solver must be initialized before getMetrics!");
+    return new SolverMetrics(getLayerNames(handle), getMetrics(handle), getGlobalMetrics());
+  }
+
+  /** Reset the metrics of this solver, process wide counters are not changed. */
+  public void resetMetrics() {
+    if (handle == 0)
+      throw new IllegalStateException("Solver must be initialized before resetMetrics!");
+    resetMetrics(handle);
+  }
+
+  /**
+   * The memory used by the training net in bytes, i.e. data and diff of all blobs and parameters,
+   * and the solver history. Batch size changes are reflected after the next train iteration.
+   */
+  public long getMemoryFootprint() {
+    if (handle == 0)
+      throw new IllegalStateException("Solver must be initialized before getMemoryFootprint!");
+    return getMemoryFootprint(handle);
+  }
+
+  /** Submit a task to the thread of the solver, the thread is created on first use. */
+  private synchronized <T> Future<T> submit(final Callable<T> task) {
+    if (handle == 0)
+      throw new IllegalStateException("Solver must be initialized before async operations!");
+    if (executor == null)
+      executor = Executors.newSingleThreadExecutor(deviceThreadFactory("caffe-solver"));
+    return executor.submit(new Callable<T>() {
+      @Override
+      public T call() throws Exception {
+        taskThread = Thread.currentThread();
+        try {
+          return task.call();
+        } finally {
+          taskThread = null;
+        }
+      }
+    });
+  }
+
+  /**
+   * Create daemon threads with the given name, which use the same device as the calling thread,
+   * since device is a per-thread setting in caffe. Created in a static context, so idle threads
+   * do not reference any solver and keep it from garbage collection.
+   */
+  static ThreadFactory deviceThreadFactory(final String name) {
+    final int device = getDevice();
+    return new ThreadFactory() {
+      @Override
+      public Thread newThread(final Runnable r) {
+        Thread thread = new Thread(new Runnable() {
+          @Override
+          public void run() {
+            setDevice(device);
+            r.run();
+          }
+        }, name);
+        thread.setDaemon(true);
+        return thread;
+      }
+    };
+  }
+
+  // The magic numbers of state snapshots and flat weight files, see jni_solver.hpp
+  private static final int STATE_MAGIC = 0x4a4e5353;
+  private static final int WEIGHT_MAGIC = 0x4a4e5357;
+  // The thread to write snapshots in background, shared by all solvers
+  private static ExecutorService snapshotExecutor;
+
+  // The handle of the c++ solver, see handle_registry.hpp
   private long handle;
   // The original solver parameter passed from Init
   private SolverParameter original_param;
+  // If the c++ solver is double precision
+  private boolean double_precision;
+  // The layout of flat buffers, lazily fetched from c++
+  private ParameterLayout layout;
+  // The thread to run asynchronous tasks, lazily created
+  private ExecutorService executor;
+  // The thread running an asynchronous task of this solver, null if none is running
+  private volatile Thread taskThread;
+  // The buffers of the MemoryDataLayer, referenced while c++ uses them
+  private Buffer memoryData, memoryLabels;
 
   // jni functions, see solver_jni.cpp for implementation
   private static native int getDeviceCount();
   private static native long init(byte[] solver, byte[] model, boolean doublePrecision);
   private static native void dispose(long handle);
+  private static native long cloneSolver(long handle, boolean history);
   private static native double train(long handle, int iteration, boolean update_diff);
   private static native double test(long handle, int iteration);
+  private static native double[] testOutputs(long handle, int iteration, int netId);
+  private static native String[] getTestOutputNames(long handle, int netId);
   private static native void setIteration(long handle, int iteration);
   private static native void setBatchSize(long handle, int batch_size);
   private static native void updateParameter(long handle, byte[] param);
   private static native void setWeight(long handle, byte[] weight);
   private static native byte[] getWeight(long handle, boolean diff);
   private static native byte[] mergeDelta(long handle, byte[] weight);
+  private static native long getStateSize(long handle, boolean history);
+  private static native void snapshotState(long handle, ByteBuffer output, boolean history);
+  private static native void restoreState(long handle, ByteBuffer input, long size,
+    boolean weightsOnly);
+  private static native void setWeightBinaryProto(long handle, ByteBuffer input, long size);
+  private static native void setVersionTracking(long handle, boolean enabled);
+  private static native long getVersion(long handle);
+  private static native byte[] getWeightSince(long handle, long version);
+  private static native byte[] getLayers(long handle, String[] layers, boolean diff);
+  private static native byte[] getLayout(long handle);
+  private static native void getWeightBuffer(long handle, Buffer buffer, boolean diff);
+  private static native void setWeightBuffer(long handle, Buffer buffer, boolean diff);
+  private static native void mergeDeltaBuffer(long handle, Buffer delta, Buffer weight);
+  private static native void mergeSliceBuffer(long handle, int[] blobs, Buffer delta,
+    Buffer weight);
+  private static native int getCompressedDelta(long handle, ByteBuffer output,
+    int sparsification, double parameter, int quantization, boolean errorFeedback);
+  private static native void resetResidual(long handle);
+  private static native void mergeCompressedDelta(long handle, ByteBuffer compressed, int size,
+    Buffer weight);
+  private static native double trainExport(long handle, Buffer delta, GradientListener listener);
+  private static native int[] getMemoryDataShape(long handle);
+  private static native void setMemoryData(long handle, Buffer data, Buffer labels, int n);
+  static native void setMetricsEnabled(boolean enabled);
+  static native boolean isMetricsEnabled();
+  static native long[] getGlobalMetrics();
+  static native void resetGlobalMetrics();
+  private static native long[] getMetrics(long handle);
+  private static native String[] getLayerNames(long handle);
+  private static native void resetMetrics(long handle);
+  private static native long getMemoryFootprint(long handle);
 }
@@ -0,0 +1,379 @@
+package com.htc.speedo.caffe;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * A snapshot of the metrics of a solver (see {@link Solver#getMetrics()}), together with the
+ * process wide counters of protobuf serialization and pinned java arrays, which are shared by all
+ * solvers and {@link NetParameterOperation}.
+ * <p>
+ * Metrics are collected natively and disabled by default. When disabled, the hot paths only read a
+ * flag. Enable and disable them at any time with {@link #setEnabled(boolean)}. Layer times are wall
+ * time, in GPU mode they only include kernel launches.
+ * <p>
+ * Besides the cumulative counters, the latencies of train iterations, protobuf serialization,
+ * parsing and array pins are counted in {@link Histogram histograms}.
+ */
+public class SolverMetrics implements SolverMetricsMXBean {
+  // The number of buckets of each histogram, same as kHistogramBuckets in metrics.hpp
+  static final int HISTOGRAM_BUCKETS = 40;
+  // The number of process wide counters, same as METRIC_COUNTERS in metrics.hpp
+  private static final int GLOBAL_COUNTERS = 6;
+
+  /**
+   * A histogram of latencies in power of 2 buckets, bucket b counts latencies in
+   * [2<sup>b</sup>, 2<sup>b + 1</sup>) nanoseconds. The last bucket also counts anything longer.
+   */
+  public static class Histogram {
+    Histogram(long[] values, int offset) {
+      buckets = Arrays.copyOfRange(values, offset, offset + HISTOGRAM_BUCKETS);
+      long total = 0;
+      for (long bucket: buckets) total += bucket;
+      count = total;
+    }
+
+    /** The number of latencies counted. */
+    public long getCount() {
+      return count;
+    }
+
+    /** The count of each bucket. */
+    public long[] getBuckets() {
+      return buckets.clone();
+    }
+
+    /**
+     * The upper bound of the bucket containing the given quantile, so it's at most twice of the
+     * actual latency. 0 if nothing is counted.
+     * @param quantile In [0, 1], e.g. 0.99 for P99.
+     */
+    public long getPercentileNanos(double quantile) {
+      if (count == 0) return 0;
+      long rank = (long) Math.ceil(quantile * count);
+      long seen = 0;
+      for (int i = 0; i < buckets.length; i++) {
+        seen += buckets[i];
+        if (seen >= rank && seen > 0) return 1L << (i + 1);
+      }
+      return 1L << buckets.length;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("count=%d p50=%dns p99=%dns", count, getPercentileNanos(0.5),
+        getPercentileNanos(0.99));
+    }
+
+    private final long[] buckets;
+    private final long count;
+  }
+
+  /** Enable or disable collection of metrics for all solvers. */
+  public static void setEnabled(boolean enabled) {
+    Solver.setMetricsEnabled(enabled);
+  }
+
+  /** Whether metrics are collected. */
+  public static boolean isEnabled() {
+    return Solver.isMetricsEnabled();
+  }
+
+  /** Reset the process wide counters. */
+  public static void resetGlobal() {
+    Solver.resetGlobalMetrics();
+  }
+
+  /**
+   * Register live metrics of a solver as an MXBean in the platform MBean server. Each read of an
+   * attribute takes a new snapshot.
+   * @param name The object name, e.g. "com.htc.speedo.caffe:type=Solver,name=worker0"
+   */
+  public static ObjectName register(Solver solver, String name) throws JMException {
+    ObjectName objectName = new ObjectName(name);
+    ManagementFactory.getPlatformMBeanServer().registerMBean(new Live(solver), objectName);
+    return objectName;
+  }
+
+  /** Unregister metrics registered with {@link #register(Solver, String)}. */
+  public static void unregister(ObjectName name) throws JMException {
+    ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+  }
+
+  /**
+   * Create a snapshot from native values.
+   * @param layers Names of all layers of the training net
+   * @param metrics Iterations, train time, forward time of each layer, backward time of each
+   * layer, iteration latency histogram, see jni_solver.hpp
+   * @param global The process wide counters followed by their histograms, see metrics.hpp
+   */
+  SolverMetrics(String[] layers, long[] metrics, long[] global) {
+    iterations = metrics[0];
+    trainNanos = metrics[1];
+    Map<String, Long> forward = new LinkedHashMap<String, Long>();
+    Map<String, Long> backward = new LinkedHashMap<String, Long>();
+    long forwardTotal = 0, backwardTotal = 0;
+    for (int i = 0; i < layers.length; i++) {
+      forward.put(layers[i], metrics[2 + i]);
+      backward.put(layers[i], metrics[2 + layers.length + i]);
+      forwardTotal += metrics[2 + i];
+      backwardTotal += metrics[2 + layers.length + i];
+    }
+    layerForwardNanos = Collections.unmodifiableMap(forward);
+    layerBackwardNanos = Collections.unmodifiableMap(backward);
+    forwardNanos = forwardTotal;
+    backwardNanos = backwardTotal;
+    iterationLatency = new Histogram(metrics, 2 + 2 * layers.length);
+    bytesSerialized = global[0];
+    bytesDeserialized = global[1];
+    serializeNanos = global[2];
+    deserializeNanos = global[3];
+    arrayPins = global[4];
+    pinNanos = global[5];
+    serializeLatency = new Histogram(global, GLOBAL_COUNTERS + 2 * HISTOGRAM_BUCKETS);
+    deserializeLatency = new Histogram(global, GLOBAL_COUNTERS + 3 * HISTOGRAM_BUCKETS);
+    pinLatency = new Histogram(global, GLOBAL_COUNTERS + 5 * HISTOGRAM_BUCKETS);
+  }
+
+  /** Number of train iterations. */
+  @Override
+  public long getIterations() {
+    return iterations;
+  }
+
+  /** Time spent in train, including forward, backward and update. */
+  @Override
+  public long getTrainNanos() {
+    return trainNanos;
+  }
+
+  /** Time spent in forward of all layers in train. */
+  @Override
+  public long getForwardNanos() {
+    return forwardNanos;
+  }
+
+  /** Time spent in backward of all layers in train. */
+  @Override
+  public long getBackwardNanos() {
+    return backwardNanos;
+  }
+
+  /** Time of train not spent in forward or backward, mostly the update of weights. */
+  @Override
+  public long getUpdateNanos() {
+    return Math.max(0, trainNanos - forwardNanos - backwardNanos);
+  }
+
+  /** Time spent in forward of each layer, in order of the training net. */
+  @Override
+  public Map<String, Long> getLayerForwardNanos() {
+    return layerForwardNanos;
+  }
+
+  /** Time spent in backward of each layer, in order of the training net. */
+  @Override
+  public Map<String, Long> getLayerBackwardNanos() {
+    return layerBackwardNanos;
+  }
+
+  /** Bytes of protobuf serialized into java arrays, process wide. */
+  @Override
+  public long getBytesSerialized() {
+    return bytesSerialized;
+  }
+
+  /** Bytes of protobuf parsed from java arrays or buffers, process wide. */
+  @Override
+  public long getBytesDeserialized() {
+    return bytesDeserialized;
+  }
+
+  /** Time spent in protobuf serialization, process wide. */
+  @Override
+  public long getSerializeNanos() {
+    return serializeNanos;
+  }
+
+  /** Time spent in protobuf parsing, process wide. */
+  @Override
+  public long getDeserializeNanos() {
+    return deserializeNanos;
+  }
+
+  /** Number of java arrays pinned with GetPrimitiveArrayCritical, process wide. */
+  @Override
+  public long getArrayPins() {
+    return arrayPins;
+  }
+
+  /** Time java arrays are held pinned, which may block GC, process wide. */
+  @Override
+  public long getPinNanos() {
+    return pinNanos;
+  }
+
+  /** Latency of train iterations, iterations of a train call count as their average. */
+  public Histogram getIterationLatency() {
+    return iterationLatency;
+  }
+
+  /** Latency of protobuf serialization, process wide. */
+  public Histogram getSerializeLatency() {
+    return serializeLatency;
+  }
+
+  /** Latency of protobuf parsing, process wide. */
+  public Histogram getDeserializeLatency() {
+    return deserializeLatency;
+  }
+
+  /** Time each java array is held pinned, process wide. */
+  public Histogram getPinLatency() {
+    return pinLatency;
+  }
+
+  @Override
+  public long getIterationP50Nanos() {
+    return iterationLatency.getPercentileNanos(0.5);
+  }
+
+  @Override
+  public long getIterationP99Nanos() {
+    return iterationLatency.getPercentileNanos(0.99);
+  }
+
+  @Override
+  public long getSerializeP99Nanos() {
+    return serializeLatency.getPercentileNanos(0.99);
+  }
+
+  @Override
+  public long getDeserializeP99Nanos() {
+    return deserializeLatency.getPercentileNanos(0.99);
+  }
+
+  @Override
+  public long getPinP99Nanos() {
+    return pinLatency.getPercentileNanos(0.99);
+  }
+
+  @Override
+  public String toString() {
+    return String.format("iterations=%d train=%dms forward=%dms backward=%dms update=%dms "
+      + "serialized=%dB deserialized=%dB pins=%d pinned=%dms", iterations, trainNanos / 1000000,
+      forwardNanos / 1000000, backwardNanos / 1000000, getUpdateNanos() / 1000000,
+      bytesSerialized, bytesDeserialized, arrayPins, pinNanos / 1000000);
+  }
+
+  /** The MXBean of a solver, taking a new snapshot on each read. */
+  private static class Live implements SolverMetricsMXBean {
+    Live(Solver solver) {
+      this.solver = solver;
+    }
+
+    @Override
+    public long getIterations() {
+      return solver.getMetrics().getIterations();
+    }
+
+    @Override
+    public long getTrainNanos() {
+      return solver.getMetrics().getTrainNanos();
+    }
+
+    @Override
+    public long getForwardNanos() {
+      return solver.getMetrics().getForwardNanos();
+    }
+
+    @Override
+    public long getBackwardNanos() {
+      return solver.getMetrics().getBackwardNanos();
+    }
+
+    @Override
+    public long getUpdateNanos() {
+      return solver.getMetrics().getUpdateNanos();
+    }
+
+    @Override
+    public Map<String, Long> getLayerForwardNanos() {
+      return solver.getMetrics().getLayerForwardNanos();
+    }
+
+    @Override
+    public Map<String, Long> getLayerBackwardNanos() {
+      return solver.getMetrics().getLayerBackwardNanos();
+    }
+
+    @Override
+    public long getBytesSerialized() {
+      return solver.getMetrics().getBytesSerialized();
+    }
+
+    @Override
+    public long getBytesDeserialized() {
+      return solver.getMetrics().getBytesDeserialized();
+    }
+
+    @Override
+    public long getSerializeNanos() {
+      return solver.getMetrics().getSerializeNanos();
+    }
+
+    @Override
+    public long getDeserializeNanos() {
+      return solver.getMetrics().getDeserializeNanos();
+    }
+
+    @Override
+    public long getArrayPins() {
+      return solver.getMetrics().getArrayPins();
+    }
+
+    @Override
+    public long getPinNanos() {
+      return solver.getMetrics().getPinNanos();
+    }
+
+    @Override
+    public long getIterationP50Nanos() {
+      return solver.getMetrics().getIterationP50Nanos();
+    }
+
+    @Override
+    public long getIterationP99Nanos() {
+      return solver.getMetrics().getIterationP99Nanos();
+    }
+
+    @Override
+    public long getSerializeP99Nanos() {
+      return solver.getMetrics().getSerializeP99Nanos();
+    }
+
+    @Override
+    public long getDeserializeP99Nanos() {
+      return solver.getMetrics().getDeserializeP99Nanos();
+    }
+
+    @Override
+    public long getPinP99Nanos() {
+      return solver.getMetrics().getPinP99Nanos();
+    }
+
+    private final Solver solver;
+  }
+
+  private final long iterations, trainNanos, forwardNanos, backwardNanos;
+  private final Map<String, Long> layerForwardNanos, layerBackwardNanos;
+  private final long bytesSerialized, bytesDeserialized, serializeNanos, deserializeNanos;
+  private final long arrayPins, pinNanos;
+  private final Histogram iterationLatency, serializeLatency, deserializeLatency, pinLatency;
+}
@@ -0,0 +1,42 @@
+package com.htc.speedo.caffe;
+
+import java.util.Map;
+
+/** Metrics of a solver exposed through JMX, see {@link SolverMetrics} for details. */
+public interface SolverMetricsMXBean {
+  long getIterations();
+
+  long getTrainNanos();
+
+  long getForwardNanos();
+
+  long getBackwardNanos();
+
+  long getUpdateNanos();
+
+  Map<String, Long> getLayerForwardNanos();
+
+  Map<String, Long> getLayerBackwardNanos();
+
+  long getBytesSerialized();
+
+  long getBytesDeserialized();
+
+  long getSerializeNanos();
+
+  long getDeserializeNanos();
+
+  long getArrayPins();
+
+  long getPinNanos();
+
+  long getIterationP50Nanos();
+
+  long getIterationP99Nanos();
+
+  long getSerializeP99Nanos();
+
+  long getDeserializeP99Nanos();
+
+  long getPinP99Nanos();
+}
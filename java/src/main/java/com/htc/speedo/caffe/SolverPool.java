@@ -0,0 +1,208 @@
+package com.htc.speedo.caffe;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import caffe.Caffe.NetParameter;
+import caffe.Caffe.SolverParameter;
+
+/**
+ * A pool of warm solvers, keyed by solver parameter, net parameter and precision. Building a
+ * solver from protobuf sets up every layer, so the pool keeps one template solver for each key,
+ * and creates new solvers by {@link Solver#cloneSolver(boolean) cloning} the template natively.
+ * <p>
+ * Released solvers are reset in place to the state right after init: the weights, history and
+ * iteration are restored from a state snapshot of the template, and solver parameters, batch size,
+ * metrics, version tracking and the compression residual are reset. So every solver from the pool
+ * starts from the same initial weights. The position of data layers and the weight version are not
+ * reset. The pool is thread safe.
+ */
+public class SolverPool implements AutoCloseable {
+  /**
+   * Create a pool.
+   * @param maxIdle The maximum number of idle solvers kept for each key, extra released solvers
+   * are disposed.
+   */
+  public SolverPool(int maxIdle) {
+    if (maxIdle < 0)
+      throw new IllegalArgumentException("Max idle solvers must be non-negative!");
+    this.maxIdle = maxIdle;
+  }
+
+  /**
+   * Get a solver in the initial state for the given parameters. Reuses an idle solver if any,
+   * otherwise clones the template, which is only initialized from protobuf on first use.
+   */
+  public Solver acquire(SolverParameter solver, NetParameter model, boolean doublePrecision) {
+    Key key = new Key(solver, model, doublePrecision);
+    Entry entry;
+    synchronized (this) {
+      if (closed) throw new IllegalStateException("Solver pool is closed!");
+      entry = entries.get(key);
+      if (entry == null) {
+        entry = new Entry();
+        entries.put(key, entry);
+      }
+    }
+    Solver result;
+    boolean clone;
+    synchronized (entry) {
+      // close may have dropped the entry meanwhile, never create a template it cannot dispose
+      if (closed) throw new IllegalStateException("Solver pool is closed!");
+      if (entry.template == null) {
+        Solver template = new Solver();
+        template.init(solver, model, doublePrecision);
+        ByteBuffer state = ByteBuffer.allocateDirect((int) template.getStateSize())
+          .order(ByteOrder.nativeOrder());
+        template.snapshotState(state);
+        entry.initialState = state;
+        entry.template = template;
+      }
+      result = entry.idle.pollFirst();
+      clone = result == null;
+      if (clone) result = entry.template.cloneSolver(true);
+    }
+    synchronized (this) {
+      if (closed) {
+        result.dispose();
+        throw new IllegalStateException("Solver pool is closed!");
+      }
+      outstanding.put(result, entry);
+      if (clone)
+        created++;
+      else
+        reused++;
+    }
+    return result;
+  }
+
+  /**
+   * Return a solver acquired from this pool. The solver is reset and kept for later use, or
+   * disposed if there are already enough idle solvers. Disposed solvers are dropped.
+   */
+  public void release(Solver solver) {
+    Entry entry;
+    boolean keep;
+    synchronized (this) {
+      entry = outstanding.remove(solver);
+      if (entry == null)
+        throw new IllegalArgumentException("Solver is not acquired from this pool!");
+      keep = !closed;
+    }
+    if (!solver.isInitialized()) return;
+    synchronized (entry) {
+      keep = keep && entry.template != null && entry.idle.size() < maxIdle;
+      if (keep) {
+        reset(solver, entry);
+        entry.idle.addFirst(solver);
+        return;
+      }
+    }
+    solver.dispose();
+  }
+
+  /** The total number of idle solvers in the pool. */
+  public synchronized int getIdleCount() {
+    int count = 0;
+    for (Entry entry: entries.values()) {
+      synchronized (entry) {
+        count += entry.idle.size();
+      }
+    }
+    return count;
+  }
+
+  /** The number of solvers cloned from templates. */
+  public synchronized long getCreatedCount() {
+    return created;
+  }
+
+  /** The number of idle solvers handed out again. */
+  public synchronized long getReusedCount() {
+    return reused;
+  }
+
+  /**
+   * Dispose all idle and template solvers. Solvers not released yet are still owned by the
+   * caller, and disposed when released.
+   */
+  @Override
+  public void close() {
+    Map<Key, Entry> disposing;
+    synchronized (this) {
+      closed = true;
+      disposing = new HashMap<Key, Entry>(entries);
+      entries.clear();
+    }
+    for (Entry entry: disposing.values()) {
+      synchronized (entry) {
+        for (Solver solver: entry.idle) solver.dispose();
+        entry.idle.clear();
+        if (entry.template != null) entry.template.dispose();
+        entry.template = null;
+        entry.initialState = null;
+      }
+    }
+  }
+
+  /** Reset the solver in place to the state of the template after init. */
+  private static void reset(Solver solver, Entry entry) {
+    solver.restoreState(entry.initialState);
+    solver.updateParameter(SolverParameter.getDefaultInstance());
+    solver.setBatchSize(0);
+    solver.resetMetrics();
+    solver.setVersionTracking(false);
+    solver.resetResidual();
+  }
+
+  /** The parameters a solver is initialized with. */
+  private static class Key {
+    Key(SolverParameter solver, NetParameter model, boolean doublePrecision) {
+      this.solver = solver;
+      this.model = model;
+      this.doublePrecision = doublePrecision;
+      hash = (solver.hashCode() * 31 + model.hashCode()) * 31 + (doublePrecision ? 1 : 0);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (!(other instanceof Key)) return false;
+      Key key = (Key) other;
+      return hash == key.hash && doublePrecision == key.doublePrecision
+        && solver.equals(key.solver) && model.equals(key.model);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    private final SolverParameter solver;
+    private final NetParameter model;
+    private final boolean doublePrecision;
+    private final int hash;
+  }
+
+  /** The template and idle solvers of a key, guarded by itself. */
+  private static class Entry {
+    Solver template;
+    // The state snapshot of the template right after init
+    ByteBuffer initialState;
+    // Most recently released first, which are more likely in cache
+    final Deque<Solver> idle = new ArrayDeque<Solver>();
+  }
+
+  private final int maxIdle;
+  // All keys used so far
+  private final Map<Key, Entry> entries = new HashMap<Key, Entry>();
+  // The solvers handed out, by identity
+  private final Map<Solver, Entry> outstanding = new IdentityHashMap<Solver, Entry>();
+  // Set under this, but also read under entry locks
+  private volatile boolean closed = false;
+  private long created = 0, reused = 0;
+}
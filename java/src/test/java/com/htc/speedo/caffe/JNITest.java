@@ -3,19 +3,46 @@ package com.htc.speedo.caffe;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.management.ObjectName;
 
 import caffe.Caffe.BlobProto;
 import caffe.Caffe.DataParameter;
 import caffe.Caffe.LayerParameter;
+import caffe.Caffe.MemoryDataParameter;
 import caffe.Caffe.NetParameter;
 import caffe.Caffe.SolverParameter;
 
 import com.google.protobuf.Message.Builder;
 import com.google.protobuf.TextFormat;
 
+import com.htc.speedo.caffe.NetParameterOperation.ReduceMode;
+
 import org.junit.Assert;
 import org.junit.BeforeClass;
 import org.junit.Test;
@@ -42,21 +69,41 @@ public abstract class JNITest {
 
   /** Create a new solver for MNIST with custom batch size and iter size. */
   protected Solver loadMnistSolver(int batch_size, int iter_size) throws IOException {
+    Solver solver = new Solver();
+    solver.init(loadMnistSolverParameter(iter_size), loadMnistNetParameter(batch_size),
+      double_precision);
+    return solver;
+  }
+
+  /** Load the solver parameter for MNIST with custom iter size. */
+  protected SolverParameter loadMnistSolverParameter(int iter_size) throws IOException {
     SolverParameter.Builder solver_builder = SolverParameter.newBuilder();
     loadMessage("examples/mnist/lenet_solver.prototxt", solver_builder);
     // skip test during train
     solver_builder.setTestInterval(Integer.MAX_VALUE).setTestInitialization(false);
     // set iter size
     solver_builder.setIterSize(iter_size);
+    return solver_builder.build();
+  }
+
+  /** Load the net parameter for MNIST with custom batch size. */
+  protected NetParameter loadMnistNetParameter(int batch_size) throws IOException {
     NetParameter.Builder net_builder = NetParameter.newBuilder();
     loadMessage("examples/mnist/lenet_train_test.prototxt", net_builder);
     if (batch_size != default_batch_size) {
       // override training batch size
       net_builder.getLayerBuilder(0).getDataParamBuilder().setBatchSize(batch_size);
     }
-    Solver solver = new Solver();
-    solver.init(solver_builder.build(), net_builder.build(), double_precision);
-    return solver;
+    return net_builder.build();
+  }
+
+  /** Load the net parameter for MNIST, reading training data from memory instead of the DB. */
+  protected NetParameter loadMnistMemoryNetParameter(int batch_size) throws IOException {
+    NetParameter.Builder builder = loadMnistNetParameter(default_batch_size).toBuilder();
+    builder.getLayerBuilder(0).setType("MemoryData").clearDataParam().clearTransformParam()
+      .setMemoryDataParam(MemoryDataParameter.newBuilder().setBatchSize(batch_size)
+        .setChannels(1).setHeight(28).setWidth(28));
+    return builder.build();
   }
 
   // accuracy for training loss
@@ -378,4 +425,1115 @@ public abstract class JNITest {
       }
     }
   }
+
+  /** Get a value from a flat buffer, regardless of precision. */
+  protected double getFlat(ByteBuffer buffer, int index) {
+    return double_precision ? buffer.getDouble(index * 8) : buffer.getFloat(index * 4);
+  }
+
+  /** Get a value of data or diff from a blob proto, regardless of precision. */
+  protected double getProto(BlobProto blob, int index, boolean diff) {
+    if (double_precision)
+      return diff ? blob.getDoubleDiff(index) : blob.getDoubleData(index);
+    else
+      return diff ? blob.getDiff(index) : blob.getData(index);
+  }
+
+  /** Check the flat buffer contains exactly the same values as the net parameter. */
+  protected void assertFlatEquals(ParameterLayout layout, NetParameter param, ByteBuffer buffer,
+    boolean diff) {
+    for (ParameterLayout.BlobInfo info: layout.getBlobs()) {
+      BlobProto blob = param.getLayer(info.layerIndex).getBlobs(info.blobIndex);
+      Assert.assertEquals(param.getLayer(info.layerIndex).getName(), info.layerName);
+      for (int k = 0; k < info.count; k++) {
+        Assert.assertEquals(getProto(blob, k, diff), getFlat(buffer, info.offset + k),
+          operation_accuracy);
+      }
+    }
+  }
+
+  @Test
+  public void testFlatBuffer() throws IOException {
+    Solver solver = loadMnistSolver();
+    ParameterLayout layout = solver.getLayout();
+    Assert.assertEquals(layout.isDoublePrecision(), double_precision);
+    ByteBuffer weight = layout.allocate();
+    ByteBuffer delta = layout.allocate();
+    // train for 1 iteration without update, so we have non-zero deltas
+    solver.train(1, false);
+    solver.getWeight(weight);
+    solver.getDelta(delta);
+    assertFlatEquals(layout, solver.getWeightProto(), weight, false);
+    assertFlatEquals(layout, solver.getDeltaProto(), delta, true);
+
+    // merge delta by flat buffer should be same as merge delta by protobuf
+    Solver solver2 = loadMnistSolver();
+    solver2.setWeight(weight);
+    // train increases the iteration even without update, learning rate depends on it
+    solver2.setIteration(1);
+    assertFlatEquals(layout, solver2.getWeightProto(), weight, false);
+    NetParameter merged = solver2.mergeDelta(solver.getDeltaProto());
+    ByteBuffer merged_flat = layout.allocate();
+    solver.mergeDelta(delta, merged_flat);
+    assertFlatEquals(layout, merged, merged_flat, false);
+    solver.dispose();
+    solver2.dispose();
+  }
+
+  @Test
+  public void testFlatOperation() throws IOException {
+    // make sure large blobs (ip1 layer of lenet) are split into multiple threads
+    NetParameterOperation.setNumThreads(4);
+    Assert.assertEquals(NetParameterOperation.getNumThreads(), 4);
+    Solver solver = loadMnistSolver();
+    ParameterLayout layout = solver.getLayout();
+    ByteBuffer weight1 = layout.allocate();
+    solver.getWeight(weight1);
+    solver.train(2);
+    ByteBuffer weight2 = layout.allocate();
+    solver.getWeight(weight2);
+    solver.dispose();
+
+    ByteBuffer result = layout.allocate();
+    int count = layout.getCount();
+    // result = weight1 + 2 * weight2
+    copyFlat(weight1, result);
+    if (double_precision)
+      NetParameterOperation.axpy(2.0, weight2.asDoubleBuffer(), result.asDoubleBuffer());
+    else
+      NetParameterOperation.axpy(2.0f, weight2.asFloatBuffer(), result.asFloatBuffer());
+    for (int i = 0; i < count; i++)
+      Assert.assertEquals(getFlat(weight1, i) + 2 * getFlat(weight2, i), getFlat(result, i),
+        loss_accuracy);
+    // result = (weight1 + weight2) / 4
+    if (double_precision)
+      NetParameterOperation.addDivide(weight1.asDoubleBuffer(), weight2.asDoubleBuffer(), 4,
+        result.asDoubleBuffer());
+    else
+      NetParameterOperation.addDivide(weight1.asFloatBuffer(), weight2.asFloatBuffer(), 4,
+        result.asFloatBuffer());
+    for (int i = 0; i < count; i++)
+      Assert.assertEquals((getFlat(weight1, i) + getFlat(weight2, i)) / 4, getFlat(result, i),
+        loss_accuracy);
+    // result = ((weight1 + weight2) / 4 + weight1) * 10
+    if (double_precision) {
+      NetParameterOperation.add(result.asDoubleBuffer(), weight1.asDoubleBuffer());
+      NetParameterOperation.scale(result.asDoubleBuffer(), 10);
+    } else {
+      NetParameterOperation.add(result.asFloatBuffer(), weight1.asFloatBuffer());
+      NetParameterOperation.scale(result.asFloatBuffer(), 10);
+    }
+    for (int i = 0; i < count; i++)
+      Assert.assertEquals(((getFlat(weight1, i) + getFlat(weight2, i)) / 4 + getFlat(weight1, i))
+        * 10, getFlat(result, i), loss_accuracy * 10);
+    NetParameterOperation.setNumThreads(0);
+  }
+
+  /** Copy the whole flat buffer. */
+  protected void copyFlat(ByteBuffer from, ByteBuffer to) {
+    to.clear();
+    to.put((ByteBuffer) from.duplicate().clear());
+    to.clear();
+  }
+
+  @Test
+  public void testReduce() throws IOException {
+    Solver worker = loadMnistSolver();
+    ParameterLayout layout = worker.getLayout();
+    List<byte[]> deltas = new ArrayList<byte[]>();
+    List<Buffer> flats = new ArrayList<Buffer>();
+    for (int i = 0; i < 4; i++) {
+      worker.train(1, false);
+      deltas.add(worker.getDelta());
+      ByteBuffer flat = layout.allocate();
+      worker.getDelta(flat);
+      flats.add(double_precision ? flat.asDoubleBuffer() : flat.asFloatBuffer());
+    }
+    worker.dispose();
+    // reduce should be exactly same as chained plus and divide
+    byte[] sum = deltas.get(0);
+    for (int i = 1; i < deltas.size(); i++)
+      sum = NetParameterOperation.plus(sum, deltas.get(i));
+    byte[] mean = NetParameterOperation.divide(sum, deltas.size());
+    Assert.assertArrayEquals(sum, NetParameterOperation.reduce(deltas, ReduceMode.SUM));
+    Assert.assertArrayEquals(mean, NetParameterOperation.reduce(deltas, ReduceMode.MEAN));
+    Assert.assertArrayEquals(sum, NetParameterOperation.reduce(deltas, ReduceMode.WEIGHTED,
+      new double[] {1, 1, 1, 1}));
+    // flat buffer reduce
+    ByteBuffer output = layout.allocate();
+    NetParameterOperation.reduce(flats, double_precision ? output.asDoubleBuffer() :
+      output.asFloatBuffer(), ReduceMode.MEAN, null);
+    assertFlatEquals(layout, NetParameter.parseFrom(mean), output, true);
+    NetParameterOperation.reduce(flats, double_precision ? output.asDoubleBuffer() :
+      output.asFloatBuffer(), ReduceMode.WEIGHTED, new double[] {0.25, 0.25, 0.25, 0.25});
+    assertFlatEquals(layout, NetParameter.parseFrom(mean), output, true);
+    // models with different blobs or malformed models are rejected
+    for (byte[] bad: new byte[][] {NetParameter.newBuilder().build().toByteArray(),
+      new byte[] {-1, -1, -1}}) {
+      try {
+        NetParameterOperation.reduce(Arrays.asList(sum, bad), ReduceMode.SUM);
+        Assert.fail("Mismatched models should fail");
+      } catch (IllegalArgumentException e) {
+        // expected
+      }
+    }
+  }
+
+  @Test
+  public void testDataParallelTrainer() throws Exception {
+    NetParameter model = loadMnistNetParameter(default_batch_size);
+    List<NetParameter> replicas = new ArrayList<NetParameter>();
+    for (int i = 0; i < 4; i++) replicas.add(model);
+    DataParallelTrainer trainer =
+      new DataParallelTrainer(loadMnistSolverParameter(1), model, replicas, double_precision);
+    Assert.assertEquals(trainer.getReplicaCount(), 4);
+    trainer.setBatchSize(default_batch_size);
+    double accuracy0 = trainer.getMaster().test(100);
+    System.out.printf("Loss of 4 replicas is: " + double_format + "\n", trainer.train(20));
+    double accuracy20 = trainer.getMaster().test(100);
+    Assert.assertTrue(accuracy20 > accuracy0);
+    trainer.dispose();
+  }
+
+  @Test
+  public void testDataParallelEquivalence() throws Exception {
+    // each replica reads a different quarter of the samples from memory, the master reads nothing
+    int replicaBatch = default_batch_size / 4;
+    NetParameter model = loadMnistMemoryNetParameter(replicaBatch);
+    DataParallelTrainer trainer = new DataParallelTrainer(loadMnistSolverParameter(1), model,
+      Arrays.asList(model, model, model, model), double_precision);
+    Solver solver = new Solver();
+    solver.init(loadMnistSolverParameter(1), loadMnistMemoryNetParameter(default_batch_size),
+      double_precision);
+    solver.setWeight(trainer.getMaster().getWeight());
+    int sampleSize = 28 * 28, elementSize = double_precision ? 8 : 4;
+    ByteBuffer data = ByteBuffer.allocateDirect(default_batch_size * sampleSize * elementSize)
+      .order(ByteOrder.nativeOrder());
+    ByteBuffer labels = ByteBuffer.allocateDirect(default_batch_size * elementSize)
+      .order(ByteOrder.nativeOrder());
+    Buffer dataView = DataParallelTrainer.typedView(data, double_precision);
+    Buffer labelView = DataParallelTrainer.typedView(labels, double_precision);
+    for (int j = 0; j < default_batch_size; j++) {
+      int label = j % 10;
+      putFlat(labelView, j, label);
+      for (int k = 0; k < sampleSize; k++)
+        putFlat(dataView, j * sampleSize + k, k / 79 == label ? 1 : 0);
+    }
+    setMemoryData(solver, data, labels);
+    for (int i = 0; i < 4; i++) {
+      data.limit((i + 1) * replicaBatch * sampleSize * elementSize)
+        .position(i * replicaBatch * sampleSize * elementSize);
+      labels.limit((i + 1) * replicaBatch * elementSize).position(i * replicaBatch * elementSize);
+      setMemoryData(trainer.getReplica(i), data.slice().order(ByteOrder.nativeOrder()),
+        labels.slice().order(ByteOrder.nativeOrder()));
+    }
+    // one step of 4 replicas is the same as one iteration on the combined batch
+    Assert.assertEquals(trainer.step(), solver.train(1), loss_accuracy);
+    ParameterLayout layout = solver.getLayout();
+    ByteBuffer expected = layout.allocate(), actual = layout.allocate();
+    solver.getWeight(expected);
+    trainer.getMaster().getWeight(actual);
+    for (int i = 0; i < layout.getCount(); i++)
+      Assert.assertEquals(getFlat(actual, i), getFlat(expected, i), loss_accuracy);
+    trainer.dispose();
+    solver.dispose();
+  }
+
+  /** Feed samples in native order byte buffers to a solver regardless of precision. */
+  protected void setMemoryData(Solver solver, ByteBuffer data, ByteBuffer labels) {
+    if (double_precision)
+      solver.setMemoryData(data.asDoubleBuffer(), labels.asDoubleBuffer());
+    else
+      solver.setMemoryData(data.asFloatBuffer(), labels.asFloatBuffer());
+  }
+
+  @Test
+  public void testAsync() throws Exception {
+    Solver solver = loadMnistSolver(default_batch_size, 1);
+    ParameterLayout layout = solver.getLayout();
+    ByteBuffer delta = layout.allocate();
+    // tasks are executed in order
+    Future<Double> loss = solver.trainAsync(1, false);
+    Future<Buffer> future = solver.getDeltaAsync(delta);
+    Future<Double> accuracy = solver.testAsync(10);
+    Assert.assertTrue(future.get() == delta);
+    Assert.assertTrue(loss.isDone());
+    Assert.assertTrue(accuracy.get() >= 0);
+    assertFlatEquals(layout, solver.getDeltaProto(), delta, true);
+    // cancel a long training, later tasks still run
+    loss = solver.trainAsync(Integer.MAX_VALUE);
+    accuracy = solver.testAsync(10);
+    Thread.sleep(100);
+    Assert.assertTrue(loss.cancel(true));
+    Assert.assertTrue(accuracy.get() >= 0);
+    solver.dispose();
+  }
+
+  @Test
+  public void testTrainExport() throws IOException {
+    Solver solver1 = loadMnistSolver();
+    Solver solver2 = loadMnistSolver();
+    solver2.setWeight(solver1.getWeight());
+    ParameterLayout layout = solver1.getLayout();
+    final List<Integer> layers = new ArrayList<Integer>();
+    final int[] exported = new int[] {layout.getCount()};
+    GradientExporter exporter = new GradientExporter(solver1);
+    exporter.step(new GradientListener() {
+      @Override
+      public void onGradient(int layerIndex, Buffer delta, int offset, int count) {
+        // layers are exported from top to bottom, and fill the buffer from end to start
+        if (!layers.isEmpty()) Assert.assertTrue(layerIndex < layers.get(layers.size() - 1));
+        Assert.assertEquals(offset + count, exported[0]);
+        layers.add(layerIndex);
+        exported[0] = offset;
+      }
+    });
+    Assert.assertEquals(exported[0], 0);
+    // 2 conv layers and 2 inner product layers in lenet
+    Assert.assertEquals(layers.size(), 4);
+    Assert.assertEquals(exporter.getStep(), 1);
+    // same as train without update
+    solver2.train(1, false);
+    assertFlatEquals(layout, solver2.getDeltaProto(), (ByteBuffer) exporter.getBuffer(0), true);
+    // buffers are used alternately
+    exporter.step(null);
+    Assert.assertTrue(exporter.getBuffer(0) != exporter.getBuffer(1));
+    exporter.step(null);
+    Assert.assertTrue(exporter.getBuffer(1) != exporter.getBuffer(2));
+    solver1.dispose();
+    solver2.dispose();
+  }
+
+  /** Decompress and accumulate into a flat buffer, regardless of precision. */
+  protected void axpyCompressed(ByteBuffer compressed, int size, ByteBuffer y) {
+    if (double_precision)
+      NetParameterOperation.axpyCompressed(1.0, compressed, size, y.asDoubleBuffer());
+    else
+      NetParameterOperation.axpyCompressed(1.0f, compressed, size, y.asFloatBuffer());
+  }
+
+  @Test
+  public void testCompressedDelta() throws IOException {
+    Solver solver1 = loadMnistSolver();
+    Solver solver2 = loadMnistSolver();
+    solver2.setWeight(solver1.getWeight());
+    ParameterLayout layout = solver1.getLayout();
+    solver1.train(1, false);
+    ByteBuffer delta = layout.allocate();
+    solver1.getDelta(delta);
+
+    // dense fp32 without error feedback is lossless for float
+    DeltaCompression fp32 = new DeltaCompression(DeltaCompression.Sparsification.NONE, 0,
+      DeltaCompression.Quantization.FP32, false);
+    ByteBuffer compressed = fp32.allocate(layout);
+    int size = solver1.getCompressedDelta(compressed, fp32);
+    ByteBuffer decompressed = layout.allocate();
+    axpyCompressed(compressed, size, decompressed);
+    for (int i = 0; i < layout.getCount(); i++)
+      Assert.assertEquals(getFlat(delta, i), getFlat(decompressed, i), 1e-6);
+    // merge compressed delta is same as merge the decompressed delta
+    ByteBuffer weight1 = layout.allocate();
+    ByteBuffer weight2 = layout.allocate();
+    solver1.mergeDelta(decompressed, weight1);
+    solver2.mergeCompressedDelta(compressed, size, weight2);
+    for (int i = 0; i < layout.getCount(); i++)
+      Assert.assertEquals(getFlat(weight1, i), getFlat(weight2, i), operation_accuracy);
+
+    // top 1% in int8 is much smaller, and keeps at most 1% of each blob
+    solver1.train(1, false);
+    solver1.getDelta(delta);
+    DeltaCompression topK = DeltaCompression.topK(0.01, DeltaCompression.Quantization.INT8);
+    compressed = topK.allocate(layout);
+    size = solver1.getCompressedDelta(compressed, topK);
+    Assert.assertTrue(size < layout.getByteSize() / 10);
+    decompressed = layout.allocate();
+    axpyCompressed(compressed, size, decompressed);
+    for (ParameterLayout.BlobInfo blob: layout.getBlobs()) {
+      int nonzero = 0;
+      for (int i = blob.offset; i < blob.offset + blob.count; i++) {
+        if (getFlat(decompressed, i) != 0) nonzero++;
+      }
+      Assert.assertTrue(nonzero <= Math.ceil(blob.count * 0.01));
+    }
+    solver1.resetResidual();
+
+    // malformed input is rejected, without touching the target
+    ByteBuffer before = layout.allocate();
+    copyFlat(decompressed, before);
+    try {
+      axpyCompressed(compressed, size - 4, decompressed);
+      Assert.fail("Truncated compressed delta should be rejected!");
+    } catch (IllegalArgumentException e) {
+    }
+    Assert.assertEquals(decompressed, before);
+    solver1.dispose();
+    solver2.dispose();
+  }
+
+  @Test
+  public void testSeededPlus() throws IOException {
+    Solver solver1 = loadMnistSolver();
+    Solver solver2 = loadMnistSolver();
+    ParameterLayout layout = solver1.getLayout();
+    ByteBuffer weight1 = layout.allocate();
+    ByteBuffer weight2 = layout.allocate();
+    ByteBuffer result = layout.allocate();
+    solver1.getWeight(weight1);
+    solver2.getWeight(weight2);
+    copyFlat(weight1, result);
+    // selection is deterministic with the same seed
+    Assert.assertEquals(layout.selectBlobs(0.5f, 42), layout.selectBlobs(0.5f, 42));
+    Assert.assertEquals(layout.selectBlobs(0, 42).cardinality(), layout.getBlobs().size());
+    Assert.assertTrue(layout.selectBlobs(1, 42).isEmpty());
+    BitSet selected;
+    if (double_precision)
+      selected = NetParameterOperation.plus(result.asDoubleBuffer(), weight2.asDoubleBuffer(),
+        layout, 0.5f, 42);
+    else
+      selected = NetParameterOperation.plus(result.asFloatBuffer(), weight2.asFloatBuffer(),
+        layout, 0.5f, 42);
+    Assert.assertEquals(selected, layout.selectBlobs(0.5f, 42));
+    for (ParameterLayout.BlobInfo blob: layout.getBlobs()) {
+      for (int i = blob.offset; i < blob.offset + blob.count; i++) {
+        double expected = getFlat(weight1, i);
+        if (selected.get(blob.index)) expected += getFlat(weight2, i);
+        Assert.assertEquals(expected, getFlat(result, i), loss_accuracy);
+      }
+    }
+    solver1.dispose();
+    solver2.dispose();
+  }
+
+  @Test
+  public void testLayerWeight() throws IOException {
+    Solver solver1 = loadMnistSolver();
+    Solver solver2 = loadMnistSolver();
+    Set<String> layers = new HashSet<String>(Arrays.asList("ip2"));
+    Assert.assertTrue(solver1.getLayout().getLayerNames().containsAll(layers));
+    NetParameter full = solver1.getWeightProto();
+    NetParameter partial = solver1.getWeight(layers);
+    Assert.assertEquals(partial.getLayerCount(), 1);
+    Assert.assertEquals(full.getLayer(layerIndex(full, "ip2")), partial.getLayer(0));
+    solver1.train(1, false);
+    Assert.assertEquals(solver1.getDelta(layers).getLayer(0),
+      solver1.getDeltaProto().getLayer(layerIndex(full, "ip2")));
+    // only the given layers are set
+    NetParameter before = solver2.getWeightProto();
+    solver2.setWeight(full, layers);
+    NetParameter after = solver2.getWeightProto();
+    for (int i = 0; i < after.getLayerCount(); i++) {
+      NetParameter expected = after.getLayer(i).getName().equals("ip2") ? full : before;
+      Assert.assertEquals(expected.getLayer(i).getBlobsList(), after.getLayer(i).getBlobsList());
+    }
+    try {
+      solver1.getWeight(new HashSet<String>(Arrays.asList("no_such_layer")));
+      Assert.fail("Unknown layers should be rejected!");
+    } catch (IllegalArgumentException e) {
+    }
+    solver1.dispose();
+    solver2.dispose();
+  }
+
+  @Test
+  public void testWeightSince() throws IOException {
+    Solver master = loadMnistSolver();
+    Solver replica = loadMnistSolver();
+    long version = master.getVersion();
+    Assert.assertEquals(master.getWeightSince(version).getLayerCount(), 0);
+    // all layers with parameters are changed by train, with or without tracking
+    master.train(2);
+    Assert.assertTrue(master.getVersion() > version);
+    NetParameter patch = master.getWeightSince(version);
+    Assert.assertEquals(patch.getLayerCount(), 4);
+    master.setVersionTracking(true);
+    version = master.getVersion();
+    master.train(2);
+    Assert.assertEquals(master.getVersion(), version + 2);
+    patch = master.getWeightSince(version);
+    Assert.assertEquals(patch.getLayerCount(), 4);
+    // apply the patch to replica
+    replica.setWeight(patch);
+    Assert.assertEquals(master.getWeightProto(), replica.getWeightProto());
+    version = master.getVersion();
+    // only the given layer is changed
+    master.setWeight(replica.getWeightProto(), new HashSet<String>(Arrays.asList("ip2")));
+    patch = master.getWeightSince(version);
+    Assert.assertEquals(patch.getLayerCount(), 1);
+    Assert.assertEquals(patch.getLayer(0).getName(), "ip2");
+    master.dispose();
+    replica.dispose();
+    // with tracking, a frozen layer is never changed by train, so it's left out of the patch
+    NetParameter.Builder builder = loadMnistNetParameter(default_batch_size).toBuilder();
+    for (int i = 0; i < builder.getLayerCount(); i++) {
+      LayerParameter.Builder layer = builder.getLayerBuilder(i);
+      if (!layer.getName().equals("conv1")) continue;
+      for (int j = 0; j < layer.getParamCount(); j++) layer.getParamBuilder(j).setLrMult(0);
+    }
+    Solver frozen = new Solver();
+    frozen.init(loadMnistSolverParameter(1), builder.build(), double_precision);
+    frozen.setVersionTracking(true);
+    version = frozen.getVersion();
+    frozen.train(2);
+    patch = frozen.getWeightSince(version);
+    Assert.assertEquals(patch.getLayerCount(), 3);
+    for (LayerParameter layer: patch.getLayerList())
+      Assert.assertFalse(layer.getName().equals("conv1"));
+    // without tracking, every layer is stamped by train
+    frozen.setVersionTracking(false);
+    version = frozen.getVersion();
+    frozen.train(1);
+    Assert.assertEquals(frozen.getWeightSince(version).getLayerCount(), 4);
+    frozen.dispose();
+  }
+
+  @Test
+  public void testSnapshotState() throws Exception {
+    Solver solver1 = loadMnistSolver();
+    Solver solver2 = loadMnistSolver();
+    // solver2 reads the same data as solver1 after 5 iterations
+    solver2.train(5);
+    solver1.train(5);
+    Path path = Files.createTempFile("solver", ".state");
+    try {
+      solver1.snapshotState(path);
+      Assert.assertEquals(Files.size(path), solver1.getStateSize());
+      solver2.restoreState(path);
+      Assert.assertEquals(solver1.getWeightProto(), solver2.getWeightProto());
+      // momentum and iteration are restored, so both solvers update the same
+      solver1.train(1);
+      solver2.train(1);
+      Assert.assertEquals(solver1.getWeightProto(), solver2.getWeightProto());
+      // snapshot in background, while solver1 continues training
+      Future<Path> future = solver1.snapshotStateAsync(path);
+      NetParameter weight = solver1.getWeightProto();
+      solver1.train(1);
+      Assert.assertEquals(future.get(), path);
+      solver1.restoreState(path);
+      Assert.assertEquals(weight, solver1.getWeightProto());
+    } finally {
+      Files.delete(path);
+    }
+    NetParameter weight = solver1.getWeightProto();
+    // a buffer without header is rejected
+    ByteBuffer state = ByteBuffer.allocateDirect(16);
+    try {
+      solver1.restoreState(state);
+      Assert.fail("Invalid snapshot should be rejected!");
+    } catch (IllegalArgumentException e) {
+    }
+    // snapshot of a different precision is rejected
+    Solver other = new Solver();
+    other.init(loadMnistSolverParameter(1), loadMnistNetParameter(default_batch_size),
+      !double_precision);
+    path = Files.createTempFile("solver", ".state");
+    try {
+      other.snapshotState(path);
+      solver1.restoreState(path);
+      Assert.fail("Snapshot of a different precision should be rejected!");
+    } catch (IllegalArgumentException e) {
+    } finally {
+      Files.delete(path);
+      other.dispose();
+    }
+    // flat weight file has no history, so it's not a full state
+    path = Files.createTempFile("solver", ".weight");
+    try {
+      solver2.saveWeight(path);
+      solver1.restoreState(path);
+      Assert.fail("Flat weight file should be rejected!");
+    } catch (IllegalArgumentException e) {
+    } finally {
+      Files.delete(path);
+    }
+    // rejected snapshots do not change the solver
+    Assert.assertEquals(weight, solver1.getWeightProto());
+    solver1.dispose();
+    solver2.dispose();
+  }
+
+  @Test
+  public void testMappedWeight() throws IOException {
+    Solver solver1 = loadMnistSolver();
+    Solver solver2 = loadMnistSolver();
+    solver1.train(1);
+    Path path = Files.createTempFile("solver", ".caffemodel");
+    try {
+      // caffemodel
+      Files.write(path, solver1.getWeight());
+      solver2.setWeight(path);
+      Assert.assertEquals(solver1.getWeightProto(), solver2.getWeightProto());
+      // flat weight file
+      solver1.train(1);
+      solver1.saveWeight(path);
+      solver2.setWeight(path);
+      Assert.assertEquals(solver1.getWeightProto(), solver2.getWeightProto());
+      // state snapshot
+      solver1.train(1);
+      solver1.snapshotState(path);
+      solver2.setWeight(path);
+      Assert.assertEquals(solver1.getWeightProto(), solver2.getWeightProto());
+      // warm start
+      Solver solver3 = new Solver();
+      solver3.init(loadMnistSolverParameter(1), loadMnistNetParameter(default_batch_size),
+        double_precision, path);
+      Assert.assertEquals(solver1.getWeightProto(), solver3.getWeightProto());
+      solver3.dispose();
+    } finally {
+      Files.delete(path);
+    }
+    solver1.dispose();
+    solver2.dispose();
+  }
+
+  @Test
+  public void testNetForward() throws IOException {
+    Solver solver = loadMnistSolver();
+    NetParameter.Builder builder = NetParameter.newBuilder();
+    loadMessage("examples/mnist/lenet.prototxt", builder);
+    Net net = new Net();
+    net.init(builder.build(), double_precision);
+    net.shareWeights(solver);
+    Assert.assertEquals(net.getInputSize(), 28 * 28);
+    Assert.assertEquals(net.getOutputSize(), 10);
+    // 3 samples with different inputs
+    ByteBuffer input = ByteBuffer.allocateDirect(3 * 28 * 28 * (double_precision ? 8 : 4))
+      .order(ByteOrder.nativeOrder());
+    for (int i = 0; i < 3 * 28 * 28; i++) {
+      if (double_precision)
+        input.putDouble(i * 8, (i % 7) / 7.0);
+      else
+        input.putFloat(i * 4, (i % 7) / 7.0f);
+    }
+    ByteBuffer output = ByteBuffer.allocateDirect(3 * 10 * 8).order(ByteOrder.nativeOrder());
+    ByteBuffer single = ByteBuffer.allocateDirect(10 * 8).order(ByteOrder.nativeOrder());
+    Assert.assertEquals(forward(net, input, output), 30);
+    // batch size changes to 1, the first sample has the same result
+    input.limit(28 * 28 * (double_precision ? 8 : 4));
+    Assert.assertEquals(forward(net, input.slice().order(ByteOrder.nativeOrder()), single), 10);
+    double sum = 0;
+    for (int i = 0; i < 10; i++) {
+      Assert.assertEquals(getFlat(output, i), getFlat(single, i), loss_accuracy);
+      sum += getFlat(single, i);
+    }
+    // output of softmax
+    Assert.assertEquals(sum, 1, loss_accuracy);
+    // weights are shared with the solver
+    solver.train(10);
+    forward(net, input.slice().order(ByteOrder.nativeOrder()), output);
+    boolean changed = false;
+    for (int i = 0; i < 10; i++) changed |= getFlat(output, i) != getFlat(single, i);
+    Assert.assertTrue(changed);
+    net.dispose();
+    solver.dispose();
+  }
+
+  @Test
+  public void testTestOutputs() throws Exception {
+    Solver solver1 = loadMnistSolver();
+    Solver solver2 = loadMnistSolver();
+    solver1.train(10);
+    solver2.setWeight(solver1.getWeight());
+    Assert.assertArrayEquals(solver1.getTestOutputNames(0), new String[] {"accuracy", "loss"});
+    // test honors iterations, and reports all outputs
+    Map<String, Double> outputs = solver2.test(5, 0);
+    Assert.assertEquals(outputs.size(), 2);
+    Assert.assertEquals(outputs.get("accuracy"), solver1.test(5), loss_accuracy);
+    Assert.assertTrue(outputs.get("loss") > 0);
+    try {
+      solver1.test(1, 1);
+      Assert.fail("Invalid test net id should fail");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+    // both shards read the same data, so each shard runs the same first batches as solver3
+    ShardedEvaluator evaluator = new ShardedEvaluator(loadMnistSolverParameter(1),
+      Arrays.asList(loadMnistNetParameter(default_batch_size),
+        loadMnistNetParameter(default_batch_size)), double_precision);
+    Assert.assertEquals(evaluator.getShardCount(), 2);
+    Solver solver3 = loadMnistSolver();
+    solver3.setWeight(solver1.getWeight());
+    Map<String, Double> expected = solver3.test(3, 0);
+    Map<String, Double> merged = evaluator.evaluate(solver1, 6, 0);
+    Assert.assertEquals(merged.keySet(), expected.keySet());
+    for (String name: expected.keySet())
+      Assert.assertEquals(merged.get(name), expected.get(name), loss_accuracy);
+    evaluator.dispose();
+    solver1.dispose();
+    solver2.dispose();
+    solver3.dispose();
+  }
+
+  @Test
+  public void testSolverMetrics() throws Exception {
+    Solver solver = loadMnistSolver();
+    // nothing is collected while disabled
+    SolverMetrics.setEnabled(false);
+    solver.train(1);
+    Assert.assertEquals(solver.getMetrics().getIterations(), 0);
+    Assert.assertEquals(solver.getMetrics().getLayerForwardNanos().get("conv1").longValue(), 0);
+    SolverMetrics.setEnabled(true);
+    Assert.assertTrue(SolverMetrics.isEnabled());
+    SolverMetrics.resetGlobal();
+    solver.train(2);
+    SolverMetrics metrics = solver.getMetrics();
+    Assert.assertEquals(metrics.getIterations(), 2);
+    Assert.assertTrue(metrics.getTrainNanos() > 0);
+    Assert.assertTrue(metrics.getLayerForwardNanos().get("conv1") > 0);
+    Assert.assertTrue(metrics.getLayerBackwardNanos().get("conv1") > 0);
+    Assert.assertTrue(metrics.getTrainNanos() >= metrics.getForwardNanos());
+    Assert.assertEquals(metrics.getIterationLatency().getCount(), 2);
+    Assert.assertTrue(metrics.getIterationP50Nanos() > 0);
+    // process wide counters may be changed by other threads, so only check lower bounds of the
+    // changes around one serialization and one parse of the weights
+    byte[] weight = solver.getWeight();
+    SolverMetrics serialized = solver.getMetrics();
+    solver.setWeight(weight);
+    SolverMetrics parsed = solver.getMetrics();
+    Assert.assertTrue(serialized.getBytesSerialized() - metrics.getBytesSerialized()
+      >= weight.length);
+    Assert.assertTrue(serialized.getSerializeLatency().getCount()
+      - metrics.getSerializeLatency().getCount() >= 1);
+    Assert.assertTrue(parsed.getBytesDeserialized() - serialized.getBytesDeserialized()
+      >= weight.length);
+    Assert.assertTrue(parsed.getDeserializeLatency().getCount()
+      - serialized.getDeserializeLatency().getCount() >= 1);
+    Assert.assertTrue(parsed.getArrayPins() - metrics.getArrayPins() >= 2);
+    Assert.assertTrue(parsed.getPinLatency().getCount() - metrics.getPinLatency().getCount()
+      >= 2);
+    // live metrics through JMX
+    ObjectName name = SolverMetrics.register(solver, "com.htc.speedo.caffe:type=Solver,name=test");
+    Assert.assertEquals(ManagementFactory.getPlatformMBeanServer().getAttribute(name, "Iterations"),
+      2L);
+    SolverMetrics.unregister(name);
+    solver.resetMetrics();
+    Assert.assertEquals(solver.getMetrics().getIterations(), 0);
+    SolverMetrics.setEnabled(false);
+    solver.dispose();
+  }
+
+  @Test
+  public void testParameterServerSync() throws Exception {
+    final ParameterServer server = new ParameterServer(loadMnistSolverParameter(1),
+      loadMnistNetParameter(default_batch_size), double_precision, 2, 1,
+      ParameterServer.Consistency.SYNC, 0);
+    Assert.assertEquals(server.getShardCount(), 2);
+    ByteBuffer weight = server.getLayout().allocate();
+    server.getWeight(weight);
+    // with a single worker, training through the server is the same as normal training
+    Solver solver = loadMnistSolver();
+    solver.setWeight(weight);
+    Solver local = loadMnistSolver();
+    ParameterServerWorker worker =
+      new ParameterServerWorker(local, new InMemoryTransport(server), 0, 2);
+    for (int i = 0; i < 5; i++)
+      Assert.assertEquals(worker.step(), solver.train(1), loss_accuracy);
+    Assert.assertEquals(worker.getClock(), 5);
+    // dispose wakes up pulls waiting for other clocks
+    final AtomicBoolean woken = new AtomicBoolean(false);
+    Thread blocked = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          server.pull(0, 0, 7, server.getLayout().allocate());
+        } catch (IllegalStateException e) {
+          woken.set(true);
+        } catch (InterruptedException e) {
+          // not expected
+        }
+      }
+    });
+    blocked.start();
+    blocked.join(200);
+    Assert.assertTrue(blocked.isAlive());
+    server.dispose();
+    blocked.join();
+    Assert.assertTrue(woken.get());
+    solver.dispose();
+    local.dispose();
+  }
+
+  @Test
+  public void testParameterServerClock() throws Exception {
+    // shards clip by their own norm, so clip_gradients is rejected
+    try {
+      new ParameterServer(loadMnistSolverParameter(1).toBuilder().setClipGradients(10).build(),
+        loadMnistNetParameter(default_batch_size), double_precision, 2, 1,
+        ParameterServer.Consistency.SYNC, 0);
+      Assert.fail("clip_gradients should be rejected!");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+    final ParameterServer server = new ParameterServer(loadMnistSolverParameter(1),
+      loadMnistNetParameter(default_batch_size), double_precision, 1, 2,
+      ParameterServer.Consistency.SYNC, 0);
+    final ByteBuffer delta = ByteBuffer.allocateDirect(server.getShardByteSize(0))
+      .order(ByteOrder.nativeOrder());
+    server.push(0, 0, delta);
+    // the second delta of worker 0 waits until worker 1 pushes the first clock
+    Thread second = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          server.push(0, 0, delta);
+        } catch (InterruptedException e) {
+          // not expected
+        }
+      }
+    });
+    second.start();
+    second.join(200);
+    Assert.assertTrue(second.isAlive());
+    server.push(0, 1, delta);
+    second.join();
+    server.pull(0, 0, 1, ByteBuffer.allocateDirect(server.getShardByteSize(0)));
+    server.dispose();
+  }
+
+  @Test
+  public void testParameterServerSocket() throws Exception {
+    final ParameterServer server = new ParameterServer(loadMnistSolverParameter(1),
+      loadMnistNetParameter(default_batch_size), double_precision, 2, 2,
+      ParameterServer.Consistency.STALE, 1);
+    ByteBuffer initial = server.getLayout().allocate();
+    server.getWeight(initial);
+    SocketTransport.Server endpoint = new SocketTransport.Server(server, 0);
+    final List<Solver> solvers = new ArrayList<Solver>();
+    final List<SocketTransport> transports = new ArrayList<SocketTransport>();
+    List<Callable<Void>> workers = new ArrayList<Callable<Void>>();
+    for (int i = 0; i < 2; i++) {
+      solvers.add(loadMnistSolver());
+      transports.add(new SocketTransport(endpoint.getAddress()));
+      final int id = i;
+      workers.add(new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+          ParameterServerWorker worker =
+            new ParameterServerWorker(solvers.get(id), transports.get(id), id, 2);
+          for (int step = 0; step < 3; step++) Assert.assertTrue(worker.step() > 0);
+          return null;
+        }
+      });
+    }
+    // the first failure of workers is rethrown here, instead of hanging the other worker or the
+    // pull below, and interrupting the blocked worker closes its connection
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    CompletionService<Void> completion = new ExecutorCompletionService<Void>(executor);
+    try {
+      for (Callable<Void> worker: workers) completion.submit(worker);
+      for (int i = 0; i < workers.size(); i++) completion.take().get();
+    } finally {
+      executor.shutdownNow();
+    }
+    // wait for all deltas to be merged, both workers pushed 3 deltas
+    server.pull(0, 0, 4, server.getLayout().allocate());
+    ByteBuffer weight = server.getLayout().allocate();
+    server.getWeight(weight);
+    Assert.assertFalse(weight.equals(initial));
+    // clock 5 is too far ahead of other workers with staleness 1
+    Thread blocked = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          server.pull(1, 0, 5, server.getLayout().allocate());
+        } catch (InterruptedException e) {
+          // expected
+        }
+      }
+    });
+    blocked.start();
+    blocked.join(200);
+    Assert.assertTrue(blocked.isAlive());
+    blocked.interrupt();
+    blocked.join();
+    for (SocketTransport transport: transports) transport.close();
+    endpoint.close();
+    server.dispose();
+    for (Solver solver: solvers) solver.dispose();
+  }
+
+  @Test
+  public void testMicroBatchExecutor() throws Exception {
+    Solver solver = loadMnistSolver();
+    NetParameter.Builder builder = NetParameter.newBuilder();
+    loadMessage("examples/mnist/lenet.prototxt", builder);
+    Net net = new Net();
+    net.init(builder.build(), double_precision);
+    net.shareWeights(solver);
+    // expected output of a single sample
+    float[] sample = new float[28 * 28];
+    ByteBuffer input = ByteBuffer.allocateDirect(28 * 28 * 8).order(ByteOrder.nativeOrder());
+    for (int i = 0; i < sample.length; i++) {
+      sample[i] = (i % 5) / 5.0f;
+      if (double_precision)
+        input.putDouble(i * 8, sample[i]);
+      else
+        input.putFloat(i * 4, sample[i]);
+    }
+    input.limit(28 * 28 * (double_precision ? 8 : 4));
+    ByteBuffer single = ByteBuffer.allocateDirect(10 * 8).order(ByteOrder.nativeOrder());
+    forward(net, input.slice().order(ByteOrder.nativeOrder()), single);
+    MicroBatchExecutor executor = new MicroBatchExecutor(net, 8, 50, TimeUnit.MILLISECONDS);
+    List<Future<float[]>> futures = new ArrayList<Future<float[]>>();
+    for (int i = 0; i < 20; i++) futures.add(executor.submit(sample));
+    for (Future<float[]> future: futures) {
+      float[] result = future.get();
+      Assert.assertEquals(result.length, 10);
+      for (int i = 0; i < 10; i++) Assert.assertEquals(result[i], getFlat(single, i), 1e-5);
+    }
+    MicroBatchExecutor.Stats stats = executor.getStats();
+    Assert.assertEquals(stats.requests, 20);
+    // requests are coalesced into batches
+    Assert.assertTrue(stats.batches < 20);
+    Assert.assertTrue(stats.fillRatio > 0 && stats.fillRatio <= 1);
+    Assert.assertTrue(stats.latencyP50 > 0 && stats.latencyP50 <= stats.latencyP99);
+    executor.shutdown();
+    try {
+      executor.submit(sample);
+      Assert.fail("Submit after shutdown should fail");
+    } catch (IllegalStateException e) {
+      // expected
+    }
+    net.dispose();
+    solver.dispose();
+  }
+
+  @Test
+  public void testMemoryDataFeed() throws Exception {
+    Solver dataSolver = loadMnistSolver();
+    Assert.assertNull(dataSolver.getMemoryDataShape());
+    dataSolver.dispose();
+    // replace training data layer with a memory data layer
+    NetParameter.Builder builder = loadMnistNetParameter(default_batch_size).toBuilder();
+    builder.getLayerBuilder(0).setType("MemoryData").clearDataParam().clearTransformParam()
+      .setMemoryDataParam(MemoryDataParameter.newBuilder().setBatchSize(16).setChannels(1)
+        .setHeight(28).setWidth(28));
+    Solver solver = new Solver();
+    solver.init(loadMnistSolverParameter(2), builder.build(), double_precision);
+    Assert.assertArrayEquals(solver.getMemoryDataShape(), new int[] {32, 1, 28, 28});
+    final MemoryDataFeed feed = new MemoryDataFeed(solver, 3);
+    Assert.assertEquals(feed.getSamples(), 32);
+    Assert.assertEquals(feed.getSampleSize(), 28 * 28);
+    // synthetic samples, each label lights up a different part of the image
+    Thread producer = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          for (int i = 0; i < 10; i++) {
+            MemoryDataFeed.Slot slot = feed.acquire();
+            for (int j = 0; j < feed.getSamples(); j++) {
+              int label = (i + j) % 10;
+              putFlat(slot.getLabels(), j, label);
+              for (int k = 0; k < feed.getSampleSize(); k++)
+                putFlat(slot.getData(), j * feed.getSampleSize() + k, k / 79 == label ? 1 : 0);
+            }
+            feed.publish(slot);
+          }
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    });
+    producer.start();
+    byte[] before = solver.getWeight();
+    double first = feed.train(1);
+    double last = feed.train(9);
+    producer.join();
+    Assert.assertTrue(last < first);
+    Assert.assertFalse(Arrays.equals(before, solver.getWeight()));
+    // number of samples must be a multiple of batch size
+    ByteBuffer labels = ByteBuffer.allocateDirect(10 * 8).order(ByteOrder.nativeOrder());
+    ByteBuffer data = ByteBuffer.allocateDirect(10 * 28 * 28 * 8).order(ByteOrder.nativeOrder());
+    try {
+      if (double_precision)
+        solver.setMemoryData(data.asDoubleBuffer(), labels.asDoubleBuffer());
+      else
+        solver.setMemoryData(data.asFloatBuffer(), labels.asFloatBuffer());
+      Assert.fail("Samples not a multiple of batch size should fail");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+    solver.dispose();
+  }
+
+  @Test
+  public void testLocalSgdTrainer() throws Exception {
+    NetParameter model = loadMnistNetParameter(default_batch_size);
+    LocalSgdTrainer trainer = new LocalSgdTrainer(loadMnistSolverParameter(1),
+      Arrays.asList(model, model), double_precision);
+    Assert.assertEquals(trainer.getReplicaCount(), 2);
+    // replicas reading the same data never diverge, so the average equals normal training
+    Solver solver = loadMnistSolver();
+    solver.setWeight(trainer.getReplica(1).getWeight());
+    trainer.setAdaptive(2, 8, 0.5);
+    Assert.assertEquals(trainer.getSyncPeriod(), 2);
+    Assert.assertEquals(trainer.round(), solver.train(2), loss_accuracy);
+    Assert.assertEquals(trainer.getDivergence(), 0, 0);
+    Assert.assertEquals(trainer.getSyncPeriod(), 4);
+    trainer.train(12);
+    Assert.assertEquals(trainer.getSyncPeriod(), 8);
+    solver.train(12);
+    ParameterLayout layout = solver.getLayout();
+    ByteBuffer expected = layout.allocate(), actual = layout.allocate();
+    solver.getWeight(expected);
+    trainer.getReplica(0).getWeight(actual);
+    for (int i = 0; i < layout.getCount(); i++)
+      Assert.assertEquals(getFlat(actual, i), getFlat(expected, i), operation_accuracy);
+    if (double_precision)
+      Assert.assertEquals(NetParameterOperation.squaredDistance(actual.asDoubleBuffer(),
+        expected.asDoubleBuffer()), 0, operation_accuracy);
+    else
+      Assert.assertEquals(NetParameterOperation.squaredDistance(actual.asFloatBuffer(),
+        expected.asFloatBuffer()), 0, operation_accuracy);
+    // replicas never test while training, the averaged weights are tested explicitly
+    Assert.assertTrue(Double.isNaN(trainer.getTestScore()));
+    double accuracy = trainer.getReplica(0).test(1);
+    Assert.assertTrue(accuracy >= 0 && accuracy <= 1);
+    trainer.dispose();
+    solver.dispose();
+  }
+
+  @Test
+  public void testCloneSolver() throws IOException {
+    Solver copy;
+    try (Solver solver = loadMnistSolver()) {
+      solver.train(3);
+      copy = solver.cloneSolver();
+      // weights, history and iteration are all copied
+      ByteBuffer expected = ByteBuffer.allocateDirect((int) solver.getStateSize());
+      ByteBuffer actual = ByteBuffer.allocateDirect((int) copy.getStateSize());
+      solver.snapshotState(expected);
+      copy.snapshotState(actual);
+      Assert.assertEquals(actual, expected);
+      Solver noHistory = solver.cloneSolver(false);
+      Assert.assertArrayEquals(noHistory.getWeight(), solver.getWeight());
+      noHistory.close();
+      Assert.assertFalse(noHistory.isInitialized());
+    }
+    // the copy is independent of the disposed solver
+    Assert.assertTrue(copy.isInitialized());
+    Assert.assertTrue(copy.train(1) > 0);
+    copy.dispose();
+  }
+
+  @Test
+  public void testSolverPool() throws IOException {
+    SolverParameter param = loadMnistSolverParameter(1);
+    NetParameter model = loadMnistNetParameter(default_batch_size);
+    try (SolverPool pool = new SolverPool(1)) {
+      Solver first = pool.acquire(param, model, double_precision);
+      byte[] initial = first.getWeight();
+      first.train(2);
+      pool.release(first);
+      Assert.assertEquals(pool.getIdleCount(), 1);
+      // released solvers are reset in place
+      Solver second = pool.acquire(param, model, double_precision);
+      Assert.assertTrue(second == first);
+      Assert.assertArrayEquals(second.getWeight(), initial);
+      Solver third = pool.acquire(param, model, double_precision);
+      Assert.assertArrayEquals(third.getWeight(), initial);
+      Assert.assertEquals(pool.getCreatedCount(), 2);
+      Assert.assertEquals(pool.getReusedCount(), 1);
+      pool.release(second);
+      pool.release(third);
+      Assert.assertEquals(pool.getIdleCount(), 1);
+      Assert.assertFalse(third.isInitialized());
+      try (Solver other = loadMnistSolver()) {
+        pool.release(other);
+        Assert.fail("Solvers not from the pool should fail");
+      } catch (IllegalArgumentException e) {
+        // expected
+      }
+    }
+  }
+
+  @Test
+  public void testBatchSizeTuner() throws IOException {
+    SolverParameter param = loadMnistSolverParameter(1);
+    Solver solver = loadMnistSolver();
+    BatchSizeTuner tuner = new BatchSizeTuner(solver, param, 64, 16, 32, 64, 48);
+    tuner.setWindow(1, 2);
+    tuner.setRetuneInterval(10);
+    Assert.assertNull(tuner.getDecision());
+    Assert.assertTrue(tuner.train(20) > 0);
+    BatchSizeTuner.Decision decision = tuner.getDecision();
+    // candidates are measured in ascending order
+    Assert.assertEquals(tuner.getMeasurements().size(), 4);
+    BatchSizeTuner.Decision small = tuner.getMeasurements().get(0);
+    BatchSizeTuner.Decision large = tuner.getMeasurements().get(3);
+    Assert.assertEquals(small.getBatchSize(), 16);
+    Assert.assertEquals(large.getBatchSize(), 64);
+    Assert.assertEquals(small.getIterSize(), 4);
+    Assert.assertEquals(small.getLearningRate(), param.getBaseLr(), 1e-7);
+    Assert.assertTrue(small.getMemoryFootprint() < large.getMemoryFootprint());
+    // 48 x 1 only covers 48 samples of the 64, so base_lr is scaled down
+    BatchSizeTuner.Decision rounded = tuner.getMeasurements().get(2);
+    Assert.assertEquals(rounded.getBatchSize(), 48);
+    Assert.assertEquals(rounded.getIterSize(), 1);
+    Assert.assertEquals(rounded.getLearningRate(), param.getBaseLr() * 0.75, 1e-7);
+    Assert.assertTrue(tuner.getMeasurements().contains(decision));
+    // only the smallest batch fits a tight budget, larger ones are not even trained
+    tuner.setMemoryBudget(small.getMemoryFootprint());
+    Assert.assertEquals(tuner.tune().getBatchSize(), 16);
+    Assert.assertEquals(tuner.getMeasurements().size(), 1);
+    solver.dispose();
+  }
+
+  @Test
+  public void testPopulationTrainer() throws Exception {
+    List<SolverParameter> configs = new ArrayList<SolverParameter>();
+    for (float lr: new float[] {1e-6f, 1e-3f, 1e-2f, 2e-2f})
+      configs.add(SolverParameter.newBuilder().setBaseLr(lr).build());
+    PopulationTrainer trainer = new PopulationTrainer(loadMnistSolverParameter(1),
+      loadMnistNetParameter(default_batch_size), double_precision, configs, 2);
+    trainer.setSeed(0);
+    PopulationTrainer.Member best = trainer.run(3, 10, 10);
+    Assert.assertEquals(trainer.getMembers().size(), 4);
+    int replaced = 0;
+    for (PopulationTrainer.Member member: trainer.getMembers()) {
+      Assert.assertTrue(member.getScore() <= best.getScore());
+      replaced += member.getReplaced();
+    }
+    // one member is replaced after each round but the last
+    Assert.assertEquals(replaced, 2);
+    // the tiny learning rate never catches up, so it's replaced by a perturbed winner
+    PopulationTrainer.Member slowest = trainer.getMembers().get(0);
+    Assert.assertTrue(slowest.getReplaced() > 0);
+    Assert.assertTrue(slowest.getParameter().getBaseLr() > 1e-4f);
+    // rank by loss instead, lower is better
+    try {
+      trainer.setScore("no such output", true);
+      Assert.fail("Unknown output should be rejected!");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+    trainer.setScore("loss", false);
+    best = trainer.run(1, 1, 2);
+    for (PopulationTrainer.Member member: trainer.getMembers())
+      Assert.assertTrue(member.getScore() >= best.getScore());
+    trainer.dispose();
+  }
+
+  /** Put a value into a FloatBuffer or DoubleBuffer. */
+  protected void putFlat(Buffer buffer, int index, double value) {
+    if (buffer instanceof DoubleBuffer)
+      ((DoubleBuffer) buffer).put(index, value);
+    else
+      ((FloatBuffer) buffer).put(index, (float) value);
+  }
+
+  /** Run forward of the net regardless of precision. */
+  protected int forward(Net net, ByteBuffer input, ByteBuffer output) {
+    if (double_precision)
+      return net.forward(input.asDoubleBuffer(), output.asDoubleBuffer());
+    else
+      return net.forward(input.asFloatBuffer(), output.asFloatBuffer());
+  }
+
+  /** Find the index of a layer by name. */
+  protected int layerIndex(NetParameter net, String name) {
+    for (int i = 0; i < net.getLayerCount(); i++) {
+      if (net.getLayer(i).getName().equals(name)) return i;
+    }
+    return -1;
+  }
 }
@@ -5,6 +5,7 @@
 #include <utility>
 #include <vector>
 
+#include "boost/date_time/posix_time/posix_time.hpp"
 #include "hdf5.h"
 
 #include "caffe/common.hpp"
@@ -246,6 +247,7 @@ void Net<Dtype>::Init(const NetParameter& in_param) {
   }
   ShareWeights();
   debug_info_ = param.debug_info();
+  layer_timing_ = false;
   LOG(INFO) << "Network initialization done.";
   LOG(INFO) << "Memory required for data: " << memory_used_ * sizeof(Dtype);
 }
@@ -519,7 +521,15 @@ Dtype Net<Dtype>::ForwardFromTo(int start, int end) {
   }
   for (int i = start; i <= end; ++i) {
     // LOG(ERROR) << "Forwarding " << layer_names_[i];
+    boost::posix_time::ptime begin;
+    if (layer_timing_) {
+      begin = boost::posix_time::microsec_clock::universal_time();
+    }
     Dtype layer_loss = layers_[i]->Forward(bottom_vecs_[i], top_vecs_[i]);
+    if (layer_timing_) {
+      layer_forward_time_[i] += (boost::posix_time::microsec_clock::
+          universal_time() - begin).total_microseconds();
+    }
     loss += layer_loss;
     if (debug_info_) { ForwardDebugInfo(i); }
   }
@@ -583,13 +593,36 @@ void Net<Dtype>::BackwardFromTo(int start, int end) {
   CHECK_LT(start, layers_.size());
   for (int i = start; i >= end; --i) {
     if (layer_need_backward_[i]) {
+      boost::posix_time::ptime begin;
+      if (layer_timing_) {
+        begin = boost::posix_time::microsec_clock::universal_time();
+      }
       layers_[i]->Backward(
           top_vecs_[i], bottom_need_backward_[i], bottom_vecs_[i]);
+      if (layer_timing_) {
+        layer_backward_time_[i] += (boost::posix_time::microsec_clock::
+            universal_time() - begin).total_microseconds();
+      }
       if (debug_info_) { BackwardDebugInfo(i); }
     }
   }
 }
 
+template <typename Dtype>
+void Net<Dtype>::set_layer_timing(const bool value) {
+  layer_timing_ = value;
+  if (layer_forward_time_.size() != layers_.size()) {
+    layer_forward_time_.resize(layers_.size(), 0);
+    layer_backward_time_.resize(layers_.size(), 0);
+  }
+}
+
+template <typename Dtype>
+void Net<Dtype>::ResetLayerTiming() {
+  layer_forward_time_.assign(layers_.size(), 0);
+  layer_backward_time_.assign(layers_.size(), 0);
+}
+
 template <typename Dtype>
 void Net<Dtype>::InputDebugInfo(const int input_id) {
   const Blob<Dtype>& blob = *net_input_blobs_[input_id];
@@ -467,13 +467,13 @@ void SGDSolver<Dtype>::PreSolve() {
 }
 
 template <typename Dtype>
-void SGDSolver<Dtype>::ClipGradients() {
+void SGDSolver<Dtype>::ClipGradients(const vector<int>& param_ids) {
   const Dtype clip_gradients = this->param_.clip_gradients();
   if (clip_gradients < 0) { return; }
   const vector<Blob<Dtype>*>& net_params = this->net_->learnable_params();
   Dtype sumsq_diff = 0;
-  for (int i = 0; i < net_params.size(); ++i) {
-    sumsq_diff += net_params[i]->sumsq_diff();
+  for (int i = 0; i < param_ids.size(); ++i) {
+    sumsq_diff += net_params[param_ids[i]]->sumsq_diff();
   }
   const Dtype l2norm_diff = std::sqrt(sumsq_diff);
   if (l2norm_diff > clip_gradients) {
@@ -481,26 +481,38 @@ void SGDSolver<Dtype>::ClipGradients() {
     LOG(INFO) << "Gradient clipping: scaling down gradients (L2 norm "
         << l2norm_diff << " > " << clip_gradients << ") "
         << "by scale factor " << scale_factor;
-    for (int i = 0; i < net_params.size(); ++i) {
-      net_params[i]->scale_diff(scale_factor);
+    for (int i = 0; i < param_ids.size(); ++i) {
+      net_params[param_ids[i]]->scale_diff(scale_factor);
     }
   }
 }
 
 template <typename Dtype>
 void SGDSolver<Dtype>::ApplyUpdate() {
+  vector<int> param_ids(this->net_->learnable_params().size());
+  for (int i = 0; i < param_ids.size(); ++i) {
+    param_ids[i] = i;
+  }
+  ApplyUpdate(param_ids);
+}
+
+template <typename Dtype>
+void SGDSolver<Dtype>::ApplyUpdate(const vector<int>& param_ids) {
   Dtype rate = GetLearningRate();
   if (this->param_.display() && this->iter_ % this->param_.display() == 0) {
     LOG(INFO) << "Iteration " << this->iter_ << ", lr = " << rate;
   }
-  ClipGradients();
-  for (int param_id = 0; param_id < this->net_->learnable_params().size();
-       ++param_id) {
-    Normalize(param_id);
-    Regularize(param_id);
-    ComputeUpdateValue(param_id, rate);
+  ClipGradients(param_ids);
+  for (int i = 0; i < param_ids.size(); ++i) {
+    Normalize(param_ids[i]);
+    Regularize(param_ids[i]);
+    ComputeUpdateValue(param_ids[i], rate);
+  }
+  // same as Net::Update, but only for the given params
+  const vector<Blob<Dtype>*>& net_params = this->net_->learnable_params();
+  for (int i = 0; i < param_ids.size(); ++i) {
+    net_params[param_ids[i]]->Update();
   }
-  this->net_->Update();
 }
 
 template <typename Dtype>